@@ -3,6 +3,7 @@ package org.dashjoin.service;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +16,7 @@ import org.dashjoin.model.JsonSchema;
 import org.dashjoin.model.Property;
 import org.dashjoin.model.QueryMeta;
 import org.dashjoin.model.Table;
+import org.dashjoin.service.Data.Page;
 import org.dashjoin.service.Data.Resource;
 import org.dashjoin.service.Metadata.Column;
 import org.dashjoin.service.Metadata.Key;
@@ -29,6 +31,7 @@ import com.arangodb.ArangoCursor;
 import com.arangodb.ArangoDatabase;
 import com.arangodb.entity.CollectionEntity;
 import com.arangodb.entity.CollectionType;
+import com.arangodb.model.AqlQueryOptions;
 import com.arangodb.model.CollectionSchema;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -83,21 +86,43 @@ public class ArangoDB extends AbstractDatabase {
     }
   }
 
-  @SuppressWarnings("unchecked")
   List<Map<String, Object>> query(String query) {
+    return query(query, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  List<Map<String, Object>> query(String query, Map<String, Object> bindVars) {
     @SuppressWarnings("rawtypes")
-    ArangoCursor<Map> cursor = con().query(query, Map.class);
+    ArangoCursor<Map> cursor = con().query(query, bindVars, Map.class);
     List<Map<String, Object>> res = new ArrayList<>();
-    while (cursor.hasNext()) {
-      @SuppressWarnings("rawtypes")
-      Map row = new LinkedHashMap(cursor.next());
-      row.remove("_rev");
-      row.remove("_key");
-      res.add(row);
-    }
+    while (cursor.hasNext())
+      res.add(row(cursor.next()));
     return res;
   }
 
+  /**
+   * run the query using a streaming cursor and pass the rows to the consumer
+   */
+  void stream(String query, RowConsumer consumer) throws Exception {
+    @SuppressWarnings("rawtypes")
+    ArangoCursor<Map> cursor =
+        con().query(query, new AqlQueryOptions().stream(true).batchSize(FETCH_SIZE), Map.class);
+    try {
+      while (cursor.hasNext())
+        consumer.accept(row(cursor.next()));
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  Map<String, Object> row(Map doc) {
+    Map row = new LinkedHashMap(doc);
+    row.remove("_rev");
+    row.remove("_key");
+    return row;
+  }
+
   @Override
   @SuppressWarnings("unchecked")
   public Map<String, Object> connectAndCollectMetadata() throws Exception {
@@ -283,6 +308,15 @@ public class ArangoDB extends AbstractDatabase {
     return query(q.toString());
   }
 
+  @Override
+  public void streamQuery(QueryMeta info, Map<String, Object> arguments, RowConsumer consumer)
+      throws Exception {
+    ArangoDBQuery q =
+        new ArangoDBQuery("" + Template.replace(info.query, Template.quoteStrings(arguments)));
+
+    stream(q.toString(), consumer);
+  }
+
   @Override
   public void create(Table m, Map<String, Object> object) throws Exception {
     object = new LinkedHashMap<>(object);
@@ -306,6 +340,32 @@ public class ArangoDB extends AbstractDatabase {
     return m;
   }
 
+  /**
+   * reads the documents using a single filter t._key in @keys query
+   */
+  @Override
+  public List<Map<String, Object>> readMany(Table s, List<Map<String, Object>> searches)
+      throws Exception {
+    List<String> keys = new ArrayList<>();
+    for (Map<String, Object> search : searches) {
+      String key = search2key(search);
+      if (key == null)
+        return super.readMany(s, searches);
+      keys.add(key);
+    }
+    Map<String, Object> bindVars = new LinkedHashMap<>();
+    String query = "for t in " + s.name + " filter t._key in " + bind(bindVars, keys) + " return t";
+    Map<String, Map<String, Object>> rows = new HashMap<>();
+    // match by key, the _id might be passed without the collection prefix
+    for (Map<String, Object> row : query(query, bindVars))
+      rows.put(search2key(row), row);
+    List<Map<String, Object>> res = new ArrayList<>();
+    for (Map<String, Object> search : searches) {
+      res.add(rows.get(search2key(search)));
+    }
+    return res;
+  }
+
   String search2key(Map<String, Object> search) {
     String id = (String) search.get("_id");
     if (id == null)
@@ -341,7 +401,21 @@ public class ArangoDB extends AbstractDatabase {
   @Override
   public List<Map<String, Object>> all(Table s, Integer offset, Integer limit, String sort,
       boolean descending, Map<String, Object> arguments) throws Exception {
+    List<Map<String, Object>> list = new ArrayList<>();
+    for (Map<String, Object> d : query(allQuery(s, offset, limit, sort, descending, arguments))) {
+      list.add(d);
+    }
+    return list;
+  }
+
+  @Override
+  public void streamAll(Table s, Integer offset, Integer limit, String sort, boolean descending,
+      Map<String, Object> arguments, RowConsumer consumer) throws Exception {
+    stream(allQuery(s, offset, limit, sort, descending, arguments), consumer);
+  }
 
+  String allQuery(Table s, Integer offset, Integer limit, String sort, boolean descending,
+      Map<String, Object> arguments) {
     String sorts = sort == null ? "" : " sort t." + sort + (descending ? " desc " : " asc ");
     List<String> filters = new ArrayList<>();
     if (arguments != null)
@@ -360,13 +434,57 @@ public class ArangoDB extends AbstractDatabase {
         limits = " limit " + offset + ", " + limit;
     }
 
-    String query = "for t in " + s.name + sorts + limits + filter + " return t";
+    return "for t in " + s.name + sorts + limits + filter + " return t";
+  }
 
-    List<Map<String, Object>> list = new ArrayList<>();
-    for (Map<String, Object> d : query(query)) {
-      list.add(d);
+  @Override
+  public Page page(Table s, String after, Integer limit, String sort, boolean descending,
+      Map<String, Object> arguments) throws Exception {
+    List<String> columns = Keyset.columns(s, sort);
+    if (columns == null)
+      return super.page(s, after, limit, sort, descending, arguments);
+
+    Keyset keyset = Keyset.parse(after);
+    Map<String, Object> bindVars = new LinkedHashMap<>();
+    List<String> filters = new ArrayList<>();
+    if (arguments != null)
+      for (Entry<String, Object> e : arguments.entrySet())
+        filters.add("t.`" + e.getKey() + "` == " + bind(bindVars, e.getValue()));
+    if (keyset.after != null) {
+      // null is sorted first, so it follows in descending order
+      String op = descending ? " < " : " > ";
+      int last = columns.size() - 1;
+      String keys = "t.`" + columns.get(last) + "`" + op + bind(bindVars, keyset.after.get(last));
+      for (int i = last - 1; i >= 0; i--) {
+        String v = bind(bindVars, keyset.after.get(i));
+        keys = "(t.`" + columns.get(i) + "`" + op + v + " || (t.`" + columns.get(i) + "` == " + v
+            + " && " + keys + "))";
+      }
+      if (descending && !"_id".equals(columns.get(0)))
+        keys = "(" + keys + " || t.`" + columns.get(0) + "` == null)";
+      filters.add(keys);
     }
-    return list;
+
+    List<String> sorts = new ArrayList<>();
+    for (String c : columns)
+      sorts.add("t.`" + c + "`" + (descending ? " desc" : " asc"));
+    String query = "for t in " + s.name
+        + (filters.isEmpty() ? "" : " filter " + String.join(" && ", filters)) + " sort "
+        + String.join(", ", sorts);
+    if (limit != null)
+      query = query + " limit "
+          + (keyset.after == null && keyset.offset > 0 ? keyset.offset + ", " : "") + limit;
+    List<Map<String, Object>> rows = query(query + " return t", bindVars);
+    return Page.of(rows, keyset.next(columns, rows, limit));
+  }
+
+  /**
+   * add the bind variable and return its name
+   */
+  static String bind(Map<String, Object> bindVars, Object value) {
+    String name = "v" + bindVars.size();
+    bindVars.put(name, value);
+    return "@" + name;
   }
 
   @Override
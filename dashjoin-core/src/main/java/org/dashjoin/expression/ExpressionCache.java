@@ -0,0 +1,103 @@
+package org.dashjoin.expression;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * bounded LRU cache of compiled expressions keyed by the expression text. Widgets evaluate the same
+ * few hundred expressions over and over, so parsing is done once per expression (and engine
+ * instance). Statistics are collected in a Metrics object that can be shared by several caches
+ * (e.g. the per thread caches of the JavaScript engine)
+ */
+public class ExpressionCache<T> {
+
+  /**
+   * default number of compiled expressions kept per cache
+   */
+  public static final int CAPACITY = 500;
+
+  /**
+   * compiles an expression on a cache miss
+   */
+  public interface Compiler<T> {
+    T compile(String expression) throws Exception;
+  }
+
+  /**
+   * cache statistics
+   */
+  public static class Metrics {
+
+    final LongAdder hits = new LongAdder();
+
+    final LongAdder misses = new LongAdder();
+
+    final LongAdder parseNanos = new LongAdder();
+
+    /**
+     * hits, misses, hit ratio and parse time in ms
+     */
+    public Map<String, Object> toMap() {
+      long hits = this.hits.sum();
+      long misses = this.misses.sum();
+      long parse = parseNanos.sum();
+      Map<String, Object> res = new LinkedHashMap<>();
+      res.put("hits", hits);
+      res.put("misses", misses);
+      res.put("hitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+      res.put("totalParseTimeMs", parse / 1000000.0);
+      res.put("averageParseTimeMs", misses == 0 ? 0.0 : parse / 1000000.0 / misses);
+      return res;
+    }
+  }
+
+  final Metrics metrics;
+
+  final Map<String, T> entries;
+
+  public ExpressionCache(int capacity, Metrics metrics) {
+    this.metrics = metrics;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * get the compiled expression, compile it on a cache miss. Compilation happens outside of the
+   * lock, so two threads may compile the same expression concurrently
+   */
+  public T get(String expression, Compiler<T> compiler) throws Exception {
+    T res;
+    synchronized (entries) {
+      res = entries.get(expression);
+    }
+    if (res != null) {
+      metrics.hits.increment();
+      return res;
+    }
+
+    long start = System.nanoTime();
+    res = compiler.compile(expression);
+    metrics.parseNanos.add(System.nanoTime() - start);
+    metrics.misses.increment();
+    synchronized (entries) {
+      entries.put(expression, res);
+    }
+    return res;
+  }
+
+  /**
+   * number of cached expressions
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
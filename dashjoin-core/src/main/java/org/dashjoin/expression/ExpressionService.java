@@ -1,27 +1,34 @@
 package org.dashjoin.expression;
 
 import java.io.IOException;
+import java.security.Principal;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ServiceLoader;
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.NotAuthorizedException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.dashjoin.expression.jsonatajs.JSBridge;
 import org.dashjoin.expression.jsonatajs.JsonataJS;
 import org.dashjoin.function.AbstractConfigurableFunction;
 import org.dashjoin.function.AbstractFunction;
 import org.dashjoin.function.AbstractVarArgFunction;
 import org.dashjoin.function.FunctionService;
 import org.dashjoin.function.JobStatus;
+import org.dashjoin.service.ConditionalGet;
 import org.dashjoin.service.Data;
 import org.dashjoin.service.Manage;
 import org.dashjoin.service.Services;
@@ -93,6 +100,7 @@ public class ExpressionService {
   }
 
   @GET
+  @ConditionalGet
   @Path("/{expression}")
   @Operation(summary = "evaluates the expression with the data context")
   @APIResponse(description = "evaluation result")
@@ -119,29 +127,44 @@ public class ExpressionService {
   }
 
   public Object resolve(ParsedExpression _expr, Object data) throws Exception {
+    SecurityContext outer = caller.get();
+    caller.set(((AbstractParsedExpression) _expr).sc);
+    try {
+      if (_expr instanceof JsonataJSParsedExpression) {
+        JsonataJSParsedExpression parsed = (JsonataJSParsedExpression) _expr;
+        Map<String, Function> fns = getJsonataFunctions(parsed.readOnly);
+        return JsonataJS.run(jsonataJs -> {
+          // compiled expressions belong to a context, get the one of the borrowed context
+          jsonataJs.initBindings(fns);
+          Value expr = jsonataJs.jsonata(parsed.sexpr);
+
+          if (valueBridge) {
+            Value res = jsonataJs.evaluate(expr, jsonataJs.toJS(data));
+            return jsonataJs.toJava(res);
+          }
 
-    if (_expr instanceof JsonataJSParsedExpression) {
-      Value expr = ((JsonataJSParsedExpression) _expr).getExpression();
-      Value bindings = ((JsonataJSParsedExpression) _expr).getBindings();
-      JsonataJS jsonataJs = JsonataJS.getInstance(); // .evaluate(expr, bindings);
-      Value dataVal = data != null ? jsonataJs.jsonParse(o2j(data).toString()) : null;
-      Value res = jsonataJs.evaluate(expr, dataVal, bindings);
-      res = jsonataJs.jsonStringify(res);
+          Value dataVal = data != null ? jsonataJs.jsonParse(o2j(data).toString()) : null;
+          Value res = jsonataJs.evaluate(expr, dataVal);
+          res = jsonataJs.jsonStringify(res);
 
-      if (log.isLoggable(Level.DEBUG)) {
-        log.info("jsonata res = " + res);
-      }
+          if (log.isLoggable(Level.DEBUG)) {
+            log.info("jsonata res = " + res);
+          }
 
-      String json = res.toString();
-      // return j2o(om.readValue(json, JsonNode.class));
-      return om.readValue(json, Object.class);
-    }
+          String json = res.toString();
+          // return j2o(om.readValue(json, JsonNode.class));
+          return om.readValue(json, Object.class);
+        });
+      }
 
-    Expressions expr = ((Jsonata4JavaParsedExpression) _expr).getExpression();
-    try {
-      return j2o(expr.evaluate(o2j(data)));
-    } catch (WrappedException e) {
-      throw (Exception) e.getCause();
+      Expressions expr = ((Jsonata4JavaParsedExpression) _expr).getExpression();
+      try {
+        return j2o(expr.evaluate(o2j(data)));
+      } catch (WrappedException e) {
+        throw (Exception) e.getCause();
+      }
+    } finally {
+      caller.set(outer);
     }
   }
 
@@ -151,12 +174,19 @@ public class ExpressionService {
   public interface ParsedExpression {
   }
 
+  /**
+   * parsed expression that remembers the caller it was prepared for
+   */
+  static abstract class AbstractParsedExpression implements ParsedExpression {
+    SecurityContext sc;
+  }
+
   /**
    * Jsonata4Java parsed expression
    * 
    * @author uli
    */
-  public static class Jsonata4JavaParsedExpression implements ParsedExpression {
+  public static class Jsonata4JavaParsedExpression extends AbstractParsedExpression {
     String sexpr;
     Expressions expr;
 
@@ -176,26 +206,18 @@ public class ExpressionService {
   }
 
   /**
-   * JsonataJS parsed expression
+   * JsonataJS parsed expression. The compiled expression is looked up in the cache of the context
+   * that is borrowed for the evaluation
    * 
    * @author uli
    */
-  public static class JsonataJSParsedExpression implements ParsedExpression {
+  public static class JsonataJSParsedExpression extends AbstractParsedExpression {
     String sexpr;
-    Value expr, bindings;
+    boolean readOnly;
 
-    JsonataJSParsedExpression(String sexpr, Value expr, Value bindings) {
+    JsonataJSParsedExpression(String sexpr, boolean readOnly) {
       this.sexpr = sexpr;
-      this.expr = expr;
-      this.bindings = bindings;
-    }
-
-    public Value getExpression() {
-      return this.expr;
-    }
-
-    public Value getBindings() {
-      return this.bindings;
+      this.readOnly = readOnly;
     }
 
     @Override
@@ -207,21 +229,132 @@ public class ExpressionService {
   ParsedExpression parse(SecurityContext sc, String expression, boolean readOnly)
       throws ParseException, IOException {
 
-    Map<String, Function> fns = getJsonataFunctions(sc, readOnly);
+    Map<String, Function> fns = getJsonataFunctions(readOnly);
 
+    AbstractParsedExpression res;
     if (jsonataJs) {
-      // Execute jsonata-js reference implementation
-      JsonataJS jsonataJs = JsonataJS.getInstance();
-      jsonataJs.initBindings(getJsonataFunctions(sc, readOnly));
-      Value expr = jsonataJs.jsonata(expression);
-      return new JsonataJSParsedExpression(expression, expr, jsonataJs.getBindings());
+      // Execute jsonata-js reference implementation, compile to report syntax errors early
+      try {
+        JsonataJS.run(jsonataJs -> jsonataJs.jsonata(expression));
+      } catch (RuntimeException | IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+      res = new JsonataJSParsedExpression(expression, readOnly);
+    } else {
+      Expressions expr = new Expressions(tree(expression), expression);
+      for (Map.Entry<String, Function> e : fns.entrySet()) {
+        expr.getEnvironment().setJsonataFunction(e.getKey(), e.getValue());
+      }
+      res = new Jsonata4JavaParsedExpression(expression, expr);
     }
+    res.sc = sc;
+    return res;
+  }
+
+  /**
+   * statistics of the Jsonata4Java parse tree cache
+   */
+  static final ExpressionCache.Metrics jsonata4JavaMetrics = new ExpressionCache.Metrics();
 
-    Expressions expr = Expressions.parse(expression);
-    for (Map.Entry<String, Function> e : fns.entrySet()) {
-      expr.getEnvironment().setJsonataFunction(e.getKey(), e.getValue());
+  /**
+   * Jsonata4Java parse trees are not changed by the evaluation and can be shared. Each evaluation
+   * gets a new Expressions object, which holds the evaluation state and the functions
+   */
+  static final ExpressionCache<ParseTree> trees =
+      new ExpressionCache<>(ExpressionCache.CAPACITY, jsonata4JavaMetrics);
+
+  ParseTree tree(String expression) throws ParseException, IOException {
+    try {
+      return trees.get(expression, e -> Expressions.parse(e).getTree());
+    } catch (ParseException | IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
     }
-    return new Jsonata4JavaParsedExpression(expression, expr);
+  }
+
+  /**
+   * security context of the expression being evaluated by the current thread. The function
+   * bindings are cached and look up the caller here when they are invoked
+   */
+  static final ThreadLocal<SecurityContext> caller = new ThreadLocal<>();
+
+  /**
+   * function bindings per thread and readOnly flag
+   */
+  final ThreadLocal<Map<Boolean, Map<String, Function>>> functions =
+      ThreadLocal.withInitial(HashMap::new);
+
+  /**
+   * get the function bindings of this thread. The functions do not capture the security context,
+   * so they can be reused by all callers on this thread
+   */
+  Map<String, Function> getJsonataFunctions(boolean readOnly) throws ParseException, IOException {
+    Map<String, Function> res = functions.get().get(readOnly);
+    if (res == null) {
+      res = getJsonataFunctions(CALLER, readOnly);
+      functions.get().put(readOnly, res);
+    }
+    return res;
+  }
+
+  /**
+   * placeholder passed to the cached functions, replaced by the caller when the function is invoked
+   * (it must not be passed on, since it might be used in another thread or after the call)
+   */
+  static final SecurityContext CALLER = new SecurityContext() {
+
+    @Override
+    public Principal getUserPrincipal() {
+      return caller.get().getUserPrincipal();
+    }
+
+    @Override
+    public boolean isUserInRole(String role) {
+      return caller.get().isUserInRole(role);
+    }
+
+    @Override
+    public boolean isSecure() {
+      return caller.get().isSecure();
+    }
+
+    @Override
+    public String getAuthenticationScheme() {
+      return caller.get().getAuthenticationScheme();
+    }
+  };
+
+  /**
+   * replace the CALLER placeholder with the security context of the current evaluation
+   */
+  static SecurityContext sc(SecurityContext sc) {
+    return sc == CALLER ? caller.get() : sc;
+  }
+
+  /**
+   * get the expression cache statistics
+   */
+  @GET
+  @Path("/cache")
+  @Operation(
+      summary = "returns the expression cache statistics (hits, misses, parse time, context pool)")
+  @APIResponse(description = "statistics per expression engine")
+  public Map<String, Object> cache(@Context SecurityContext sc) {
+    if (!sc.isUserInRole("admin"))
+      throw new NotAuthorizedException(
+          Response.status(Response.Status.UNAUTHORIZED).entity("Admin role required").build());
+    Map<String, Object> res = new LinkedHashMap<>();
+    res.put("engine", jsonataJs ? "jsonata-js" : "jsonata4java");
+    Map<String, Object> js = JsonataJS.metrics.toMap();
+    js.put("pool", JsonataJS.poolMetrics());
+    res.put("jsonata-js", js);
+    Map<String, Object> j4j = jsonata4JavaMetrics.toMap();
+    j4j.put("size", trees.size());
+    res.put("jsonata4java", j4j);
+    return res;
   }
 
   Map<String, Function> getJsonataFunctions(SecurityContext sc, boolean readOnly)
@@ -276,10 +409,10 @@ public class ExpressionService {
                     args.add(null);
                   index++;
                 }
-                return o2j(function.callInternal(sc, (AbstractFunction<Object, Object>) f, args,
+                return o2j(function.callInternal(sc(sc), (AbstractFunction<Object, Object>) f, args,
                     readOnly));
               } else
-                return o2j(function.callInternal(sc, (AbstractFunction<Object, Object>) f,
+                return o2j(function.callInternal(sc(sc), (AbstractFunction<Object, Object>) f,
                     getArgumentCount(ctx) == 0 ? null : j2o(getValuesListExpression(v, ctx, 0)),
                     readOnly));
             } catch (Exception e) {
@@ -293,10 +426,10 @@ public class ExpressionService {
   }
 
   /**
-   * Checks if the JsonataJS instance can be created
+   * Checks if the JsonataJS context can be created
    */
   static boolean canUseJsonataReference() {
-    return JsonataJS.getInstance() != null;
+    return JsonataJS.isAvailable();
   }
 
   /**
@@ -304,6 +437,12 @@ public class ExpressionService {
    */
   boolean jsonataJs = canUseJsonataReference();
 
+  /**
+   * pass data to JsonataJS and back via polyglot values rather than JSON text. Can be switched off
+   * to compare with the JSON text round trip
+   */
+  boolean valueBridge = true;
+
   /**
    * wrapper around new evaluate(expression, data) that defines our custom function
    */
@@ -340,36 +479,59 @@ public class ExpressionService {
         }
     }
 
+    SecurityContext outer = caller.get();
+    caller.set(sc);
+    try {
+      return evaluate(expression, data, readOnly);
+    } finally {
+      caller.set(outer);
+    }
+  }
+
+  /**
+   * evaluate with the caller set
+   */
+  JsonNode evaluate(String expression, JsonNode data, boolean readOnly) throws Exception {
     if (jsonataJs) {
       // Execute jsonata-js reference implementation
-      JsonataJS jsonataJs = JsonataJS.getInstance();
-      jsonataJs.initBindings(getJsonataFunctions(sc, readOnly));
-      Value expr = jsonataJs.jsonata(expression);
-      Object dataIn = data; // != null ? j2o(data) : null;
-
-      if (log.isLoggable(Level.DEBUG)) {
-        log.info("jsonata expr = " + expression);
-        log.info("jsonata data = " + dataIn);
-      }
+      Map<String, Function> fns = getJsonataFunctions(readOnly);
+      return JsonataJS.run(jsonataJs -> {
+        jsonataJs.initBindings(fns);
+        Value expr = jsonataJs.jsonata(expression);
+        Object dataIn = data; // != null ? j2o(data) : null;
+
+        if (log.isLoggable(Level.DEBUG)) {
+          log.info("jsonata expr = " + expression);
+          log.info("jsonata data = " + dataIn);
+        }
 
-      Value dataVal = dataIn != null ? jsonataJs.jsonParse(dataIn.toString()) : null;
-      Value res = jsonataJs.evaluate(expr, dataVal);
-      res = jsonataJs.jsonStringify(res);
+        if (valueBridge) {
+          Value res = jsonataJs.evaluate(expr, jsonataJs.toJS(j2o(data)));
+          if (JSBridge.isUndefined(res))
+            return null;
+          Object java = jsonataJs.toJava(res);
+          return java == null ? NullNode.getInstance() : o2j(java);
+        }
 
-      if (log.isLoggable(Level.DEBUG)) {
-        log.info("jsonata res = " + res);
-      }
+        Value dataVal = dataIn != null ? jsonataJs.jsonParse(dataIn.toString()) : null;
+        Value res = jsonataJs.evaluate(expr, dataVal);
+        res = jsonataJs.jsonStringify(res);
 
-      String json = res.toString();
+        if (log.isLoggable(Level.DEBUG)) {
+          log.info("jsonata res = " + res);
+        }
 
-      if ("undefined".equals(json))
-        return null;
+        String json = res.toString();
+
+        if ("undefined".equals(json))
+          return null;
 
-      return om.readValue(json, JsonNode.class);
+        return om.readValue(json, JsonNode.class);
+      });
     }
 
     Jsonata4JavaParsedExpression expr =
-        (Jsonata4JavaParsedExpression) parse(sc, expression, readOnly);
+        (Jsonata4JavaParsedExpression) parse(caller.get(), expression, readOnly);
 
     try {
       return expr.getExpression().evaluate(data);
@@ -422,7 +584,7 @@ public class ExpressionService {
       if (getValuesListExpression(v, ctx, 1) == null)
         throw new RuntimeException("Table name cannot be null");
       try {
-        return o2j(data.all(sc, getValuesListExpression(v, ctx, 0).asText(),
+        return o2j(data.all(sc(sc), getValuesListExpression(v, ctx, 0).asText(),
             getValuesListExpression(v, ctx, 1).asText(), null, null, null, false, null));
       } catch (Exception e) {
         throw new RuntimeException(e);
@@ -468,7 +630,7 @@ public class ExpressionService {
       if (getValuesListExpression(v, ctx, 2) == null)
         throw new RuntimeException("pk1 cannot be null");
       try {
-        return o2j(data.read(sc, getValuesListExpression(v, ctx, 0).asText(),
+        return o2j(data.read(sc(sc), getValuesListExpression(v, ctx, 0).asText(),
             getValuesListExpression(v, ctx, 1).asText(),
             getValuesListExpression(v, ctx, 2).asText()));
       } catch (Exception e) {
@@ -500,7 +662,7 @@ public class ExpressionService {
       try {
         if (readOnly)
           return null;
-        return o2j(data.create(sc, getValuesListExpression(v, ctx, 0).asText(),
+        return o2j(data.create(sc(sc), getValuesListExpression(v, ctx, 0).asText(),
             getValuesListExpression(v, ctx, 1).asText(),
             (Map<String, Object>) j2o(getValuesListExpression(v, ctx, 2))));
       } catch (Exception e) {
@@ -549,7 +711,7 @@ public class ExpressionService {
       try {
         if (readOnly)
           return null;
-        data.update(sc, getValuesListExpression(v, ctx, 0).asText(),
+        data.update(sc(sc), getValuesListExpression(v, ctx, 0).asText(),
             getValuesListExpression(v, ctx, 1).asText(),
             getValuesListExpression(v, ctx, 2).asText(),
             (Map<String, Object>) j2o(getValuesListExpression(v, ctx, 3)));
@@ -582,7 +744,7 @@ public class ExpressionService {
       if (getValuesListExpression(v, ctx, 3) == null)
         throw new RuntimeException("fk cannot be null");
       try {
-        return o2j(data.traverse(sc, getValuesListExpression(v, ctx, 0).asText(),
+        return o2j(data.traverse(sc(sc), getValuesListExpression(v, ctx, 0).asText(),
             getValuesListExpression(v, ctx, 1).asText(),
             getValuesListExpression(v, ctx, 2).asText(),
             getValuesListExpression(v, ctx, 3).asText()));
@@ -614,7 +776,7 @@ public class ExpressionService {
       try {
         if (readOnly)
           return null;
-        data.delete(sc, getValuesListExpression(v, ctx, 0).asText(),
+        data.delete(sc(sc), getValuesListExpression(v, ctx, 0).asText(),
             getValuesListExpression(v, ctx, 1).asText(),
             getValuesListExpression(v, ctx, 2).asText());
         return null;
@@ -662,7 +824,7 @@ public class ExpressionService {
       if (getValuesListExpression(v, ctx, 0) == null)
         throw new RuntimeException("Query name cannot be null");
       try {
-        return o2j(data.queryInternal(sc, getValuesListExpression(v, ctx, 0).asText(),
+        return o2j(data.queryInternal(sc(sc), getValuesListExpression(v, ctx, 0).asText(),
             getValuesListExpression(v, ctx, 1).asText(), getArgumentCount(ctx) == 2 ? null
                 : (Map<String, Object>) j2o(getValuesListExpression(v, ctx, 2)),
             readOnly));
@@ -692,7 +854,7 @@ public class ExpressionService {
       if (getValuesListExpression(v, ctx, 0) == null)
         throw new RuntimeException("Query name cannot be null");
       try {
-        return o2j(data.queryGraphInternal(sc, getValuesListExpression(v, ctx, 0).asText(),
+        return o2j(data.queryGraphInternal(sc(sc), getValuesListExpression(v, ctx, 0).asText(),
             getValuesListExpression(v, ctx, 1).asText(), getArgumentCount(ctx) == 2 ? null
                 : (Map<String, Object>) j2o(getValuesListExpression(v, ctx, 2)),
             readOnly));
@@ -738,7 +900,7 @@ public class ExpressionService {
         throw new RuntimeException("Function name cannot be null");
       try {
         String f = getValuesListExpression(v, ctx, 0).asText();
-        return o2j(function.callInternal(sc, f,
+        return o2j(function.callInternal(sc(sc), f,
             getArgumentCount(ctx) == 1 ? null : j2o(getValuesListExpression(v, ctx, 1)), readOnly));
       } catch (Exception e) {
         throw new WrappedException(e);
@@ -810,7 +972,7 @@ public class ExpressionService {
       if (getValuesListExpression(v, ctx, 2) == null)
         throw new RuntimeException("pk1 cannot be null");
       try {
-        return o2j(data.incoming(sc, getValuesListExpression(v, ctx, 0).asText(),
+        return o2j(data.incoming(sc(sc), getValuesListExpression(v, ctx, 0).asText(),
             getValuesListExpression(v, ctx, 1).asText(),
             getValuesListExpression(v, ctx, 2).asText(), null, null));
       } catch (Exception e) {
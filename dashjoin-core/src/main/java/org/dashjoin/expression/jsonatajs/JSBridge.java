@@ -0,0 +1,177 @@
+package org.dashjoin.expression.jsonatajs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Value;
+import org.graalvm.polyglot.proxy.ProxyArray;
+import org.graalvm.polyglot.proxy.ProxyObject;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * passes Java values to Javascript and back without serializing them to JSON text.
+ *
+ * Maps are passed as read only ProxyObject views, lists are copied into native Javascript arrays
+ * (jsonata relies on Array.isArray). Values other than strings, booleans, numbers, maps and lists
+ * are converted the way Jackson would serialize them. Results are converted like JSON.stringify /
+ * Jackson would: undefined members and functions are dropped, non finite numbers become null.
+ */
+public class JSBridge {
+
+  private static final ObjectMapper om =
+      new ObjectMapper().configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+
+  /**
+   * Array.from, converts the ProxyArray to a native array
+   */
+  final Value arrayFrom;
+
+  /**
+   * JSON.stringify, fallback for exotic result values
+   */
+  final Value stringify;
+
+  public JSBridge(Context cx) {
+    this(cx.eval("js", "Array.from"), cx.eval("js", "JSON.stringify"));
+  }
+
+  /**
+   * bridge using the given functions. Without a Javascript engine (null), lists and exotic result
+   * values cannot be converted
+   */
+  JSBridge(Value arrayFrom, Value stringify) {
+    this.arrayFrom = arrayFrom;
+    this.stringify = stringify;
+  }
+
+  /**
+   * read only view on a Java map. Member values are converted on first access
+   */
+  class MapProxy implements ProxyObject {
+
+    final Map<String, Object> map;
+
+    final Map<String, Object> converted = new LinkedHashMap<>();
+
+    MapProxy(Map<String, Object> map) {
+      this.map = map;
+    }
+
+    @Override
+    public Object getMember(String key) {
+      Object res = converted.get(key);
+      if (res == null && map.containsKey(key)) {
+        res = toJS(map.get(key));
+        if (res != null)
+          converted.put(key, res);
+      }
+      return res;
+    }
+
+    @Override
+    public Object getMemberKeys() {
+      return ProxyArray.fromArray(map.keySet().toArray());
+    }
+
+    @Override
+    public boolean hasMember(String key) {
+      return map.containsKey(key);
+    }
+
+    @Override
+    public void putMember(String key, Value value) {
+      throw new UnsupportedOperationException("Input data is read only");
+    }
+  }
+
+  /**
+   * convert Java input data to a value that can be passed to Javascript
+   */
+  @SuppressWarnings("unchecked")
+  public Object toJS(Object object) {
+    if (object == null || object instanceof String || object instanceof Boolean
+        || object instanceof Integer || object instanceof Long || object instanceof Double
+        || object instanceof Float || object instanceof Short || object instanceof Byte)
+      return object;
+    if (object instanceof Number)
+      // BigDecimal, BigInteger
+      return ((Number) object).doubleValue();
+    if (object instanceof Map)
+      return new MapProxy((Map<String, Object>) object);
+    if (object instanceof List) {
+      List<?> list = (List<?>) object;
+      Object[] res = new Object[list.size()];
+      int i = 0;
+      for (Object item : list)
+        res[i++] = toJS(item);
+      return arrayFrom.execute(ProxyArray.fromArray(res));
+    }
+    if (object instanceof Object[])
+      return toJS(Arrays.asList((Object[]) object));
+
+    // dates, pojos, JsonNodes: use the Jackson representation
+    Object plain = om.convertValue(object, Object.class);
+    if (plain == null || plain.getClass().equals(object.getClass()))
+      return plain == null ? null : plain.toString();
+    return toJS(plain);
+  }
+
+  /**
+   * true if the value is undefined (as opposed to null)
+   */
+  public static boolean isUndefined(Value value) {
+    return value == null || (value.isNull() && "undefined".equals(value.toString()));
+  }
+
+  /**
+   * convert a Javascript result to Java maps, lists, strings, numbers and booleans
+   */
+  public Object toJava(Value value) throws Exception {
+    if (value == null || value.isNull())
+      return null;
+    if (value.isBoolean())
+      return value.asBoolean();
+    if (value.isString())
+      return value.asString();
+    if (value.isNumber()) {
+      if (value.fitsInInt())
+        return value.asInt();
+      if (value.fitsInLong())
+        return value.asLong();
+      double d = value.asDouble();
+      if (Double.isNaN(d) || Double.isInfinite(d))
+        return null;
+      return d;
+    }
+    if (value.isProxyObject() && value.asProxyObject() instanceof MapProxy)
+      // input data passed through unchanged
+      return om.convertValue(((MapProxy) value.asProxyObject()).map, Object.class);
+    if (value.canExecute())
+      return null;
+    if (value.hasArrayElements()) {
+      List<Object> res = new ArrayList<>((int) value.getArraySize());
+      for (long i = 0; i < value.getArraySize(); i++) {
+        Value item = value.getArrayElement(i);
+        // JSON.stringify writes undefined array elements and functions as null
+        res.add(item.canExecute() ? null : toJava(item));
+      }
+      return res;
+    }
+    if (value.isHostObject() || value.isDate() || value.isProxyObject() || !value.hasMembers()) {
+      Value json = stringify.execute(value);
+      return isUndefined(json) ? null : om.readValue(json.asString(), Object.class);
+    }
+    Map<String, Object> res = new LinkedHashMap<>();
+    for (String key : value.getMemberKeys()) {
+      Value member = value.getMember(key);
+      if (isUndefined(member) || member.canExecute())
+        continue;
+      res.put(key, toJava(member));
+    }
+    return res;
+  }
+}
@@ -1,13 +1,29 @@
 package org.dashjoin.expression.jsonatajs;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.commons.io.IOUtils;
+import org.dashjoin.expression.ExpressionCache;
+import org.eclipse.microprofile.config.ConfigProvider;
 import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
 import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.Source;
 import org.graalvm.polyglot.Value;
 import org.jboss.logmanager.Level;
 import com.api.jsonata4java.expressions.functions.Function;
@@ -22,6 +38,9 @@ import lombok.extern.java.Log;
  * 
  * Expects the node_modules/jsonata folder in classloader resource folder "jsonata".
  * 
+ * Contexts are created on a shared engine and kept in a bounded pool. A context is borrowed for
+ * each evaluation, so it does not matter which (or how many) threads evaluate expressions.
+ * 
  * @author uli
  */
 @Log
@@ -31,38 +50,229 @@ public class JsonataJS {
   protected Value jsonParse;
   protected Value jsonata;
   protected Value stringify;
+  protected JSBridge bridge;
 
-  static ThreadLocal<JsonataJS> instance = new ThreadLocal<>();
+  /**
+   * default number of pooled contexts
+   */
+  public static final int DEFAULT_POOL_SIZE =
+      Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
 
   /**
-   * Returns instance of JsonataJS
-   * 
-   * Creates a separate instance per thread to enable multi-threaded Javascript execution
-   * 
-   * Null when an error occurs (i.e. required classes not on classpath, Javascript engine to bundled
-   * in JVM, etc.)
+   * max time to wait for a pooled context
+   */
+  public static final long TIMEOUT_SECONDS = 60;
+
+  /**
+   * engine shared by all contexts, so the parsed jsonata.js source and the compiled code are shared
+   */
+  static Engine engine;
+
+  /**
+   * host access configuration of the engine
+   */
+  static HostAccess access;
+
+  /**
+   * jsonata.js source
+   */
+  static Source source;
+
+  /**
+   * max number of contexts (dashjoin.jsonata.pool-size)
+   */
+  static int poolSize;
+
+  /**
+   * idle contexts
+   */
+  static final BlockingQueue<JsonataJS> idle = new LinkedBlockingQueue<>();
+
+  /**
+   * number of contexts created so far
+   */
+  static final AtomicInteger created = new AtomicInteger();
+
+  /**
+   * context borrowed by the current thread. Nested evaluations (e.g. functions evaluating
+   * expressions) reuse this context rather than borrowing another one, which could deadlock once
+   * the pool is exhausted
+   */
+  static final ThreadLocal<JsonataJS> current = new ThreadLocal<>();
+
+  /**
+   * number of nested borrows of this context by the current thread
+   */
+  int depth;
+
+  static final LongAdder borrows = new LongAdder();
+  static final LongAdder waits = new LongAdder();
+  static final LongAdder waitNanos = new LongAdder();
+  static final AtomicLong maxWaitNanos = new AtomicLong();
+
+  static Boolean available;
+
+  /**
+   * Checks if the Javascript engine and jsonata.js are available.
    * 
-   * @return Instance, or null if not available
+   * False when an error occurs (i.e. required classes not on classpath, Javascript engine to
+   * bundled in JVM, etc.)
+   */
+  public static synchronized boolean isAvailable() {
+    if (available == null)
+      try {
+        borrow().release();
+        available = true;
+      } catch (Throwable e) {
+        log.warning("Fallback to Jsonata4Java - cannot create Jsonata reference instance: " + e);
+        available = false;
+      }
+    return available;
+  }
+
+  /**
+   * code that runs on a borrowed context
    */
-  public static JsonataJS getInstance() {
-    JsonataJS inst = instance.get();
-    if (inst != null)
-      return inst;
+  public interface Task<T> {
+    T run(JsonataJS js) throws Exception;
+  }
 
+  /**
+   * borrow a context from the pool, run task and return the context. The function bindings of the
+   * context are restored afterwards, since nested evaluations share the context
+   */
+  public static <T> T run(Task<T> task) throws Exception {
+    JsonataJS js = borrow();
+    Map<String, Function> functions = js.functions;
+    Value bindings = js.bindings;
     try {
-      instance.set(new JsonataJS());
+      return task.run(js);
+    } finally {
+      js.functions = functions;
+      js.bindings = bindings;
+      js.release();
+    }
+  }
+
+  /**
+   * get the context of the current thread, an idle context, a new context if the pool is not
+   * exhausted yet, or wait for a context to be returned
+   */
+  static JsonataJS borrow() throws Exception {
+    JsonataJS js = current.get();
+    if (js != null) {
+      js.depth++;
+      return js;
+    }
+
+    borrows.increment();
+    js = idle.poll();
+    if (js == null)
+      js = create();
+    if (js == null) {
+      waits.increment();
+      long start = System.nanoTime();
+      js = idle.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      long wait = System.nanoTime() - start;
+      waitNanos.add(wait);
+      maxWaitNanos.accumulateAndGet(wait, Math::max);
+      if (js == null)
+        throw new TimeoutException(
+            "No JSONata context available after " + TIMEOUT_SECONDS + " seconds");
+    }
+    js.depth = 1;
+    current.set(js);
+    return js;
+  }
+
+  /**
+   * create a new context unless the pool size is reached
+   */
+  static JsonataJS create() throws Exception {
+    int max = poolSize();
+    for (;;) {
+      int count = created.get();
+      if (count >= max)
+        return null;
+      if (created.compareAndSet(count, count + 1))
+        break;
+    }
+    try {
+      return new JsonataJS();
     } catch (Throwable e) {
-      log.warning("Fallback to Jsonata4Java - cannot create Jsonata reference instance: " + e);
-      // e.printStackTrace();
-      return null;
+      created.decrementAndGet();
+      throw e;
     }
-    return getInstance();
   }
 
+  /**
+   * return the context to the pool
+   */
+  void release() {
+    if (--depth > 0)
+      return;
+    current.remove();
+    functions = null;
+    bindings = null;
+    idle.offer(this);
+  }
+
+  static synchronized int poolSize() {
+    if (poolSize == 0)
+      try {
+        poolSize = ConfigProvider.getConfig()
+            .getOptionalValue("dashjoin.jsonata.pool-size", Integer.class)
+            .orElse(DEFAULT_POOL_SIZE);
+      } catch (RuntimeException e) {
+        // no config outside of quarkus
+        poolSize = DEFAULT_POOL_SIZE;
+      }
+    return poolSize;
+  }
+
+  /**
+   * pool statistics: size, contexts in use and time spent waiting for a context
+   */
+  public static Map<String, Object> poolMetrics() {
+    long borrows = JsonataJS.borrows.sum();
+    long waits = JsonataJS.waits.sum();
+    long wait = waitNanos.sum();
+    Map<String, Object> res = new LinkedHashMap<>();
+    res.put("poolSize", poolSize());
+    res.put("created", created.get());
+    res.put("idle", idle.size());
+    res.put("inUse", created.get() - idle.size());
+    res.put("borrows", borrows);
+    res.put("waits", waits);
+    res.put("totalWaitTimeMs", wait / 1000000.0);
+    res.put("averageWaitTimeMs", waits == 0 ? 0.0 : wait / 1000000.0 / waits);
+    res.put("maxWaitTimeMs", maxWaitNanos.get() / 1000000.0);
+    return res;
+  }
+
+  /**
+   * Creates a context on the shared engine and evaluates jsonata.js. Use run() to get a pooled
+   * context
+   */
   public JsonataJS() throws Exception {
     cx = createContext();
     jsonParse = cx.eval("js", "JSON.parse");
     stringify = cx.eval("js", "JSON.stringify");
+    bridge = new JSBridge(cx);
+
+    // evaluate jsonata.js and set reference to variable jsonata
+    cx.eval(source());
+    jsonata = cx.getBindings("js").getMember("jsonata");
+    if (jsonata == null)
+      throw new RuntimeException("Jsonata reference implementation not valid (jsonata.js)");
+  }
+
+  /**
+   * load jsonata.js once
+   */
+  static synchronized Source source() throws IOException {
+    if (source != null)
+      return source;
 
     // We have node_modules/jsonata/* in resource folder jsonata/
     // 1) get version from package.json
@@ -73,16 +283,14 @@ public class JsonataJS {
     }
     log.info("Using JSONata reference version=" + jsonataVersion);
 
-    // 2) parse jsonata.js and set reference to variable jsonata
+    // 2) read jsonata.js, the parsed source is cached by the engine
     String jsonataJs = null;
     try (InputStream jin =
         JsonataJS.class.getClassLoader().getResourceAsStream("jsonata/jsonata.js")) {
       jsonataJs = IOUtils.toString(jin, StandardCharsets.UTF_8);
     }
-    cx.eval("js", jsonataJs);
-    jsonata = cx.getBindings("js").getMember("jsonata");
-    if (jsonata == null)
-      throw new RuntimeException("Jsonata reference implementation not valid (jsonata.js)");
+    source = Source.newBuilder("js", jsonataJs, "jsonata.js").cached(true).build();
+    return source;
   }
 
   Context createContext() {
@@ -95,30 +303,73 @@ public class JsonataJS {
     try {
       Thread.currentThread().setContextClassLoader(ClassLoader.getSystemClassLoader());
 
-      // Configure custom type mappings
-      HostAccess access = HostAccess.newBuilder(HostAccess.EXPLICIT)
-          // map to Long if possible
-          .targetTypeMapping(Long.class, Object.class, null, v -> v)
-          // map to List (fix for #139)
-          .targetTypeMapping(Value.class, Object.class, (v) -> v.hasArrayElements(),
-              (v) -> v.as(List.class))
-          .build();
+      // contexts of an engine must use the same host access instance
+      synchronized (JsonataJS.class) {
+        if (engine == null) {
+          engine = Engine.create();
 
-      return Context.newBuilder().allowHostAccess(access).build();
+          // Configure custom type mappings
+          access = HostAccess.newBuilder(HostAccess.EXPLICIT)
+              // map to Long if possible
+              .targetTypeMapping(Long.class, Object.class, null, v -> v)
+              // map to List (fix for #139)
+              .targetTypeMapping(Value.class, Object.class, (v) -> v.hasArrayElements(),
+                  (v) -> v.as(List.class))
+              .build();
+        }
+      }
+
+      return Context.newBuilder("js").engine(engine).allowHostAccess(access).build();
     } finally {
       Thread.currentThread().setContextClassLoader(quarkusClassLoader);
     }
   }
 
+  /**
+   * statistics of the compiled expression caches of all contexts
+   */
+  public static final ExpressionCache.Metrics metrics = new ExpressionCache.Metrics();
+
+  /**
+   * compiled expressions. Compiled expressions belong to the context of this instance, so each
+   * pooled context has its own cache
+   */
+  protected ExpressionCache<Value> expressions =
+      new ExpressionCache<>(ExpressionCache.CAPACITY, metrics);
+
+  /**
+   * function bindings by function names. The bindings only dispatch to the functions set for the
+   * borrower of this context, so they only need to be built once per set of function names
+   */
+  protected Map<Set<String>, Value> bindingsByNames = new HashMap<>();
+
   public Value jsonata(String expression) {
-    return jsonata.execute(expression);
+    try {
+      return expressions.get(expression, e -> jsonata.execute(e));
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
   }
 
-  static ThreadLocal<Value> bindings = new ThreadLocal<>();
-  static ThreadLocal<Map<String, Function>> functions = new ThreadLocal<>();
+  /**
+   * bindings and functions of the current borrower
+   */
+  protected Value bindings;
+  protected Map<String, Function> functions;
 
   public void initBindings(Map<String, Function> functions) {
-    JsonataJS.functions.set(functions);
+    this.functions = functions;
+    Value bindings = bindingsByNames.get(functions.keySet());
+    if (bindings == null) {
+      bindings = createBindings(functions);
+      bindingsByNames.put(new HashSet<>(functions.keySet()), bindings);
+    }
+    this.bindings = bindings;
+  }
+
+  Value createBindings(Map<String, Function> functions) {
     String s = "(function(x){ return {";
     for (Map.Entry<String, Function> e : functions.entrySet()) {
       String k = e.getKey();
@@ -132,12 +383,11 @@ public class JsonataJS {
     // System.out.println("jsonata function bindings = " + s);
     // bindings =
     // cx.eval("js", "(function(x){ return {'pi':()=>x.pi()}})").execute(cx.asValue(this));
-    Value bindings = cx.eval("js", s).execute(cx.asValue(this));
-    JsonataJS.bindings.set(bindings);
+    return cx.eval("js", s).execute(cx.asValue(this));
   }
 
   public Value getBindings() {
-    return bindings.get();
+    return bindings;
   }
 
   public static ThreadLocal<Object[]> args = new ThreadLocal<>();
@@ -179,7 +429,7 @@ public class JsonataJS {
     if (log.isLoggable(Level.DEBUG))
       log.info("Calling fn " + function + " args=" + Arrays.asList(args));
 
-    Function fn = functions.get().get(function);
+    Function fn = functions.get(function);
     JsonataJS.args.set(args);
     try {
       Object res = fn.invoke(null, null);
@@ -188,7 +438,7 @@ public class JsonataJS {
         log.info("Calling fn " + function + " res=" + res);
 
       if (res instanceof JsonNode) {
-        res = jsonParse.execute(res.toString());
+        res = bridge.toJS(res);
       }
       return res;
     } catch (Throwable ex) {
@@ -208,7 +458,7 @@ public class JsonataJS {
    * @return
    */
   public Value evaluate(Value jsonata, Object data) {
-    return evaluate(jsonata, data, bindings.get());
+    return evaluate(jsonata, data, bindings);
   }
 
   /**
@@ -238,10 +488,27 @@ public class JsonataJS {
     return stringify.execute(v);
   }
 
+  /**
+   * converts Java data to a Javascript value without a JSON text round trip
+   */
+  public Object toJS(Object data) {
+    return bridge.toJS(data);
+  }
+
+  /**
+   * converts a Javascript value to Java without a JSON text round trip
+   */
+  public Object toJava(Value v) throws Exception {
+    return bridge.toJava(v);
+  }
+
   public static void main(String[] args) throws Throwable {
-    JsonataJS js = new JsonataJS();
-    System.out.println(js.jsonata);
-    System.out.println(js.jsonata("$"));
-    System.out.println(js.evaluate(js.jsonata("$sum($)"), js.jsonParse("[1,2,3,4]")));
+    run(js -> {
+      System.out.println(js.jsonata);
+      System.out.println(js.jsonata("$"));
+      System.out.println(js.evaluate(js.jsonata("$sum($)"), js.jsonParse("[1,2,3,4]")));
+      return null;
+    });
+    System.out.println(poolMetrics());
   }
 }
@@ -1,7 +1,8 @@
 package org.dashjoin.function;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Function that allows to reference the row number in a table that is being mapped using JSONata
@@ -14,7 +15,7 @@ public class Index extends AbstractFunction<Void, Long> {
   private static ThreadLocal<Long> counter = new ThreadLocal<>();
 
   // Per-job index counters. If thread-local job ID is set, this counter is used
-  private static Map<String, Long> counterMap = new HashMap<>();
+  private static Map<String, AtomicLong> counterMap = new ConcurrentHashMap<>();
   private static ThreadLocal<String> jobId = new ThreadLocal<>();
 
   public static String getJobID() {
@@ -40,31 +41,47 @@ public class Index extends AbstractFunction<Void, Long> {
       set(0);
   }
 
-  public static synchronized void set(long value) {
+  public static void set(long value) {
     String id = getJobID();
     if (id != null)
-      counterMap.put(id, value);
+      jobCounter(id).set(value);
     else
       counter.set(value);
   }
 
-  public static synchronized long get() {
+  public static long get() {
     String id = getJobID();
     if (id != null)
-      return counterMap.get(id);
+      return jobCounter(id).get();
 
     Long val = counter.get();
     return val != null ? val : 0L;
   }
 
+  static AtomicLong jobCounter(String id) {
+    return counterMap.computeIfAbsent(id, k -> new AtomicLong());
+  }
+
   /**
    * Returns the current counter and increments it atomically
    * 
    * @return
    */
-  public synchronized static long increment() {
+  public static long increment() {
+    return increment(1);
+  }
+
+  /**
+   * Returns the current counter and increments it by count atomically, i.e. reserves the row
+   * numbers [result, result + count)
+   */
+  public static long increment(long count) {
+    String id = getJobID();
+    if (id != null)
+      return jobCounter(id).getAndAdd(count);
+
     long ix = get();
-    set(ix + 1);
+    counter.set(ix + count);
     return ix;
   }
 
@@ -81,6 +98,13 @@ public class Index extends AbstractFunction<Void, Long> {
     returnValue.set(val);
   }
 
+  /**
+   * Removes the return value (on the current thread).
+   */
+  public static void clearReturnValue() {
+    returnValue.remove();
+  }
+
   @Override
   public Long run(Void arg) throws Exception {
     if (returnValue.get() != null)
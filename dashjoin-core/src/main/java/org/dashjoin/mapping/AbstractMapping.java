@@ -27,6 +27,13 @@ public abstract class AbstractMapping<ARG> extends AbstractConfigurableFunction<
   @JsonSchema(title = "Create Schema")
   public Boolean createSchema;
 
+  /**
+   * number of threads used to apply the mappings. The rows are split into partitions that are
+   * mapped in parallel, row order and $index() are preserved. Default is 1 (sequential)
+   */
+  @JsonSchema(title = "Mapping threads")
+  public Integer parallelism;
+
   public abstract Map<String, List<Map<String, Object>>> gather(SecurityContext sc)
       throws Exception;
 }
@@ -3,15 +3,24 @@ package org.dashjoin.mapping;
 import static org.dashjoin.util.MapUtil.of;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.dashjoin.function.Index;
 import org.dashjoin.model.AbstractDatabase;
 import org.dashjoin.model.AbstractDatabase.DeleteBatch;
@@ -21,7 +30,9 @@ import org.dashjoin.model.Property;
 import org.dashjoin.model.Table;
 import org.dashjoin.service.ExMapper;
 import org.dashjoin.service.PojoDatabase;
+import org.dashjoin.service.QueryCache;
 import org.dashjoin.service.ddl.SchemaChange;
+import org.dashjoin.util.MapUtil;
 import org.dashjoin.util.PerfTimer;
 import lombok.extern.java.Log;
 
@@ -62,10 +73,52 @@ public abstract class AbstractSource extends AbstractMapping<Void> {
 
   public static ThreadLocal<Context> context = new ThreadLocal<>();
 
+  /**
+   * number of rows that are mapped and merged at once
+   */
+  public static final int CHUNK_SIZE = 1000;
+
+  /**
+   * threads running gather while the ETL pipeline consumes the rows
+   */
+  static ExecutorService producers;
+
+  static synchronized ExecutorService producers() {
+    if (producers == null) {
+      AtomicInteger count = new AtomicInteger();
+      producers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "dj-etl-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return producers;
+  }
+
   public static class Context {
     // default queue size 1000 - producers have to assure that object size is reasonable
     public BlockingQueue<Object> queue = new LinkedBlockingQueue<>(1000);
-    boolean producerDone;
+    volatile boolean producerDone;
+
+    /**
+     * set if the ETL pipeline drains the queue. Producers block while the queue is full
+     */
+    volatile boolean consumer;
+
+    /**
+     * set if the consumer failed, blocked producers stop
+     */
+    volatile boolean cancelled;
+
+    /**
+     * set if a producer put items into the queue
+     */
+    volatile boolean pushed;
+
+    /**
+     * error of the producer
+     */
+    volatile Exception error;
 
     public void producerDone() {
       producerDone = true;
@@ -77,6 +130,38 @@ public abstract class AbstractSource extends AbstractMapping<Void> {
           return false;
       return true;
     }
+
+    /**
+     * add an item (a row or a map of table names to rows). If the ETL pipeline consumes the queue,
+     * this blocks while the queue is full. Otherwise (preview), false is returned if the queue is
+     * full and the producer should stop
+     */
+    public boolean put(Object item) throws InterruptedException {
+      pushed = true;
+      if (!consumer)
+        return queue.offer(item);
+      while (!queue.offer(item, 100, TimeUnit.MILLISECONDS))
+        if (cancelled)
+          throw new CancellationException("ETL pipeline stopped");
+      return true;
+    }
+
+    /**
+     * get the next item, null if the producer is done and the queue is empty
+     */
+    Object next() throws Exception {
+      for (;;) {
+        // read the flag before polling, so items added before producerDone are not lost
+        boolean done = producerDone;
+        Object item = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (error != null)
+          throw error;
+        if (item != null)
+          return item;
+        if (done)
+          return null;
+      }
+    }
   }
 
   /**
@@ -117,137 +202,376 @@ public abstract class AbstractSource extends AbstractMapping<Void> {
     }
   }
 
-  AbstractDatabase ddl(AbstractDatabase db, Map<String, List<Map<String, Object>>> tables)
-      throws Exception {
-    SchemaChange ddl = db.getSchemaChange();
-    boolean dirty = false;
+  protected Void runInternal(Void arg) throws Exception {
+    return runInternal(arg, true);
+  }
 
-    try {
-      for (Entry<String, List<Map<String, Object>>> table : tables.entrySet()) {
-        if (createSchema != null && createSchema) {
+  /**
+   * gather, map and merge as a pipeline: gather runs on a producer thread and passes the rows via
+   * the bounded context queue. The rows are mapped and merged in chunks, so only the queue, the
+   * current chunk and the merge batches are held in memory. This bound only holds for sources that
+   * stream their rows via Context.put during gather. Sources returning the complete tables from
+   * gather, which includes the built-in ETL and Receive functions, still hold the whole result
+   * while it is passed on in chunks
+   */
+  protected Void runInternal(Void arg, boolean first) throws Exception {
+    if (database == null)
+      throw new Exception("Please provide a database");
 
-          Mapping mapping = mappings == null ? null : mappings.get(table.getKey());
-          if (mapping == null || mapping.pk == null)
-            throw new Exception("No primary key specified for table " + table.getKey());
+    AbstractDatabase db =
+        services.getConfig().getDatabase(services.getDashjoinID() + "/" + database);
 
-          if ("Delete All".equals(oldData)) {
-            try {
-              ddl.dropTable(table.getKey());
-            } catch (Exception mightNotExist) {
-              info("error deleting database: " + table.getKey());
-            }
-            db.tables.remove(table.getKey());
-          }
+    info("running " + ID);
+    PerfTimer timer = new PerfTimer();
+    Context context = new Context();
+    context.consumer = true;
+    Future<?> producer = producers().submit(() -> produce(context));
 
-          if (!db.tables.containsKey(table.getKey())
-              || db.tables.get(table.getKey()).name == null) {
-            // table does not exist of only contains some bootstrapped metadata like dj-label
-            dirty = true;
-            ddl.createTable(table.getKey(), mapping.pk, type(mapping.pk, table.getValue()));
-            for (String col : cols(table.getValue(), true))
-              if (!col.equals(mapping.pk)) {
-                ddl.createColumn(table.getKey(), col, type(col, table.getValue()));
-              }
-          } else {
-            for (String col : cols(table.getValue(), true))
-              if (!db.tables.get(table.getKey()).properties.containsKey(col)) {
-                ddl.createColumn(table.getKey(), col, type(col, table.getValue()));
-                dirty = true;
-              }
-          }
-        } else {
-          if ("Delete All".equals(oldData))
-            db.delete(Table.ofName(table.getKey()));
+    Pipeline pipeline = new Pipeline(db, first, timer);
+    try {
+      Index.reset();
+      Map<String, List<Map<String, Object>>> chunk = new LinkedHashMap<>();
+      int size = 0;
+      for (Object item = context.next(); item != null; item = context.next()) {
+        for (Entry<String, List<Map<String, Object>>> e : convertToMapOfTables(item).entrySet()) {
+          chunk.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).addAll(e.getValue());
+          size += e.getValue().size();
+        }
+        if (size >= CHUNK_SIZE || context.queue.isEmpty()) {
+          pipeline.write(chunk);
+          chunk = new LinkedHashMap<>();
+          size = 0;
         }
       }
+      if (!chunk.isEmpty())
+        pipeline.write(chunk);
+      info("stream: " + timer.seconds());
+      pipeline.complete();
+    } catch (Exception e) {
+      // the producer error is usually the reason the consumer stopped
+      Exception error = context.error;
+      if (error != null && error != e && !(error instanceof CancellationException))
+        e.addSuppressed(error);
+      throw e;
     } finally {
-      if (dirty) {
-        PojoDatabase config = (PojoDatabase) services.getConfig();
-        config.metadataCollection(services.getDashjoinID() + "/" + database);
-        db = services.getConfig().getDatabase(services.getDashjoinID() + "/" + database);
-      }
+      // stop gather if the consumer exits early
+      context.cancelled = true;
+      producer.cancel(true);
     }
-    return db;
+    return null;
   }
 
-  protected Void runInternal(Void arg) throws Exception {
-    return runInternal(arg, true);
+  /**
+   * producer thread: run gather. Rows can be streamed by putting them into the context queue
+   * during gather, otherwise the result of gather is passed on in chunks
+   */
+  void produce(Context context) {
+    AbstractSource.context.set(context);
+    try {
+      Map<String, List<Map<String, Object>>> tables = gather(sc);
+      if (!context.pushed && tables != null)
+        for (Entry<String, List<Map<String, Object>>> table : tables.entrySet()) {
+          List<Map<String, Object>> rows = table.getValue();
+          // pass empty tables, they still need to be created / refreshed
+          for (int i = 0; i == 0 || i < rows.size(); i += CHUNK_SIZE)
+            context.put(MapUtil.of(table.getKey(),
+                new ArrayList<>(rows.subList(i, Math.min(i + CHUNK_SIZE, rows.size())))));
+        }
+    } catch (Exception e) {
+      context.error = e;
+    } finally {
+      AbstractSource.context.remove();
+      context.producerDone();
+    }
   }
 
-  protected Void runInternal(Void arg, boolean first) throws Exception {
-    if (database == null)
-      throw new Exception("Please provide a database");
+  /**
+   * target table of the pipeline
+   */
+  static class Target {
+    Table t;
+    MergeBatch batch;
+    Set<Map<String, Object>> delete = new HashSet<>();
+    int counter;
+  }
 
-    AbstractDatabase db =
-        services.getConfig().getDatabase(services.getDashjoinID() + "/" + database);
+  /**
+   * maps chunks of source rows and merges them into the target tables
+   */
+  class Pipeline {
+
+    AbstractDatabase db;
+    boolean first;
+    PerfTimer timer;
+    Map<String, Target> targets = new LinkedHashMap<>();
+
+    /**
+     * table to column to the type inferred from the rows seen so far (null if all values were
+     * null). Only contains the columns created by this run, they are widened as more rows arrive
+     */
+    Map<String, Map<String, String>> types = new HashMap<>();
+
+    /**
+     * target table to whether its extractColumn contained arrays in any chunk so far
+     */
+    Map<String, Boolean> extracted = new HashMap<>();
+
+    Pipeline(AbstractDatabase db, boolean first, PerfTimer timer) {
+      this.db = db;
+      this.first = first;
+      this.timer = timer;
+    }
 
-    info("running " + ID);
-    PerfTimer timer = new PerfTimer();
-    Map<String, List<Map<String, Object>>> tables = gather(sc);
-    info("gather: " + timer.seconds());
-    for (Entry<String, List<Map<String, Object>>> e : tables.entrySet())
-      info(e.getKey() + ": " + e.getValue().size() + " rows");
-
-    Index.reset();
-    tables = Mapping.apply(expressionService, sc, tables, mappings);
-    info("apply mapping: " + timer.seconds());
-
-    if (first) {
-      db = ddl(db, tables);
-      info("ddl: " + timer.seconds());
+    void write(Map<String, List<Map<String, Object>>> chunk) throws Exception {
+      Map<String, List<Map<String, Object>>> tables = Mapping.apply(expressionService, sc, chunk,
+          mappings, parallelism == null ? 1 : parallelism, extracted);
+
+      if (first) {
+        Map<String, List<Map<String, Object>>> created = new LinkedHashMap<>();
+        Map<String, List<Map<String, Object>>> existing = new LinkedHashMap<>();
+        for (Entry<String, List<Map<String, Object>>> table : tables.entrySet())
+          if (table.getValue() != null)
+            (targets.containsKey(table.getKey()) ? existing : created).put(table.getKey(),
+                table.getValue());
+        AbstractDatabase db = this.db;
+        if (!created.isEmpty())
+          db = ddl(db, created, true);
+        if (!existing.isEmpty() && createSchema != null && createSchema)
+          db = ddl(db, existing, false);
+        if (db != this.db) {
+          // flush the batches, they refer to the old metadata
+          this.db = db;
+          for (Entry<String, Target> target : targets.entrySet()) {
+            target.getValue().batch.complete();
+            target.getValue().t = db.tables.get(target.getKey());
+            target.getValue().batch = db.openMergeBatch(target.getValue().t);
+          }
+        }
+      }
+
+      for (Entry<String, List<Map<String, Object>>> table : tables.entrySet()) {
+        if (table.getValue() == null)
+          continue;
+        Target target = target(table.getKey());
+        for (Map<String, Object> row : table.getValue()) {
+          row.put("_dj_source", ID);
+          db.cast(target.t, row);
+          target.batch.merge(row);
+          if (target.counter++ % 1000 == 0)
+            info((target.counter - 1) + " rows processed");
+
+          // successful update: do not delete
+          // move PKs to row to search
+          Map<String, Object> search = new HashMap<>();
+          for (Property p : target.t.properties.values())
+            if (p.pkpos != null)
+              search.put(p.name, row.get(p.name));
+
+          target.delete.remove(search);
+        }
+      }
+    }
+
+    /**
+     * create missing tables and columns and widen the types of the columns created by this run.
+     * Data from previous runs is handled when the table is created or first written to (initial)
+     */
+    AbstractDatabase ddl(AbstractDatabase db, Map<String, List<Map<String, Object>>> tables,
+        boolean initial) throws Exception {
+      SchemaChange ddl = db.getSchemaChange();
+      boolean dirty = false;
+      boolean flushed = false;
+
+      try {
+        for (Entry<String, List<Map<String, Object>>> table : tables.entrySet()) {
+          if (createSchema != null && createSchema) {
+
+            Mapping mapping = mappings == null ? null : mappings.get(table.getKey());
+            if (mapping == null || mapping.pk == null)
+              throw new Exception("No primary key specified for table " + table.getKey());
+
+            if (initial && "Delete All".equals(oldData)) {
+              try {
+                ddl.dropTable(table.getKey());
+              } catch (Exception mightNotExist) {
+                info("error deleting database: " + table.getKey());
+              }
+              db.tables.remove(table.getKey());
+            }
+
+            Map<String, String> created =
+                types.computeIfAbsent(table.getKey(), k -> new HashMap<>());
+            if (!db.tables.containsKey(table.getKey())
+                || db.tables.get(table.getKey()).name == null) {
+              // table does not exist of only contains some bootstrapped metadata like dj-label
+              dirty = true;
+              ddl.createTable(table.getKey(), mapping.pk, type(mapping.pk, table.getValue()));
+              for (String col : cols(table.getValue(), true))
+                if (!col.equals(mapping.pk)) {
+                  String type = infer(col, table.getValue());
+                  ddl.createColumn(table.getKey(), col, type == null ? "string" : type);
+                  created.put(col, type);
+                }
+            } else {
+              for (String col : cols(table.getValue(), true))
+                if (!db.tables.get(table.getKey()).properties.containsKey(col)) {
+                  String type = infer(col, table.getValue());
+                  ddl.createColumn(table.getKey(), col, type == null ? "string" : type);
+                  created.put(col, type);
+                  dirty = true;
+                } else if (created.containsKey(col)) {
+                  String old = created.get(col);
+                  String type = widen(old, infer(col, table.getValue()));
+                  if (Objects.equals(old, type))
+                    continue;
+                  created.put(col, type);
+                  if (type.equals(old == null ? "string" : old))
+                    continue;
+                  if (!flushed) {
+                    // write the pending rows before changing the column type
+                    flush();
+                    flushed = true;
+                  }
+                  ddl.alterColumn(table.getKey(), col, type);
+                  dirty = true;
+                }
+            }
+          } else {
+            if (initial && "Delete All".equals(oldData))
+              db.delete(Table.ofName(table.getKey()));
+          }
+        }
+      } finally {
+        if (dirty) {
+          // tables were created, dropped or altered
+          QueryCache.invalidate(database);
+          PojoDatabase config = (PojoDatabase) services.getConfig();
+          config.metadataCollection(services.getDashjoinID() + "/" + database);
+          db = services.getConfig().getDatabase(services.getDashjoinID() + "/" + database);
+        }
+      }
+      return db;
     }
 
-    for (Entry<String, List<Map<String, Object>>> table : tables.entrySet()) {
-      Table t = db.tables.get(table.getKey());
+    /**
+     * write the rows of all merge batches
+     */
+    void flush() throws Exception {
+      for (Target target : targets.values()) {
+        target.batch.complete();
+        target.batch = db.openMergeBatch(target.t);
+      }
+    }
+
+    /**
+     * open the merge batch and collect the IDs of the previous run
+     */
+    Target target(String table) throws Exception {
+      Target target = targets.get(table);
+      if (target != null)
+        return target;
+
+      target = new Target();
+      target.t = db.tables.get(table);
 
-      if (t == null)
-        throw new Exception("Table '" + table.getKey()
-            + "' does not exist. Change the mapping or select 'create schema'.");
+      if (target.t == null)
+        throw new Exception(
+            "Table '" + table + "' does not exist. Change the mapping or select 'create schema'.");
 
       // IDs of the previous run
-      Set<Map<String, Object>> delete = new HashSet<>();
-      if ("Refresh".equals(oldData))
-        for (Map<String, Object> row : db.all(t, null, null, null, false, of("_dj_source", ID))) {
+      if ("Refresh".equals(oldData)) {
+        for (Map<String, Object> row : db.all(target.t, null, null, null, false,
+            of("_dj_source", ID))) {
           Map<String, Object> search = new HashMap<>();
-          for (Property p : t.properties.values())
+          for (Property p : target.t.properties.values())
             if (p.pkpos != null)
               search.put(p.name, row.remove(p.name));
-          delete.add(search);
-          info("check data from prev run: " + timer.seconds());
+          target.delete.add(search);
         }
-
-      int counter = 0;
-      MergeBatch mbatch = db.openMergeBatch(t);
-      for (Map<String, Object> row : table.getValue()) {
-        row.put("_dj_source", ID);
-        db.cast(t, row);
-        mbatch.merge(row);
-        if (counter++ % 1000 == 0)
-          info((counter - 1) + " rows processed");
-
-        // successful update: do not delete
-        // move PKs to row to search
-        Map<String, Object> search = new HashMap<>();
-        for (Property p : t.properties.values())
-          if (p.pkpos != null)
-            search.put(p.name, row.get(p.name));
-
-        delete.remove(search);
+        info("check data from prev run: " + timer.seconds());
       }
-      mbatch.complete();
-      info("merge: " + timer.seconds());
 
-      DeleteBatch batch = db.openDeleteBatch(t);
-      for (Map<String, Object> d : delete) {
-        db.cast(t, d);
-        batch.delete(d);
+      target.batch = db.openMergeBatch(target.t);
+      targets.put(table, target);
+      return target;
+    }
+
+    /**
+     * flush the merge batches and delete the data of the previous run that was not merged. The
+     * cached query results on the target tables are dropped, also if writing a batch fails
+     */
+    void complete() throws Exception {
+      // single chunks may lack arrays, the source as a whole must contain some
+      for (Entry<String, Boolean> e : extracted.entrySet())
+        if (!e.getValue())
+          throw Mapping.noArrays(mappings.get(e.getKey()));
+
+      try {
+        for (Target target : targets.values()) {
+          target.batch.complete();
+          info(target.t.name + ": " + target.counter + " rows");
+          info("merge: " + timer.seconds());
+
+          DeleteBatch batch = db.openDeleteBatch(target.t);
+          for (Map<String, Object> d : target.delete) {
+            db.cast(target.t, d);
+            batch.delete(d);
+          }
+          batch.complete();
+          info("delete: " + timer.seconds());
+          info("done " + ID);
+        }
+      } finally {
+        for (String table : targets.keySet())
+          QueryCache.invalidate(database, table);
       }
-      batch.complete();
-      info("delete: " + timer.seconds());
-      info("done " + ID);
     }
+  }
 
-    return null;
+  @SuppressWarnings("unchecked")
+  public Map<String, List<Map<String, Object>>> convertToMapOfTables(Object res) {
+    if (res instanceof List<?>)
+      if (isTable((List<?>) res))
+        return MapUtil.of("table", (List<Map<String, Object>>) res);
+      else {
+        List<Map<String, Object>> table = new ArrayList<>();
+        for (Object item : (List<?>) res)
+          table.add(MapUtil.of("column", item));
+        return MapUtil.of("table", table);
+      }
+    else if (res instanceof Map<?, ?>)
+      if (isMapOfTables((Map<?, ?>) res))
+        return (Map<String, List<Map<String, Object>>>) res;
+      else
+        return MapUtil.of("table", new ArrayList<>(Arrays.asList((Map<String, Object>) res)));
+    else
+      return MapUtil.of("table", new ArrayList<>(Arrays.asList(MapUtil.of("column", res))));
+  }
+
+  /**
+   * is value a table or just an array of values?
+   */
+  boolean isTable(List<?> value) {
+    for (Object row : (List<?>) value)
+      if (!(row instanceof Map<?, ?>))
+        return false;
+    return true;
+  }
+
+  /**
+   * is value a map of tables or just an object?
+   */
+  boolean isMapOfTables(Map<?, ?> value) {
+    for (Entry<?, ?> e : value.entrySet()) {
+      if (!(e.getKey() instanceof String))
+        return false;
+      if (e.getValue() instanceof List<?>) {
+        if (!isTable((List<?>) e.getValue()))
+          return false;
+      } else
+        return false;
+    }
+    return true;
   }
 
   /**
@@ -272,33 +596,65 @@ public abstract class AbstractSource extends AbstractMapping<Void> {
    * inspect the table and detect the datatype of the specified column
    */
   public static String type(String pk, List<Map<String, Object>> table) {
+    String type = infer(pk, table);
+    return type == null ? "string" : type;
+  }
+
+  /**
+   * like type, but returns null if the column only contains null values
+   */
+  static String infer(String pk, List<Map<String, Object>> table) {
     if ("_dj_source".equals(pk))
       return "string";
+    String res = null;
     for (Map<String, Object> row : table) {
-      Object o = row.get(pk);
-      if (o != null) {
-        if (o instanceof String) {
-          try {
-            DateTimeFormatter.ISO_DATE_TIME.parse((String) o);
-            return "date";
-          } catch (Exception e) {
-            return "string";
-          }
-        }
-        if (o instanceof Date)
-          return "date";
-        if (o instanceof Integer)
-          return "integer";
-        if (o instanceof Boolean)
-          return "boolean";
-        if (o instanceof Number)
-          return "number";
-        if (o instanceof List)
-          return "array";
-        if (o instanceof Map)
-          return "object";
+      res = widen(res, typeOf(row.get(pk)));
+      // string holds any value
+      if ("string".equals(res))
+        break;
+    }
+    return res;
+  }
+
+  /**
+   * datatype of the value, null for null
+   */
+  static String typeOf(Object o) {
+    if (o == null)
+      return null;
+    if (o instanceof String) {
+      try {
+        DateTimeFormatter.ISO_DATE_TIME.parse((String) o);
+        return "date";
+      } catch (Exception e) {
+        return "string";
       }
     }
+    if (o instanceof Date)
+      return "date";
+    if (o instanceof Integer)
+      return "integer";
+    if (o instanceof Boolean)
+      return "boolean";
+    if (o instanceof Number)
+      return "number";
+    if (o instanceof List)
+      return "array";
+    if (o instanceof Map)
+      return "object";
+    return null;
+  }
+
+  /**
+   * type that can hold the values of both types (null meaning no values seen yet)
+   */
+  static String widen(String a, String b) {
+    if (a == null)
+      return b;
+    if (b == null || a.equals(b))
+      return a;
+    if ((a.equals("integer") || a.equals("number")) && (b.equals("integer") || b.equals("number")))
+      return "number";
     return "string";
   }
 
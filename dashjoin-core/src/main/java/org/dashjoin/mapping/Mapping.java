@@ -5,6 +5,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.ws.rs.core.SecurityContext;
 import org.dashjoin.expression.ExpressionService;
 import org.dashjoin.expression.ExpressionService.ParsedExpression;
@@ -106,10 +111,32 @@ public class Mapping {
   /**
    * apply a set of mappings to a set of tables
    */
-  @SuppressWarnings("unchecked")
   public static Map<String, List<Map<String, Object>>> apply(ExpressionService expressionService,
       SecurityContext sc, Map<String, List<Map<String, Object>>> sources,
       Map<String, Mapping> mappings) throws Exception {
+    return apply(expressionService, sc, sources, mappings, 1);
+  }
+
+  /**
+   * apply a set of mappings to a set of tables. If parallelism is greater than 1, the rows of each
+   * table are split into partitions that are mapped by the worker pool
+   */
+  public static Map<String, List<Map<String, Object>>> apply(ExpressionService expressionService,
+      SecurityContext sc, Map<String, List<Map<String, Object>>> sources,
+      Map<String, Mapping> mappings, int parallelism) throws Exception {
+    return apply(expressionService, sc, sources, mappings, parallelism, null);
+  }
+
+  /**
+   * apply a set of mappings to a chunk of the source tables. If extracted is set, a source without
+   * arrays in the extractColumn is not an error. Instead, extracted records per target table
+   * whether any array was found, so the caller can check this once all chunks are mapped
+   */
+  @SuppressWarnings("unchecked")
+  public static Map<String, List<Map<String, Object>>> apply(ExpressionService expressionService,
+      SecurityContext sc, Map<String, List<Map<String, Object>>> sources,
+      Map<String, Mapping> mappings, int parallelism, Map<String, Boolean> extracted)
+      throws Exception {
     if (mappings == null)
       return sources;
     Map<String, List<Map<String, Object>>> res = new LinkedHashMap<>();
@@ -140,21 +167,31 @@ public class Mapping {
               }
             }
           }
-          if (tmp.isEmpty())
-            throw new EvaluateException("Column " + mapping.getValue().extractColumn
-                + " does not contain arrays to extract");
+          if (extracted != null)
+            extracted.merge(mapping.getKey(), !tmp.isEmpty(), Boolean::logicalOr);
+          else if (tmp.isEmpty())
+            throw noArrays(mapping.getValue());
           source = tmp;
         }
 
+        long t0 = System.currentTimeMillis();
+        Log.debug("Mapping started #records=" + source.size());
+
+        // mappings evaluated by a worker (e.g. $call of an ETL job) run on the calling thread
+        if (Math.min(parallelism, source.size()) > 1 && !worker.get()) {
+          List<Map<String, Object>> mapped =
+              applyParallel(expressionService, sc, mapping.getValue(), source, parallelism);
+          Log.debug("Mapping done #records=" + source.size());
+          res.put(mapping.getKey(), mapped);
+          continue;
+        }
+
         List<Map<String, Object>> mapped = new ArrayList<>();
         ParsedExpression filter = mapping.getValue().rowFilter == null ? null
             : expressionService.prepare(sc, mapping.getValue().rowFilter);
         ParsedExpression rowMapping = mapping.getValue().rowMapping() == null ? null
             : expressionService.prepare(sc, mapping.getValue().rowMapping());
 
-        long t0 = System.currentTimeMillis();
-        Log.debug("Mapping started #records=" + source.size());
-
         int counter = 0;
         for (Map<String, Object> row : source) {
           long ix = Index.increment();
@@ -177,4 +214,105 @@ public class Mapping {
     }
     return res;
   }
+
+  /**
+   * error if the extractColumn of the source does not contain any arrays
+   */
+  public static EvaluateException noArrays(Mapping mapping) {
+    return new EvaluateException(
+        "Column " + mapping.extractColumn + " does not contain arrays to extract");
+  }
+
+  /**
+   * max number of mapping worker threads
+   */
+  public static final int MAX_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * worker pool shared by all mapping jobs
+   */
+  static ExecutorService workers;
+
+  /**
+   * true on mapping worker threads
+   */
+  static final ThreadLocal<Boolean> worker = ThreadLocal.withInitial(() -> false);
+
+  static synchronized ExecutorService workers() {
+    if (workers == null) {
+      AtomicInteger count = new AtomicInteger();
+      workers = Executors.newFixedThreadPool(MAX_PARALLELISM, r -> {
+        Thread thread = new Thread(r, "dj-mapping-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return workers;
+  }
+
+  /**
+   * split the rows into partitions and map them on the worker pool. The row numbers of all rows
+   * are reserved up front, so row i sees the same $index() as in a sequential run. The partition
+   * results are concatenated in order
+   */
+  static List<Map<String, Object>> applyParallel(ExpressionService expressionService,
+      SecurityContext sc, Mapping mapping, List<Map<String, Object>> source, int parallelism)
+      throws Exception {
+    long first = Index.increment(source.size());
+    int partitions = Math.min(Math.min(parallelism, MAX_PARALLELISM), source.size());
+    int size = (source.size() + partitions - 1) / partitions;
+    AtomicInteger counter = new AtomicInteger();
+
+    List<Future<List<Map<String, Object>>>> futures = new ArrayList<>();
+    for (int start = 0; start < source.size(); start += size) {
+      int from = start;
+      int to = Math.min(start + size, source.size());
+      futures.add(workers().submit(() -> {
+        worker.set(true);
+        try {
+          // parsed expressions keep evaluation state, prepare them for this thread
+          ParsedExpression filter = mapping.rowFilter == null ? null
+              : expressionService.prepare(sc, mapping.rowFilter);
+          ParsedExpression rowMapping = mapping.rowMapping() == null ? null
+              : expressionService.prepare(sc, mapping.rowMapping());
+
+          List<Map<String, Object>> mapped = new ArrayList<>(to - from);
+          for (int i = from; i < to; i++) {
+            Index.setReturnValue(first + i);
+            Map<String, Object> mappedRow =
+                apply(expressionService, filter, rowMapping, source.get(i));
+            if (mappedRow != null)
+              mapped.add(mappedRow);
+            counter.incrementAndGet();
+          }
+          return mapped;
+        } finally {
+          Index.clearReturnValue();
+          worker.remove();
+        }
+      }));
+    }
+
+    List<Map<String, Object>> res = new ArrayList<>(source.size());
+    try {
+      long t0 = System.currentTimeMillis();
+      for (Future<List<Map<String, Object>>> future : futures) {
+        res.addAll(future.get());
+        long t = System.currentTimeMillis();
+        if (t - t0 >= 1000) {
+          Log.info("Mapping in progress #records=" + counter.get());
+          t0 = t;
+        }
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception)
+        throw (Exception) e.getCause();
+      throw e;
+    } finally {
+      // stop partitions that did not start yet if one of them failed
+      for (Future<List<Map<String, Object>>> future : futures)
+        future.cancel(false);
+    }
+    return res;
+  }
 }
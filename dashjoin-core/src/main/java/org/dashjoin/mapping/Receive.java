@@ -40,6 +40,7 @@ public class Receive extends AbstractMapping<Object> {
     etl.mappings = mappings;
     etl.createSchema = createSchema;
     etl.database = database;
+    etl.parallelism = parallelism;
     return etl.runInternal(null);
   }
 
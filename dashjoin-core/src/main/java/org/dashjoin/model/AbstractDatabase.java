@@ -1,6 +1,8 @@
 package org.dashjoin.model;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -17,6 +19,7 @@ import org.dashjoin.service.Data.Resource;
 import org.dashjoin.service.Data.SearchResult;
 import org.dashjoin.service.Database;
 import org.dashjoin.service.PojoDatabase;
+import org.dashjoin.service.SearchIndex;
 import org.dashjoin.service.Services;
 import org.dashjoin.util.Template;
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -30,7 +33,7 @@ import com.google.common.collect.ImmutableMap;
 @JsonSchema(required = {"name"}, layout = "vertical",
     order = {"djClassName", "name", "readRoles", "writeRoles"},
     computed = "{ \"ID\": \"\\\"dj/\\\" & name\" }")
-public abstract class AbstractDatabase implements Database {
+public abstract class AbstractDatabase implements Database, Cloneable {
 
   private static final ObjectMapper objectMapper = new ObjectMapper();
 
@@ -87,6 +90,22 @@ public abstract class AbstractDatabase implements Database {
   @JsonIgnore
   protected Services services;
 
+  /**
+   * shallow copy with its own tables map, so callers can add or remove tables without affecting
+   * other users of this instance. Everything else is shared, the Table and Property objects of
+   * the databases returned by the config must be treated as read only
+   */
+  public AbstractDatabase copy() {
+    try {
+      AbstractDatabase res = (AbstractDatabase) clone();
+      if (tables != null)
+        res.tables = new LinkedHashMap<>(tables);
+      return res;
+    } catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public void init(Services services) {
     Preconditions.checkNotNull(services);
     this.services = services;
@@ -100,9 +119,9 @@ public abstract class AbstractDatabase implements Database {
   @Override
   public List<SearchResult> search(@Context SecurityContext sc, String search, Integer limit)
       throws Exception {
-    // TODO: only brute force search for now
-    List<SearchResult> ret = new ArrayList<>();
-    for (Table t : services.getConfig().searchTables(this)) {
+    Collection<Table> all = services.getConfig().searchTables(this);
+    List<Table> tables = new ArrayList<>();
+    for (Table t : all) {
 
       try {
         ACLContainerRequestFilter.check(sc, this, t);
@@ -114,6 +133,17 @@ public abstract class AbstractDatabase implements Database {
       if ("dj-query-performance".equals(t.name))
         continue;
 
+      tables.add(t);
+    }
+
+    SearchIndex searchIndex = SearchIndex.get(this);
+    searchIndex.refresh(this, all);
+    if (searchIndex.isReady())
+      return searchIndex.search(search, limit, tables);
+
+    // brute force search until the index is filled or if the database is too large to index
+    List<SearchResult> ret = new ArrayList<>();
+    for (Table t : tables) {
       for (Map<String, Object> res : all(t, null, null, null, false, null)) {
         for (Entry<String, Object> e : res.entrySet()) {
           if (e.getValue() != null
@@ -268,6 +298,71 @@ public abstract class AbstractDatabase implements Database {
       create(m, object);
   }
 
+  /**
+   * read the records identified by the searches. Returns the records in the order of the searches,
+   * null if a record does not exist. The default implementation reads the records one by one
+   */
+  public List<Map<String, Object>> readMany(Table s, List<Map<String, Object>> searches)
+      throws Exception {
+    List<Map<String, Object>> res = new ArrayList<>();
+    for (Map<String, Object> search : searches)
+      res.add(read(s, search));
+    return res;
+  }
+
+  /**
+   * records of table s whose column holds one of the values, used to follow links from many records
+   * at once. The default implementation runs one query per value
+   */
+  public List<Map<String, Object>> allIn(Table s, String column, List<Object> values)
+      throws Exception {
+    List<Map<String, Object>> res = new ArrayList<>();
+    for (Object value : values) {
+      Map<String, Object> search = new HashMap<>();
+      search.put(column, value);
+      res.addAll(all(s, null, null, null, false, search));
+    }
+    return res;
+  }
+
+  /**
+   * string used to match the rows returned by batched reads (readMany, allIn) to the requested
+   * values. Both sides are cast to the column type and numbers are compared by value, so 1, 1.0
+   * and "1" match
+   */
+  public String matchKey(Table s, String column, Object value) {
+    Property p = s.properties == null ? null : s.properties.get(column);
+    Object v = p == null ? value : cast(p, value);
+    if (v instanceof Number)
+      try {
+        return new BigDecimal(v.toString()).stripTrailingZeros().toPlainString();
+      } catch (NumberFormatException e) {
+        // NaN, infinity
+      }
+    return "" + v;
+  }
+
+  /**
+   * name of the primary key column if the table has a single column key and all searches contain
+   * only this column, null otherwise
+   */
+  protected static String singleKey(Table s, List<Map<String, Object>> searches) {
+    String res = null;
+    if (s.properties != null)
+      for (Property p : s.properties.values())
+        if (p.pkpos != null) {
+          if (res != null)
+            return null;
+          res = p.name;
+        }
+    if (res == null)
+      return null;
+    for (Map<String, Object> search : searches)
+      if (search.size() != 1 || search.get(res) == null)
+        return null;
+    return res;
+  }
+
   /**
    * default implementation for bulk merge
    */
@@ -451,16 +546,7 @@ public abstract class AbstractDatabase implements Database {
         if (s.properties != null)
           for (Property p : s.properties.values())
             if (pk.equals(p.items == null ? p.ref : p.items.ref)) {
-              Map<String, Object> search = new HashMap<>();
-              search.put(p.name, objectId);
-              d.cast(s, search);
-              for (Map<String, Object> match : d.all(s, offset, limit, null, false, search)) {
-                Origin o = new Origin();
-                o.id = Resource.of(d, s, match);
-                o.fk = p.ID;
-                o.pk = pk;
-                res.add(o);
-              }
+              res.addAll(incoming(s, p, objectId, offset, limit, pk));
               if (timeout != null)
                 if (System.currentTimeMillis() - start > timeout)
                   return res;
@@ -470,4 +556,23 @@ public abstract class AbstractDatabase implements Database {
     }
     return res;
   }
+
+  /**
+   * records of table s whose fk column p points to objectId
+   */
+  public List<Origin> incoming(Table s, Property p, String objectId, Integer offset, Integer limit,
+      String pk) throws Exception {
+    List<Origin> res = new ArrayList<>();
+    Map<String, Object> search = new HashMap<>();
+    search.put(p.name, objectId);
+    cast(s, search);
+    for (Map<String, Object> match : all(s, offset, limit, null, false, search)) {
+      Origin o = new Origin();
+      o.id = Resource.of(this, s, match);
+      o.fk = p.ID;
+      o.pk = pk;
+      res.add(o);
+    }
+    return res;
+  }
 }
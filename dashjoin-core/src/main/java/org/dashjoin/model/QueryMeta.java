@@ -42,6 +42,11 @@ public class QueryMeta {
    */
   public Map<String, Object> arguments;
 
+  /**
+   * if set, read query results are cached for the given number of milliseconds (see QueryCache)
+   */
+  public Integer cacheTtlMs;
+
   public static QueryMeta ofQuery(String query) {
     QueryMeta t = new QueryMeta();
     t.query = query;
@@ -26,7 +26,8 @@ public interface Config {
   AbstractDatabase getConfigDatabase() throws Exception;
 
   /**
-   * get database by id
+   * get database by id. The tables map belongs to the caller, the Table and Property objects are
+   * shared and must not be changed
    */
   AbstractDatabase getDatabase(String dj) throws Exception;
 
@@ -41,15 +42,20 @@ public interface Config {
   AbstractFunction<Object, Object> getFunction(String id) throws Exception;
 
   /**
-   * get query from catalog
+   * get query from catalog. The result is shared and must not be changed
    */
   QueryMeta getQueryMeta(String queryId) throws Exception;
 
   /**
-   * get a table from the db schemata
+   * get a table from the db schemata. The result is shared and must not be changed
    */
   Table getSchema(String clazz) throws Exception;
 
+  /**
+   * get the reverse foreign key index of all databases
+   */
+  ReferenceIndex getReferences() throws Exception;
+
   /**
    * add provider DB to inject DB metadata
    */
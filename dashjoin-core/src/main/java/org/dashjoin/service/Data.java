@@ -3,18 +3,30 @@ package org.dashjoin.service;
 import static org.dashjoin.service.ACLContainerRequestFilter.Operation.CREATE;
 import static org.dashjoin.service.ACLContainerRequestFilter.Operation.DELETE;
 import static org.dashjoin.service.ACLContainerRequestFilter.Operation.UPDATE;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.NotAuthorizedException;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
@@ -25,6 +37,7 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
 import org.dashjoin.expression.ExpressionService;
 import org.dashjoin.function.AbstractDatabaseTrigger;
 import org.dashjoin.function.AbstractFunction;
@@ -33,6 +46,8 @@ import org.dashjoin.model.AbstractDatabase;
 import org.dashjoin.model.Property;
 import org.dashjoin.model.QueryMeta;
 import org.dashjoin.model.Table;
+import org.dashjoin.service.Database.RowConsumer;
+import org.dashjoin.service.ReferenceIndex.Reference;
 import org.dashjoin.util.Escape;
 import org.dashjoin.util.MapUtil;
 import org.dashjoin.util.OpenCypherQuery;
@@ -40,6 +55,10 @@ import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.media.Schema;
 import org.eclipse.microprofile.openapi.annotations.parameters.Parameter;
 import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import lombok.extern.java.Log;
 
 /**
@@ -76,7 +95,9 @@ public class Data {
   }
 
   /**
-   * searches all databases
+   * searches all databases. The databases are searched in parallel, results are returned in the
+   * order they arrive. Databases that do not answer within the search timeout are cancelled and
+   * reported via a timeout marker
    */
   @GET
   @Path("/search/{search}")
@@ -84,7 +105,10 @@ public class Data {
   @APIResponse(description = "Tabular query result (list of JSON objects)")
   public List<SearchResult> search(@Context SecurityContext sc, @PathParam("search") String search,
       @QueryParam("limit") Integer limit) throws Exception {
-    List<SearchResult> res = new ArrayList<>();
+    long deadline = SearchWorkers.deadline(services.getConfig().getSearchTimeoutMs());
+    CompletionService<List<SearchResult>> cs =
+        new ExecutorCompletionService<>(SearchWorkers.databases());
+    Map<Future<List<SearchResult>>, AbstractDatabase> tasks = new LinkedHashMap<>();
     for (AbstractDatabase db : services.getConfig().getDatabases()) {
       try {
         if (db instanceof PojoDatabase)
@@ -99,17 +123,48 @@ public class Data {
           continue;
         String searchQuery = services.getConfig().databaseSearchQuery(db);
 
-        List<SearchResult> tmp =
-            searchQuery == null ? db.search(sc, search, limit == null ? null : limit - res.size())
-                : searchQuery(sc, db, searchQuery, search);
-        if (tmp != null)
-          res.addAll(tmp);
-        if (limit != null && res.size() >= limit)
-          return res;
+        tasks.put(cs.submit(() -> searchQuery == null ? db.search(sc, search, limit, deadline)
+            : searchQuery(sc, db, searchQuery, search)), db);
       } catch (Exception e) {
         // ignore exception on a single DB
       }
     }
+
+    List<SearchResult> res = new ArrayList<>();
+    int found = 0;
+    boolean timeout = false;
+    try {
+      for (int i = 0; i < tasks.size() && (limit == null || found < limit); i++) {
+        Future<List<SearchResult>> next = SearchWorkers.next(cs, deadline);
+        if (next == null) {
+          timeout = true;
+          break;
+        }
+        List<SearchResult> tmp;
+        try {
+          tmp = next.get();
+        } catch (ExecutionException e) {
+          // ignore exception on a single DB
+          continue;
+        }
+        if (tmp != null)
+          for (SearchResult r : tmp)
+            if (r.timeout != null)
+              res.add(r);
+            else if (limit == null || found < limit) {
+              res.add(r);
+              found++;
+            }
+      }
+    } finally {
+      // cancel databases that are still running, once the limit is reached or time is up
+      for (Entry<Future<List<SearchResult>>, AbstractDatabase> task : tasks.entrySet())
+        if (!task.getKey().isDone()) {
+          task.getKey().cancel(true);
+          if (timeout)
+            res.add(SearchResult.timeout(task.getValue().name, null));
+        }
+    }
     return res;
   }
 
@@ -213,7 +268,9 @@ public class Data {
     } else {
       // delegate to DB
       Database db = services.getConfig().getDatabase(dj(database));
-      List<Map<String, Object>> res = db.queryGraph(info, arguments);
+      Map<String, Object> args = arguments;
+      List<Map<String, Object>> res =
+          QueryCache.get(sc, database, db, info, args, true, () -> db.queryGraph(info, args));
       if (res == null) {
         // null means that the delegate DB does not support graph queries - default to internal
         // engine (like with database='*')
@@ -253,7 +310,87 @@ public class Data {
 
     ACLContainerRequestFilter.check(sc, info);
     Database db = services.getConfig().getDatabase(dj(database));
-    return db.query(info, arguments);
+    Map<String, Object> args = arguments;
+    List<Map<String, Object>> res =
+        QueryCache.get(sc, database, db, info, args, false, () -> db.query(info, args));
+    if ("write".equals(info.type))
+      invalidate(database, db, info);
+    return res;
+  }
+
+  /**
+   * drop the cached results of queries reading the tables written by the query
+   */
+  void invalidate(String database, Database db, QueryMeta info) {
+    Set<String> tables = QueryCache.tables(db, info.query);
+    if (tables == null)
+      QueryCache.invalidate(database);
+    else
+      for (String table : tables)
+        QueryCache.invalidate(database, table);
+  }
+
+  /**
+   * like query, but returns the column names once followed by the rows as arrays. Selected via the
+   * accept header
+   */
+  @POST
+  @Path("/query/{database}/{queryId}")
+  @Produces(COLUMNAR_QS)
+  @Operation(
+      summary = "like query, but returns the column names once followed by the rows as arrays. Selected via the accept header")
+  @APIResponse(description = "Tabular query result (column names and row arrays)")
+  public Columnar queryColumnar(@Context SecurityContext sc,
+      @Parameter(description = "database name to run the operation on",
+          example = "northwind") @PathParam("database") String database,
+      @PathParam("queryId") String queryId, Map<String, Object> arguments) throws Exception {
+    if (arguments == null)
+      arguments = new HashMap<>();
+    QueryMeta info = services.getConfig().getQueryMeta(queryId);
+    if (info == null)
+      throw new Exception("Query " + queryId + " not found");
+
+    if (info.cacheTtlMs != null)
+      return Columnar.of(queryInternal(sc, database, queryId, arguments, false));
+
+    ACLContainerRequestFilter.check(sc, info);
+    Database db = services.getConfig().getDatabase(dj(database));
+    try {
+      return db.queryColumnar(info, arguments);
+    } finally {
+      if ("write".equals(info.type))
+        invalidate(database, db, info);
+    }
+  }
+
+  /**
+   * like query, but streams the result as newline delimited JSON while it is read from the database
+   */
+  @POST
+  @Path("/stream/query/{database}/{queryId}")
+  @Produces(NDJSON)
+  @Operation(
+      summary = "like query, but streams the result as newline delimited JSON while it is read from the database")
+  @APIResponse(description = "Tabular query result (one JSON object per line)")
+  public StreamingOutput streamQuery(@Context SecurityContext sc,
+      @Parameter(description = "database name to run the operation on",
+          example = "northwind") @PathParam("database") String database,
+      @PathParam("queryId") String queryId, Map<String, Object> arguments) throws Exception {
+    Map<String, Object> args = arguments == null ? new HashMap<>() : arguments;
+    QueryMeta info = services.getConfig().getQueryMeta(queryId);
+    if (info == null)
+      throw new Exception("Query " + queryId + " not found");
+
+    ACLContainerRequestFilter.check(sc, info);
+    Database db = services.getConfig().getDatabase(dj(database));
+    return out -> {
+      try {
+        ndjson(out, consumer -> db.streamQuery(info, args, consumer));
+      } finally {
+        if ("write".equals(info.type))
+          invalidate(database, db, info);
+      }
+    };
   }
 
   /**
@@ -301,8 +438,129 @@ public class Data {
     return db.all(m, offset, limit, sort, descending, arguments);
   }
 
+  /**
+   * like all, but returns the column names once followed by the rows as arrays. Selected via the
+   * accept header
+   */
+  @POST
+  @Path("/all/{database}/{table}")
+  @Produces(COLUMNAR_QS)
+  @Operation(
+      summary = "like all, but returns the column names once followed by the rows as arrays. Selected via the accept header")
+  @APIResponse(description = "Tabular result (column names and row arrays)")
+  public Columnar allColumnar(@Context SecurityContext sc,
+      @Parameter(description = "database name to run the operation on",
+          example = "northwind") @PathParam("database") String database,
+      @Parameter(description = "table name to run the operation on",
+          example = "EMPLOYEES") @PathParam("table") String table,
+      @QueryParam("offset") Integer offset, @QueryParam("limit") Integer limit,
+      @QueryParam("sort") String sort, @QueryParam("descending") boolean descending,
+      Map<String, Object> arguments) throws Exception {
+    AbstractDatabase db = services.getConfig().getDatabase(dj(database));
+    Table m = db.tables.get(table);
+    ACLContainerRequestFilter.check(sc, db, m);
+    db.cast(m, arguments);
+    return db.allColumnar(m, offset, limit, sort, descending, arguments);
+  }
+
+  /**
+   * like all, but streams the result as newline delimited JSON while it is read from the database
+   */
+  @POST
+  @Path("/stream/all/{database}/{table}")
+  @Produces(NDJSON)
+  @Operation(
+      summary = "like all, but streams the result as newline delimited JSON while it is read from the database")
+  @APIResponse(description = "Tabular result (one JSON object per line)")
+  public StreamingOutput streamAll(@Context SecurityContext sc,
+      @Parameter(description = "database name to run the operation on",
+          example = "northwind") @PathParam("database") String database,
+      @Parameter(description = "table name to run the operation on",
+          example = "EMPLOYEES") @PathParam("table") String table,
+      @QueryParam("offset") Integer offset, @QueryParam("limit") Integer limit,
+      @QueryParam("sort") String sort, @QueryParam("descending") boolean descending,
+      Map<String, Object> arguments) throws Exception {
+    AbstractDatabase db = services.getConfig().getDatabase(dj(database));
+    Table m = db.tables.get(table);
+    ACLContainerRequestFilter.check(sc, db, m);
+    db.cast(m, arguments);
+    return out -> ndjson(out,
+        consumer -> db.streamAll(m, offset, limit, sort, descending, arguments, consumer));
+  }
+
+  /**
+   * newline delimited JSON media type
+   */
+  public static final String NDJSON = "application/x-ndjson";
+
+  /**
+   * columnar JSON media type (column names and row arrays)
+   */
+  public static final String COLUMNAR = "application/vnd.dashjoin.columnar+json";
+
+  /**
+   * the lower quality makes sure clients accepting any JSON still get the list of objects
+   */
+  static final String COLUMNAR_QS = COLUMNAR + ";qs=0.5";
+
+  /**
+   * serializes dates like JacksonConfig
+   */
+  static final ObjectWriter ndjsonWriter = new ObjectMapper()
+      .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false).writer();
+
+  /**
+   * streamed operation
+   */
+  interface Stream {
+    void run(RowConsumer consumer) throws Exception;
+  }
+
+  /**
+   * write the rows passed by the operation as newline delimited JSON. The response is committed
+   * once the first rows are written, so errors can only be reported by aborting the stream
+   */
+  static void ndjson(OutputStream out, Stream stream) throws IOException {
+    try {
+      stream.run(row -> {
+        out.write(ndjsonWriter.writeValueAsBytes(row));
+        out.write('\n');
+      });
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * like all but reads the table page by page. Pass the token returned with the page to get the
+   * next page
+   */
+  @POST
+  @Path("/page/{database}/{table}")
+  @Operation(
+      summary = "like all but reads the table page by page. Pass the token returned with the page to get the next page")
+  @APIResponse(description = "Page of records and the token for reading the next page")
+  public Page page(@Context SecurityContext sc,
+      @Parameter(description = "database name to run the operation on",
+          example = "northwind") @PathParam("database") String database,
+      @Parameter(description = "table name to run the operation on",
+          example = "EMPLOYEES") @PathParam("table") String table,
+      @Parameter(description = "token returned with the previous page, omit for the first page")
+      @QueryParam("after") String after, @QueryParam("limit") Integer limit,
+      @QueryParam("sort") String sort, @QueryParam("descending") boolean descending,
+      Map<String, Object> arguments) throws Exception {
+    AbstractDatabase db = services.getConfig().getDatabase(dj(database));
+    Table m = db.tables.get(table);
+    ACLContainerRequestFilter.check(sc, db, m);
+    db.cast(m, arguments);
+    return db.page(m, after, limit, sort, descending, arguments);
+  }
+
   // "Get all" as GET method. Enables browser cache.
   @GET
+  @ConditionalGet
   @Path("/crud/{database}/{table}")
   @Operation(
       summary = "like read but returns all matches in a list (arguments are and-connected column equalities)")
@@ -404,8 +662,13 @@ public class Data {
 
     db.cast(m, object);
 
-    if (dbTriggers(sc, "create", database, table, null, object, m.beforeCreate))
+    if (dbTriggers(sc, "create", database, table, null, object, m.beforeCreate)) {
       db.create(m, object);
+      SearchIndex index = SearchIndex.of(db);
+      if (index != null)
+        index.put(db, m, object);
+      QueryCache.invalidate(database, table);
+    }
     dbTriggers(sc, "create", database, table, null, object, m.afterCreate);
     return Resource.of(db, m, object);
   }
@@ -496,6 +759,7 @@ public class Data {
    * reads the object defined by the given globally unique identifier
    */
   @GET
+  @ConditionalGet
   @Path("/crud/{database}/{table}/{objectId1}")
   @Operation(summary = "reads the object defined by the given globally unique identifier")
   @APIResponse(description = "JSON object representing the record")
@@ -511,6 +775,7 @@ public class Data {
   }
 
   @GET
+  @ConditionalGet
   @Path("/crud/{database}/{table}/{objectId1}/{objectId2}")
   @Operation(summary = "reads the object defined by the given globally unique identifier")
   @APIResponse(description = "JSON object representing the record")
@@ -528,6 +793,7 @@ public class Data {
   }
 
   @GET
+  @ConditionalGet
   @Path("/crud/{database}/{table}/{objectId1}/{objectId2}/{objectId3}")
   @Operation(summary = "reads the object defined by the given globally unique identifier")
   @APIResponse(description = "JSON object representing the record")
@@ -547,6 +813,7 @@ public class Data {
   }
 
   @GET
+  @ConditionalGet
   @Path("/crud/{database}/{table}/{objectId1}/{objectId2}/{objectId3}/{objectId4}")
   @Operation(summary = "reads the object defined by the given globally unique identifier")
   @APIResponse(description = "JSON object representing the record")
@@ -655,6 +922,10 @@ public class Data {
     @Schema(title = "matching value")
     public Object match;
 
+    @Schema(title = "set if the database or table in id could not be searched within the timeout")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Boolean timeout;
+
     public static SearchResult of(Resource id, String column, Object match) {
       SearchResult res = new SearchResult();
       res.id = id;
@@ -662,6 +933,85 @@ public class Data {
       res.match = match;
       return res;
     }
+
+    /**
+     * marks a database (table is null) or table whose results are missing due to the timeout
+     */
+    public static SearchResult timeout(String database, String table) {
+      SearchResult res = new SearchResult();
+      res.id = new Resource();
+      res.id.database = database;
+      res.id.table = table;
+      res.timeout = true;
+      return res;
+    }
+  }
+
+  /**
+   * page of records returned by the page operation
+   */
+  @Schema(title = "Page: page of records and the token for reading the next page")
+  public static class Page {
+
+    @Schema(title = "the records")
+    public List<Map<String, Object>> data;
+
+    @Schema(title = "token for reading the next page, null if this is the last page")
+    public String next;
+
+    public static Page of(List<Map<String, Object>> data, String next) {
+      Page res = new Page();
+      res.data = data;
+      res.next = next;
+      return res;
+    }
+  }
+
+  /**
+   * compact tabular result: the column names are listed once, each row is an array of values in
+   * column order
+   */
+  @Schema(title = "Columnar: tabular result with column names and row arrays")
+  public static class Columnar {
+
+    @Schema(title = "the column names")
+    public List<String> columns = new ArrayList<>();
+
+    @Schema(title = "the rows, values are in column order")
+    public List<Object[]> rows = new ArrayList<>();
+
+    /**
+     * convert a list of records. The columns are the union of the record keys in order of appearance
+     */
+    public static Columnar of(List<Map<String, Object>> data) {
+      Columnar res = new Columnar();
+      Map<String, Integer> index = new LinkedHashMap<>();
+      for (Map<String, Object> row : data)
+        for (String key : row.keySet())
+          index.putIfAbsent(key, index.size());
+      res.columns.addAll(index.keySet());
+      for (Map<String, Object> row : data) {
+        Object[] values = new Object[index.size()];
+        for (Entry<String, Object> e : row.entrySet())
+          values[index.get(e.getKey())] = e.getValue();
+        res.rows.add(values);
+      }
+      return res;
+    }
+
+    /**
+     * convert back to a list of records
+     */
+    public List<Map<String, Object>> toMaps() {
+      List<Map<String, Object>> res = new ArrayList<>();
+      for (Object[] values : rows) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (int i = 0; i < columns.size(); i++)
+          row.put(columns.get(i), values[i]);
+        res.add(row);
+      }
+      return res;
+    }
   }
 
   /**
@@ -784,12 +1134,51 @@ public class Data {
     if (pk == null)
       return Arrays.asList();
 
+    // run the lookups of the fk columns referencing pk in parallel
+    String pkId = pk;
+    ReferenceIndex references = services.getConfig().getReferences();
+    List<Future<List<Origin>>> tasks = new ArrayList<>();
+    for (Reference r : references.get(pk))
+      tasks.add(incomingWorkers().submit(() -> {
+        try {
+          ACLContainerRequestFilter.check(sc, r.db, r.table);
+        } catch (NotAuthorizedException ignore) {
+          return Arrays.asList();
+        }
+        return r.db.incoming(r.table, r.property, objectId, offset, limit, pkId);
+      }));
+    for (AbstractDatabase d : references.custom())
+      tasks.add(incomingWorkers().submit(
+          () -> d.incoming(sc, database, table, objectId, offset, limit, start, timeout, pkId)));
+
+    long deadline = SearchWorkers.deadline(timeout);
     List<Origin> res = new ArrayList<>();
-    for (AbstractDatabase d : services.getConfig().getDatabases())
-      res.addAll(d.incoming(sc, database, table, objectId, offset, limit, start, timeout, pk));
+    try {
+      for (Future<List<Origin>> task : tasks)
+        res.addAll(deadline == Long.MAX_VALUE ? task.get()
+            : task.get(SearchWorkers.remaining(deadline), TimeUnit.MILLISECONDS));
+    } catch (TimeoutException e) {
+      // return the links found so far
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    } finally {
+      for (Future<List<Origin>> task : tasks)
+        task.cancel(true);
+    }
     return res;
   }
 
+  /**
+   * worker pool for the incoming lookups
+   */
+  static ExecutorService incomingWorkers;
+
+  static synchronized ExecutorService incomingWorkers() {
+    if (incomingWorkers == null)
+      incomingWorkers = SearchWorkers.pool("dj-incoming-");
+    return incomingWorkers;
+  }
+
   /**
    * like read, but returns all keys posted
    */
@@ -805,12 +1194,16 @@ public class Data {
       List<String> objectIds) throws Exception {
     AbstractDatabase db = services.getConfig().getDatabase(dj(database));
     Table m = db.tables.get(table);
-    Map<String, Map<String, Object>> res = new HashMap<>();
+    List<Map<String, Object>> searches = new ArrayList<>();
     for (String objectId : objectIds) {
       Map<String, Object> search = key(m, Arrays.asList(objectId));
       db.cast(m, search);
-      res.put(objectId, db.read(m, search));
+      searches.add(search);
     }
+    List<Map<String, Object>> rows = db.readMany(m, searches);
+    Map<String, Map<String, Object>> res = new HashMap<>();
+    for (int i = 0; i < objectIds.size(); i++)
+      res.put(objectIds.get(i), rows.get(i));
     return res;
   }
 
@@ -916,6 +1309,10 @@ public class Data {
       return;
     if (!db.update(m, search, object))
       throw new NotFoundException();
+    SearchIndex index = SearchIndex.of(db);
+    if (index != null)
+      index.put(db, m, db.read(m, search));
+    QueryCache.invalidate(database, table);
     dbTriggers(sc, "update", database, table, search, object, m.afterUpdate);
   }
 
@@ -1001,6 +1398,10 @@ public class Data {
       return;
     if (!db.delete(m, search))
       throw new NotFoundException();
+    SearchIndex index = SearchIndex.of(db);
+    if (index != null)
+      index.remove(db, m, search);
+    QueryCache.invalidate(database, table);
     dbTriggers(sc, "delete", database, table, search, null, m.afterDelete);
   }
 
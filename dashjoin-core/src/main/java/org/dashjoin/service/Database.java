@@ -8,6 +8,8 @@ import org.dashjoin.model.Property;
 import org.dashjoin.model.QueryMeta;
 import org.dashjoin.model.Table;
 import org.dashjoin.service.Data.Choice;
+import org.dashjoin.service.Data.Columnar;
+import org.dashjoin.service.Data.Page;
 import org.dashjoin.service.Data.SearchResult;
 import org.dashjoin.service.ddl.SchemaChange;
 
@@ -26,12 +28,54 @@ public interface Database {
     return null;
   };
 
+  /**
+   * runs a full text search that is part of a federated search ending at deadline (see
+   * SearchWorkers.deadline). Implementations that run their own timeouts should use the time
+   * remaining until deadline
+   */
+  default public List<SearchResult> search(@Context SecurityContext sc, String search,
+      Integer limit, long deadline) throws Exception {
+    return search(sc, search, limit);
+  };
+
   /**
    * runs that query defined in info using the arguments. Returns the query result
    */
   public List<Map<String, Object>> query(QueryMeta info, Map<String, Object> arguments)
       throws Exception;
 
+  /**
+   * number of rows implementations fetch per round trip when streaming results
+   */
+  public static final int FETCH_SIZE = 1000;
+
+  /**
+   * receives the rows of a streamed result one by one
+   */
+  @FunctionalInterface
+  public interface RowConsumer {
+    void accept(Map<String, Object> row) throws Exception;
+  }
+
+  /**
+   * like query, but passes the rows to the consumer as they are read from the database. The default
+   * implementation runs the query and passes the rows of the materialized result
+   */
+  default public void streamQuery(QueryMeta info, Map<String, Object> arguments,
+      RowConsumer consumer) throws Exception {
+    for (Map<String, Object> row : query(info, arguments))
+      consumer.accept(row);
+  }
+
+  /**
+   * like query, but returns the result as column names and row arrays. The default implementation
+   * converts the result of query
+   */
+  default public Columnar queryColumnar(QueryMeta info, Map<String, Object> arguments)
+      throws Exception {
+    return Columnar.of(query(info, arguments));
+  }
+
   /**
    * runs that query defined in info using the arguments. Returns the query result
    */
@@ -59,6 +103,45 @@ public interface Database {
   public List<Map<String, Object>> all(Table s, Integer offset, Integer limit, String sort,
       boolean descending, Map<String, Object> arguments) throws Exception;
 
+  /**
+   * like all, but passes the rows to the consumer as they are read from the database. The default
+   * implementation passes the rows of the materialized result
+   */
+  default public void streamAll(Table s, Integer offset, Integer limit, String sort,
+      boolean descending, Map<String, Object> arguments, RowConsumer consumer) throws Exception {
+    for (Map<String, Object> row : all(s, offset, limit, sort, descending, arguments))
+      consumer.accept(row);
+  }
+
+  /**
+   * like all, but returns the result as column names and row arrays. The default implementation
+   * converts the result of all
+   */
+  default public Columnar allColumnar(Table s, Integer offset, Integer limit, String sort,
+      boolean descending, Map<String, Object> arguments) throws Exception {
+    return Columnar.of(all(s, offset, limit, sort, descending, arguments));
+  }
+
+  /**
+   * like all, but reads the table page by page. The default implementation pages using the offset,
+   * implementations that support keyset pagination read the rows following the last row of the
+   * previous page
+   * 
+   * @param s table to operate on
+   * @param after token returned with the previous page (null for the first page)
+   * @param limit page size (null means no limit)
+   * @param arguments optional search arguments that the records must match
+   * @return the page and the token of the next page
+   * @throws Exception
+   */
+  default public Page page(Table s, String after, Integer limit, String sort, boolean descending,
+      Map<String, Object> arguments) throws Exception {
+    Keyset keyset = Keyset.parse(after);
+    List<Map<String, Object>> rows =
+        all(s, keyset.offset == 0 ? null : keyset.offset, limit, sort, descending, arguments);
+    return Page.of(rows, keyset.next(null, rows, limit));
+  }
+
   /**
    * create object in schema
    */
@@ -0,0 +1,71 @@
+package org.dashjoin.service;
+
+import java.io.IOException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.Provider;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+
+/**
+ * adds a strong ETag computed from the JSON body to the responses of endpoints marked with
+ * ConditionalGet. If the request's If-None-Match header contains the tag, the body is dropped and
+ * 304 (not modified) is returned. Otherwise the serialized body is passed on, so it is only
+ * serialized once. The tag is derived from the content rather than from modification counters,
+ * since the data might also be changed by other clients of the database
+ */
+@Provider
+@ConditionalGet
+public class ETagFilter implements ContainerResponseFilter {
+
+  /**
+   * same settings as the mapper writing the responses
+   */
+  ObjectMapper objectMapper = new JacksonConfig().getContext(null);
+
+  @Override
+  public void filter(ContainerRequestContext request, ContainerResponseContext response)
+      throws IOException {
+    if (!"GET".equals(request.getMethod()) || response.getStatus() != Status.OK.getStatusCode())
+      return;
+    if (!response.hasEntity())
+      return;
+    MediaType type = response.getMediaType();
+    if (type != null && !type.isCompatible(MediaType.APPLICATION_JSON_TYPE))
+      return;
+
+    byte[] body = objectMapper.writeValueAsBytes(response.getEntity());
+    EntityTag tag = new EntityTag(Hashing.murmur3_128().hashBytes(body).toString());
+    response.getHeaders().putSingle(HttpHeaders.ETAG, tag);
+    if (matches(request.getHeaderString(HttpHeaders.IF_NONE_MATCH), tag)) {
+      response.setStatus(Status.NOT_MODIFIED.getStatusCode());
+      response.setEntity(null);
+    } else
+      response.setEntity(body, response.getEntityAnnotations(),
+          type == null ? MediaType.APPLICATION_JSON_TYPE : type);
+  }
+
+  /**
+   * true if the If-None-Match header lists the tag. Uses the weak comparison required for
+   * If-None-Match, i.e. W/ prefixes are ignored
+   */
+  static boolean matches(String ifNoneMatch, EntityTag tag) {
+    if (ifNoneMatch == null)
+      return false;
+    for (String s : ifNoneMatch.split(",")) {
+      s = s.trim();
+      if (s.equals("*"))
+        return true;
+      if (s.startsWith("W/"))
+        s = s.substring(2);
+      if (s.equals("\"" + tag.getValue() + "\""))
+        return true;
+    }
+    return false;
+  }
+}
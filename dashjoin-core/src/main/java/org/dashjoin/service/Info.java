@@ -0,0 +1,50 @@
+package org.dashjoin.service;
+
+import static org.dashjoin.util.MapUtil.of;
+import java.util.List;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
+
+/**
+ * REST API for information that is available without logging in (see ACLContainerRequestFilter)
+ */
+@Path(Services.REST_PREFIX + "info")
+@Produces({MediaType.APPLICATION_JSON})
+public class Info {
+
+  @Inject
+  Services services;
+
+  /**
+   * returns the metadata collection progress of all databases. The status is 503 (service
+   * unavailable) while databases are still connecting, so the endpoint can serve as a readiness
+   * probe. Connection errors are only shown to admins
+   */
+  @GET
+  @Path("/ready")
+  @Operation(summary = "returns the metadata collection progress of all databases")
+  @APIResponse(
+      description = "ready flag and status, start time, duration and number of tables per database")
+  public Response ready(@Context SecurityContext sc) {
+    List<Map<String, Object>> databases = ((PojoDatabase) services.getConfig()).getProgress();
+    boolean admin = sc != null && sc.getUserPrincipal() != null && sc.isUserInRole("admin");
+    boolean ready = true;
+    for (Map<String, Object> db : databases) {
+      if (!(Boolean) db.get("done"))
+        ready = false;
+      if (!admin && !"OK".equals(db.get("status")) && (Boolean) db.get("done"))
+        db.put("status", "Error");
+    }
+    return Response.status(ready ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE)
+        .entity(of("ready", ready, "databases", databases)).build();
+  }
+}
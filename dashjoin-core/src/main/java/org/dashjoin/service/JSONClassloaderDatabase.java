@@ -1,16 +1,18 @@
 package org.dashjoin.service;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import javax.enterprise.context.ApplicationScoped;
 import org.dashjoin.model.QueryMeta;
 import org.dashjoin.model.Table;
 import org.dashjoin.util.Escape;
+import org.dashjoin.util.MapUtil;
 import org.reflections.Reflections;
 import org.reflections.scanners.ResourcesScanner;
 
@@ -21,13 +23,35 @@ import org.reflections.scanners.ResourcesScanner;
 @JSONReadonlyDatabase
 public class JSONClassloaderDatabase extends JSONDatabase {
 
-  static Map<String, Set<String>> cache = new HashMap<>();
+  static Map<String, Set<String>> cache = new ConcurrentHashMap<>();
+
+  /**
+   * resource path to parsed object. The classpath does not change at runtime, so every resource is
+   * parsed once. Missing resources are recorded as MISSING. The parsed objects are never handed
+   * out, callers get a copy
+   */
+  static Map<String, Object> parsed = new ConcurrentHashMap<>();
+
+  static final Object MISSING = new Object();
 
   Set<String> scan(String part) {
-    if (!cache.containsKey(part))
-      cache.put(part, new Reflections("model." + part, new ResourcesScanner())
-          .getResources(Pattern.compile(".*\\.json")));
-    return cache.get(part);
+    return cache.computeIfAbsent(part, p -> new Reflections("model." + p, new ResourcesScanner())
+        .getResources(Pattern.compile(".*\\.json")));
+  }
+
+  /**
+   * get the parsed resource or null if it does not exist
+   */
+  @SuppressWarnings("unchecked")
+  Map<String, Object> resource(String path) throws IOException {
+    Object res = parsed.get(path);
+    if (res == null) {
+      try (InputStream is = getClass().getResourceAsStream(path)) {
+        res = is == null ? MISSING : objectMapper.readValue(is, tr);
+      }
+      parsed.put(path, res);
+    }
+    return res == MISSING ? null : (Map<String, Object>) res;
   }
 
   @Override
@@ -37,9 +61,8 @@ public class JSONClassloaderDatabase extends JSONDatabase {
     String[] parts = info.query.split("/");
     if (parts.length == 1) {
       for (String s : scan(parts[0])) {
-        Map<String, Object> object =
-            objectMapper.readValue(getClass().getResourceAsStream("/" + s), tr);
-        res.put("" + object.get("ID"), object);
+        Map<String, Object> object = resource("/" + s);
+        res.put("" + object.get("ID"), MapUtil.copy(object));
       }
     } else {
       Table s = new Table();
@@ -55,15 +78,12 @@ public class JSONClassloaderDatabase extends JSONDatabase {
   public Map<String, Object> read(Table s, Map<String, Object> search) throws Exception {
     String path = "model/" + s.name + "/" + Escape.filename("" + search.get("ID")) + ".json";
 
-    try (InputStream is = getClass().getResourceAsStream("/" + path)) {
-      if (is != null) {
-        Map<String, Object> res = objectMapper.readValue(is, tr);
-        if (res.get("ID") == null)
-          throw new IllegalArgumentException("Object must contain ID field: " + path);
-        return res;
-      }
-    }
-    return null;
+    Map<String, Object> res = resource("/" + path);
+    if (res == null)
+      return null;
+    if (res.get("ID") == null)
+      throw new IllegalArgumentException("Object must contain ID field: " + path);
+    return MapUtil.copy(res);
   }
 
 }
@@ -143,6 +143,15 @@ public abstract class JSONDatabase implements Database {
   public abstract Map<String, Map<String, Object>> queryMap(QueryMeta info,
       Map<String, Object> arguments) throws Exception;
 
+  /**
+   * modification counter that changes whenever the data of this DB changes, including changes made
+   * outside of the application. The union uses it to detect stale merged data. DBs that cannot
+   * detect changes return 0 and rely on the union being invalidated explicitly
+   */
+  public long version() {
+    return 0;
+  }
+
   /**
    * delegate to queryMap
    */
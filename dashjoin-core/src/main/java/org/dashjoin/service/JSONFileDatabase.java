@@ -1,11 +1,27 @@
 package org.dashjoin.service;
 
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Default;
 import javax.inject.Inject;
@@ -14,11 +30,23 @@ import org.dashjoin.model.Table;
 import org.dashjoin.util.DJRuntime;
 import org.dashjoin.util.Escape;
 import org.dashjoin.util.Home;
+import org.dashjoin.util.MapUtil;
 import org.dashjoin.util.RuntimeDefinitions;
+import lombok.extern.java.Log;
 
 /**
- * file implementation of the config DB
+ * file implementation of the config DB.
+ *
+ * Every table folder is parsed once into an immutable snapshot. Writes via this class replace the
+ * snapshot atomically. Changes made outside of the application (editor, git pull) are picked up
+ * via a watch service on the table folders and via the folder timestamp, which changes whenever a
+ * file is added or removed.
+ *
+ * Single record reads without a current snapshot only parse the requested file. Parsed files are
+ * also cached individually and checked against the file timestamp and size, so folders that cannot
+ * be watched only parse the files that changed.
  */
+@Log
 @ApplicationScoped
 @DJRuntime(RuntimeDefinitions.ONPREMISE)
 @Default
@@ -27,6 +55,82 @@ public class JSONFileDatabase extends JSONDatabase {
   @Inject
   Home home;
 
+  /**
+   * parsed contents of a table folder. Never changed once created
+   */
+  static class Snapshot {
+
+    /**
+     * folder timestamp when the snapshot was taken
+     */
+    final long modified;
+
+    /**
+     * file name to parsed object or to the exception that occurred when parsing the file
+     */
+    final Map<String, Object> files;
+
+    Snapshot(long modified, Map<String, Object> files) {
+      this.modified = modified;
+      this.files = Collections.unmodifiableMap(files);
+    }
+
+    /**
+     * copy of this snapshot with file set to value (or removed if value is null)
+     */
+    Snapshot with(long modified, String file, Object value) {
+      Map<String, Object> files = new LinkedHashMap<>(this.files);
+      if (value == null)
+        files.remove(file);
+      else
+        files.put(file, value);
+      return new Snapshot(modified, files);
+    }
+  }
+
+  /**
+   * table name to snapshot
+   */
+  final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+  /**
+   * parsed file and the file timestamp and size it was parsed at
+   */
+  static class Parsed {
+
+    final long modified;
+
+    final long length;
+
+    final Object value;
+
+    Parsed(long modified, long length, Object value) {
+      this.modified = modified;
+      this.length = length;
+      this.value = value;
+    }
+  }
+
+  /**
+   * file to parsed contents
+   */
+  final Map<File, Parsed> parsed = new ConcurrentHashMap<>();
+
+  /**
+   * incremented whenever a table changes
+   */
+  final AtomicLong version = new AtomicLong();
+
+  /**
+   * watches the table folders, started when the first table is loaded
+   */
+  WatchService watcher;
+
+  /**
+   * table folders registered with the watcher
+   */
+  final Set<Path> watched = ConcurrentHashMap.newKeySet();
+
   /**
    * internal get file method
    */
@@ -35,21 +139,23 @@ public class JSONFileDatabase extends JSONDatabase {
     return home.getFile(path);
   }
 
+  @Override
+  public long version() {
+    return version.get();
+  }
+
   @Override
   public Map<String, Map<String, Object>> queryMap(QueryMeta info, Map<String, Object> arguments)
       throws Exception {
     Map<String, Map<String, Object>> res = new LinkedHashMap<>();
     String[] parts = info.query.split("/");
     if (parts.length == 1) {
-      String path = "model/" + parts[0];
-      File[] files = home.getFile(path).listFiles();
-      if (files != null)
-        for (File f : files) {
-          if (f.getName().endsWith(".deleted"))
-            continue;
-          Map<String, Object> object = objectMapper.readValue(f, tr);
-          res.put("" + object.get("ID"), object);
-        }
+      for (Entry<String, Object> f : table(parts[0]).entrySet()) {
+        if (f.getKey().endsWith(".deleted"))
+          continue;
+        Map<String, Object> object = object(f.getValue());
+        res.put("" + object.get("ID"), MapUtil.copy(object));
+      }
     } else {
       Table s = new Table();
       s.name = parts[0];
@@ -69,23 +175,184 @@ public class JSONFileDatabase extends JSONDatabase {
         throw new IOException("Error creating model folder");
 
     objectMapper.writeValue(file, object);
+    changed(s.name, file, parse(file));
   }
 
   @Override
   public Map<String, Object> read(Table s, Map<String, Object> search) throws Exception {
     File file = file(s, search);
-    if (file.exists()) {
-      Map<String, Object> res = objectMapper.readValue(file, tr);
+    Snapshot snapshot = snapshot(s.name, file.getParentFile());
+    Object parsed = snapshot != null ? snapshot.files.get(file.getName()) : parseCached(file);
+    if (parsed != null) {
+      Map<String, Object> res = object(parsed);
       if (res.get("ID") == null)
         throw new IllegalArgumentException("Object must contain ID field: " + file);
-      return res;
+      return MapUtil.copy(res);
     }
     return null;
   }
 
   @Override
   public boolean delete(Table s, Map<String, Object> search) throws Exception {
-    return file(s, search).delete();
+    File file = file(s, search);
+    boolean res = file.delete();
+    if (res)
+      changed(s.name, file, null);
+    return res;
   }
 
+  /**
+   * get the snapshot of the table folder, parse the folder if there is no current snapshot
+   */
+  Map<String, Object> table(String table) {
+    File dir = home.getFile("model/" + table);
+    long modified = dir.lastModified();
+    Snapshot snapshot = snapshot(table, dir);
+    if (snapshot != null)
+      return snapshot.files;
+
+    // read the version before reading the files
+    long version = this.version.get();
+    Map<String, Object> files = new LinkedHashMap<>();
+    File[] list = dir.listFiles();
+    if (list != null)
+      for (File f : list) {
+        Object parsed = parseCached(f);
+        if (parsed != null)
+          files.put(f.getName(), parsed);
+      }
+    snapshot = new Snapshot(modified, files);
+
+    // in place edits do not change the folder timestamp, only keep the snapshot if we are notified
+    if (list == null || watch(dir.toPath()))
+      if (this.version.get() == version)
+        snapshots.put(table, snapshot);
+    return snapshot.files;
+  }
+
+  /**
+   * current snapshot of the table folder or null
+   */
+  Snapshot snapshot(String table, File dir) {
+    Snapshot snapshot = snapshots.get(table);
+    if (snapshot != null && snapshot.modified == dir.lastModified())
+      return snapshot;
+    return null;
+  }
+
+  /**
+   * parse file unless it is cached and did not change since
+   */
+  Object parseCached(File file) {
+    long modified = file.lastModified();
+    long length = file.length();
+    Parsed p = parsed.get(file);
+    if (p != null && p.modified == modified && p.length == length)
+      return p.value;
+    Object value = parse(file);
+    if (value == null)
+      parsed.remove(file);
+    else
+      parsed.put(file, new Parsed(modified, length, value));
+    return value;
+  }
+
+  /**
+   * parse file, return the exception if the file cannot be parsed (it is thrown when the file is
+   * accessed), or null if the file does not exist
+   */
+  Object parse(File file) {
+    try {
+      if (!file.exists())
+        return null;
+      return objectMapper.readValue(file, tr);
+    } catch (IOException e) {
+      return e;
+    }
+  }
+
+  /**
+   * map value of a table snapshot to the object or throw the parse exception
+   */
+  @SuppressWarnings("unchecked")
+  Map<String, Object> object(Object parsed) throws IOException {
+    if (parsed instanceof IOException)
+      throw (IOException) parsed;
+    return (Map<String, Object>) parsed;
+  }
+
+  /**
+   * the file of the table was written or deleted, replace the table snapshot
+   */
+  void changed(String table, File file, Object value) {
+    version.incrementAndGet();
+    long modified = file.getParentFile().lastModified();
+    snapshots.computeIfPresent(table, (k, s) -> s.with(modified, file.getName(), value));
+    if (value == null)
+      parsed.remove(file);
+    else
+      parsed.put(file, new Parsed(file.lastModified(), file.length(), value));
+  }
+
+  /**
+   * register the table folder with the watcher, returns false if the folder cannot be watched
+   */
+  synchronized boolean watch(Path dir) {
+    if (watched.contains(dir))
+      return true;
+    try {
+      if (watcher == null) {
+        watcher = FileSystems.getDefault().newWatchService();
+        WatchService ws = watcher;
+        Thread thread = new Thread(() -> poll(ws), "dj-model-watcher");
+        thread.setDaemon(true);
+        thread.start();
+      }
+      dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+      watched.add(dir);
+      return true;
+    } catch (IOException | ClosedWatchServiceException e) {
+      log.warning("Cannot watch " + dir + ", changes are only picked up when files are added or"
+          + " removed: " + e);
+      return false;
+    }
+  }
+
+  /**
+   * watcher thread: drop the table snapshot if a file changed outside of this class. Events caused
+   * by our own writes are ignored, since the snapshot already contains the new contents
+   */
+  void poll(WatchService watcher) {
+    try {
+      for (;;) {
+        WatchKey key = watcher.take();
+        Path dir = (Path) key.watchable();
+        String table = dir.getFileName().toString();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          Snapshot snapshot = snapshots.get(table);
+          if (snapshot != null && event.kind() != OVERFLOW) {
+            String name = event.context().toString();
+            if (Objects.equals(snapshot.files.get(name), parse(dir.resolve(name).toFile())))
+              continue;
+          }
+          snapshots.remove(table);
+          version.incrementAndGet();
+        }
+        if (!key.reset())
+          watched.remove(dir);
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // shutdown
+    }
+  }
+
+  @PreDestroy
+  synchronized void stopWatching() throws IOException {
+    if (watcher != null)
+      watcher.close();
+    watcher = null;
+    watched.clear();
+    snapshots.clear();
+    parsed.clear();
+  }
 }
@@ -0,0 +1,101 @@
+package org.dashjoin.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.dashjoin.model.Property;
+import org.dashjoin.model.Table;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * opaque continuation token for keyset (seek) pagination. The token holds the sort and primary key
+ * values of the last row of the previous page, so the next page is read using where (sort, pk) >
+ * (?, ?) instead of skipping offset rows. The number of rows read so far is kept as well, so that
+ * databases without keyset support can page using the offset
+ */
+public class Keyset {
+
+  private static final ObjectMapper om = new ObjectMapper();
+
+  /**
+   * number of rows returned so far
+   */
+  public int offset;
+
+  /**
+   * sort and key column values of the last row returned. Null if the next page has to be read using
+   * the offset (first page, no primary key, null sort value)
+   */
+  public List<Object> after;
+
+  /**
+   * parse the token, null or empty tokens denote the first page
+   */
+  public static Keyset parse(String token) {
+    if (token == null || token.isEmpty())
+      return new Keyset();
+    try {
+      return om.readValue(Base64.getUrlDecoder().decode(token), Keyset.class);
+    } catch (IOException | IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid page token: " + token);
+    }
+  }
+
+  @Override
+  public String toString() {
+    try {
+      return Base64.getUrlEncoder().withoutPadding()
+          .encodeToString(om.writeValueAsString(this).getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * the columns the rows are ordered by: the sort column followed by the primary key columns. Null
+   * if the table has no primary key
+   */
+  public static List<String> columns(Table s, String sort) {
+    if (s.properties == null)
+      return null;
+    Map<Integer, String> pk = new TreeMap<>();
+    for (Property p : s.properties.values())
+      if (p.pkpos != null)
+        pk.put(p.pkpos, p.name);
+    if (pk.isEmpty())
+      return null;
+    List<String> res = new ArrayList<>();
+    if (sort != null && !pk.containsValue(sort))
+      res.add(sort);
+    res.addAll(pk.values());
+    return res;
+  }
+
+  /**
+   * token for the page following rows, null if there are no more rows
+   */
+  public String next(List<String> columns, List<Map<String, Object>> rows, Integer limit) {
+    if (limit == null || rows.size() < limit)
+      return null;
+    Keyset res = new Keyset();
+    res.offset = offset + rows.size();
+    if (columns != null) {
+      Map<String, Object> last = rows.get(rows.size() - 1);
+      res.after = new ArrayList<>();
+      for (String c : columns) {
+        Object value = last.get(c);
+        if (value == null) {
+          // null values are sorted differently by different databases, continue with the offset
+          res.after = null;
+          break;
+        }
+        res.after.add(value);
+      }
+    }
+    return res.toString();
+  }
+}
@@ -1,7 +1,9 @@
 package org.dashjoin.service;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -9,10 +11,13 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.dashjoin.util.Escape;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 /**
  * simple DB metadata class. might switch to schemaspy or schemacrawler later
@@ -168,82 +173,252 @@ public class Metadata {
    * read the schema from con
    */
   public Metadata(Connection con, String url) throws SQLException {
+    readTables(con, url);
+    readDetails(con, url, true);
+  }
+
+  /**
+   * the schema the tables were read from
+   */
+  String schema;
+
+  /**
+   * read the names of the tables in the schema
+   */
+  void readTables(Connection con, String url) throws SQLException {
     DatabaseMetaData md = con.getMetaData();
-    String schema = getSchema(con, url);
+    schema = getSchema(con, url);
     try (ResultSet res = md.getTables(null, schema, null, null)) {
       while (res.next()) {
         if ("TABLE".equals(res.getString("TABLE_TYPE"))) {
           String name = res.getString("TABLE_NAME");
-            tables.put(name, new MdTable(name));
+          tables.put(name, new MdTable(name));
         }
       }
     }
+  }
+
+  /**
+   * read keys and columns of the tables found by readTables
+   * 
+   * @param bulk if true, use a single catalog query for the keys and for the columns of all tables
+   *        where possible. Otherwise, and if the bulk queries fail, every table is queried
+   *        individually (three round trips per table)
+   */
+  void readDetails(Connection con, String url, boolean bulk) throws SQLException {
+    DatabaseMetaData md = con.getMetaData();
+    boolean keys = bulk && readKeys(con, url);
+    boolean columns = bulk && readColumns(md, null);
+
     // H2 and jTDS require table keys to be queried individually
     // Note: before we used table==null for Postgres, but this was the
     // only DB which allowed this. Thus we are now doing the safe way for all DBs.
     for (String table : tables.keySet()) {
-      try (ResultSet res = md.getPrimaryKeys(null, schema, table)) {
-        while (res.next()) {
-          tables.get(table).pk.set(res.getString("COLUMN_NAME"), res.getShort("KEY_SEQ"));
-        }
-      }
-      try {
-        try (ResultSet res = md.getImportedKeys(null, schema, table)) {
+      if (!keys) {
+        try (ResultSet res = md.getPrimaryKeys(null, schema, table)) {
           while (res.next()) {
-            String pktable = res.getString("PKTABLE_NAME");
-            if (!this.tables.containsKey(pktable))
-              // DB2 allows defining table alias - the FK definition might point to the alias - skip
-              continue;
-            tables.get(res.getString("FKTABLE_NAME")).getOrCreateFk(pktable)
-                .set(res.getString("FKCOLUMN_NAME"), res.getShort("KEY_SEQ"));
+            tables.get(table).pk.set(res.getString("COLUMN_NAME"), res.getShort("KEY_SEQ"));
           }
         }
-      } catch (Exception e) {
-        logger.log(Level.WARNING, "Error gathering keys", e);
-      }
-      try (ResultSet res = md.getColumns(null, schema, table, null)) {
-        while (res.next()) {
-          MdTable t = tables.get(res.getString("TABLE_NAME"));
-
-          // column might be from a view
-          if (t == null)
-            continue;
-
-          Column col = new Column();
-          col.name = res.getString("COLUMN_NAME");
-          // unused: col.type = res.getInt("DATA_TYPE");
-          col.typeName = res.getString("TYPE_NAME");
-          // col.columnSize = res.getInt("COLUMN_SIZE");
-          col.required = DatabaseMetaData.columnNoNulls == res.getInt("NULLABLE");
-          col.readOnly = "YES".equals(res.getString("IS_AUTOINCREMENT"));
-          // H2 does not have: col.isGenerated = res.getString("IS_GENERATEDCOLUMN");
-
-          t.columns.add(col);
+        try {
+          try (ResultSet res = md.getImportedKeys(null, schema, table)) {
+            while (res.next()) {
+              String pktable = res.getString("PKTABLE_NAME");
+              if (!this.tables.containsKey(pktable))
+                // DB2 allows defining table alias - the FK definition might point to the alias -
+                // skip
+                continue;
+              tables.get(res.getString("FKTABLE_NAME")).getOrCreateFk(pktable)
+                  .set(res.getString("FKCOLUMN_NAME"), res.getShort("KEY_SEQ"));
+            }
+          }
+        } catch (Exception e) {
+          logger.log(Level.WARNING, "Error gathering keys", e);
         }
       }
+      if (!columns)
+        readColumns(md, table);
+    }
 
-      // If metadata had no info about the table,
-      // try to get metadata from querying data
-      MdTable t = tables.get(table);
+    // If metadata had no info about the table,
+    // try to get metadata from querying data
+    for (MdTable t : tables.values())
       if (t.columns.isEmpty()) {
         try (Statement stmt = con.createStatement()) {
           stmt.setMaxRows(1);
-          try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + table)) {
+          try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + t.name)) {
             for (int col = 1; col <= rs.getMetaData().getColumnCount(); col++) {
               Column c = new Column();
               c.name = rs.getMetaData().getColumnName(col);
               c.typeName = rs.getMetaData().getColumnTypeName(col);
               t.columns.add(c);
             }
-            break;
           }
         } catch (Throwable ex) {
           logger.log(Level.WARNING,
-              "Error gathering table metadata from data query for table " + table, ex);
+              "Error gathering table metadata from data query for table " + t.name, ex);
+        }
+      }
+  }
+
+  /**
+   * read the columns of the table, or of all tables if table is null. Returns false if the bulk
+   * read failed or did not return any columns
+   */
+  boolean readColumns(DatabaseMetaData md, String table) throws SQLException {
+    try (ResultSet res = md.getColumns(null, schema, table == null ? "%" : table, null)) {
+      boolean found = false;
+      while (res.next()) {
+        MdTable t = tables.get(res.getString("TABLE_NAME"));
+
+        // column might be from a view
+        if (t == null)
+          continue;
+
+        Column col = new Column();
+        col.name = res.getString("COLUMN_NAME");
+        // unused: col.type = res.getInt("DATA_TYPE");
+        col.typeName = res.getString("TYPE_NAME");
+        // col.columnSize = res.getInt("COLUMN_SIZE");
+        col.required = DatabaseMetaData.columnNoNulls == res.getInt("NULLABLE");
+        col.readOnly = "YES".equals(res.getString("IS_AUTOINCREMENT"));
+        // H2 does not have: col.isGenerated = res.getString("IS_GENERATEDCOLUMN");
+
+        t.columns.add(col);
+        found = true;
+      }
+      return found;
+    } catch (SQLException e) {
+      if (table != null)
+        throw e;
+      logger.log(Level.WARNING, "Error reading the columns of all tables", e);
+      for (MdTable t : tables.values())
+        t.columns.clear();
+      return false;
+    }
+  }
+
+  /**
+   * version of the metadata format, part of the fingerprint so that snapshots taken by older
+   * versions are not used
+   */
+  static final int FORMAT = 1;
+
+  /**
+   * dialect specific query returning the time of the last DDL change in the schema (parameter 1).
+   * Null if the database does not track it
+   */
+  static String ddlQuery(String url) {
+    if (url.startsWith("jdbc:oracle:"))
+      return "select max(last_ddl_time), count(*) from all_objects where owner = ?";
+    if (url.startsWith("jdbc:sqlserver:") || url.startsWith("jdbc:jtds:sqlserver:"))
+      return "select max(modify_date), count(*) from sys.objects where schema_id = schema_id(?)";
+    return null;
+  }
+
+  /**
+   * hash of the schema read by readTables: database, schema, table names and, where available, the
+   * time of the last DDL change. Column changes are only detected via the DDL time
+   */
+  String fingerprint(Connection con, String url) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    hasher.putInt(FORMAT);
+    hasher.putString(url, StandardCharsets.UTF_8);
+    hasher.putString("" + schema, StandardCharsets.UTF_8);
+    for (String table : new TreeSet<>(tables.keySet()))
+      hasher.putString(table, StandardCharsets.UTF_8).putChar('\0');
+    String query = ddlQuery(url);
+    if (query != null && schema != null)
+      try (PreparedStatement stmt = con.prepareStatement(query)) {
+        stmt.setString(1, schema);
+        try (ResultSet res = stmt.executeQuery()) {
+          while (res.next())
+            for (int i = 1; i <= res.getMetaData().getColumnCount(); i++)
+              hasher.putString("" + res.getString(i), StandardCharsets.UTF_8);
         }
+      } catch (SQLException e) {
+        logger.log(Level.WARNING, "Error reading the last DDL change", e);
+      }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * dialect specific catalog query listing the primary and foreign key columns of all tables in the
+   * schema (parameter 1). Result columns: constraint type (starting with P for primary keys),
+   * table, column, position within the key (from 1), referenced table. Null if there is none for
+   * the database
+   */
+  static String keyQuery(String url) {
+    if (url.startsWith("jdbc:h2:"))
+      return "select 'P', TABLE_NAME, COLUMN_NAME, ORDINAL_POSITION, null"
+          + " from INFORMATION_SCHEMA.INDEXES where TABLE_SCHEMA = ? and PRIMARY_KEY = true"
+          + " union all select 'R', FKTABLE_NAME, FKCOLUMN_NAME, ORDINAL_POSITION, PKTABLE_NAME"
+          + " from INFORMATION_SCHEMA.CROSS_REFERENCES where FKTABLE_SCHEMA = ?";
+    if (url.startsWith("jdbc:postgresql:"))
+      return "select c.contype, t.relname, a.attname, k.n, f.relname from pg_constraint c"
+          + " join pg_class t on t.oid = c.conrelid"
+          + " join pg_namespace s on s.oid = t.relnamespace"
+          + " cross join lateral unnest(c.conkey) with ordinality as k(attnum, n)"
+          + " join pg_attribute a on a.attrelid = c.conrelid and a.attnum = k.attnum"
+          + " left join pg_class f on f.oid = c.confrelid"
+          + " where s.nspname = ? and c.contype in ('p', 'f')";
+    if (url.startsWith("jdbc:oracle:"))
+      return "select c.constraint_type, cc.table_name, cc.column_name, cc.position, r.table_name"
+          + " from all_constraints c join all_cons_columns cc"
+          + " on cc.owner = c.owner and cc.constraint_name = c.constraint_name"
+          + " left join all_constraints r"
+          + " on r.owner = c.r_owner and r.constraint_name = c.r_constraint_name"
+          + " where c.owner = ? and c.constraint_type in ('P', 'R')";
+    if (url.startsWith("jdbc:sqlserver:") || url.startsWith("jdbc:jtds:sqlserver:"))
+      return "select tc.constraint_type, kcu.table_name, kcu.column_name, kcu.ordinal_position,"
+          + " pk.table_name from information_schema.table_constraints tc"
+          + " join information_schema.key_column_usage kcu"
+          + " on kcu.constraint_schema = tc.constraint_schema"
+          + " and kcu.constraint_name = tc.constraint_name"
+          + " left join information_schema.referential_constraints rc"
+          + " on rc.constraint_schema = tc.constraint_schema"
+          + " and rc.constraint_name = tc.constraint_name"
+          + " left join information_schema.table_constraints pk"
+          + " on pk.constraint_schema = rc.unique_constraint_schema"
+          + " and pk.constraint_name = rc.unique_constraint_name"
+          + " where tc.table_schema = ? and tc.constraint_type in ('PRIMARY KEY', 'FOREIGN KEY')";
+    return null;
+  }
+
+  /**
+   * read the keys of all tables using keyQuery. Returns false if there is no query for the
+   * database or if it failed
+   */
+  boolean readKeys(Connection con, String url) {
+    String query = keyQuery(url);
+    if (query == null || schema == null)
+      return false;
+
+    // read everything before changing the tables, so the per table fallback starts from scratch
+    List<Object[]> rows = new ArrayList<>();
+    try (PreparedStatement stmt = con.prepareStatement(query)) {
+      for (int i = 1; i <= query.chars().filter(c -> c == '?').count(); i++)
+        stmt.setString(i, schema);
+      try (ResultSet res = stmt.executeQuery()) {
+        while (res.next())
+          rows.add(new Object[] {res.getString(1), res.getString(2), res.getString(3),
+              res.getShort(4), res.getString(5)});
       }
+    } catch (SQLException e) {
+      logger.log(Level.WARNING, "Error reading the keys of all tables", e);
+      return false;
     }
 
+    for (Object[] row : rows) {
+      MdTable t = tables.get(row[1]);
+      if (t == null)
+        continue;
+      if (((String) row[0]).toUpperCase().startsWith("P"))
+        t.pk.set((String) row[2], (Short) row[3]);
+      else if (tables.containsKey(row[4]))
+        t.getOrCreateFk((String) row[4]).set((String) row[2], (Short) row[3]);
+    }
+    return true;
   }
 
   /**
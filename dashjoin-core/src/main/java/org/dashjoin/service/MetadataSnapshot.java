@@ -0,0 +1,80 @@
+package org.dashjoin.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import org.dashjoin.util.Escape;
+import org.dashjoin.util.Home;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.java.Log;
+
+/**
+ * table metadata of a database persisted in the home folder (metadata/ID.json). On startup,
+ * SQLDatabase uses the snapshot instead of reading the catalog if the schema fingerprint did not
+ * change, and refreshes it in the background
+ */
+@Log
+public class MetadataSnapshot {
+
+  private static final ObjectMapper om = new ObjectMapper();
+
+  /**
+   * fingerprint of the schema the tables were read from (see Metadata.fingerprint)
+   */
+  public String fingerprint;
+
+  /**
+   * the tables as returned by Metadata.getTables
+   */
+  public Map<String, Object> tables;
+
+  static File file(String id) {
+    return Home.get().getFile("metadata/" + Escape.filename(id) + ".json");
+  }
+
+  /**
+   * read the tables of the database, null if there is no snapshot or if it was taken from a schema
+   * with a different fingerprint
+   */
+  public static Map<String, Object> read(String id, String fingerprint) {
+    File file = file(id);
+    if (!file.exists())
+      return null;
+    try {
+      MetadataSnapshot snapshot = om.readValue(file, MetadataSnapshot.class);
+      return fingerprint.equals(snapshot.fingerprint) ? snapshot.tables : null;
+    } catch (IOException e) {
+      log.warning("Ignoring metadata snapshot " + file + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * persist the tables of the database
+   */
+  public static void write(String id, String fingerprint, Map<String, Object> tables)
+      throws IOException {
+    MetadataSnapshot snapshot = new MetadataSnapshot();
+    snapshot.fingerprint = fingerprint;
+    snapshot.tables = tables;
+    File file = file(id);
+    file.getParentFile().mkdirs();
+
+    // readers on other nodes never see a partially written file
+    File tmp = new File(file.getPath() + ".tmp");
+    om.writeValue(tmp, snapshot);
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * true if both table metadata maps have the same JSON representation
+   */
+  public static boolean same(Map<String, Object> a, Map<String, Object> b) {
+    if (a == null || b == null)
+      return a == b;
+    return om.valueToTree(a).equals(om.valueToTree(b));
+  }
+}
@@ -1,9 +1,14 @@
 package org.dashjoin.service;
 
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import org.dashjoin.model.QueryMeta;
 import org.dashjoin.model.Table;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -13,9 +18,114 @@ import com.fasterxml.jackson.databind.SerializationFeature;
  * In memory store for query performance data. Note that the info is local to a single cluster node,
  * so results may vary between calls depending on which node computes the result. This DB serves
  * queries to config/dj-query-performance
+ *
+ * Recording a run of a known query does not lock: counters are LongAdders and latencies are kept
+ * in histograms with atomic buckets. Only adding a new query synchronizes, in order to evict the
+ * query with the smallest total runtime once CAPACITY is reached
  */
 public class PerformanceDatabase extends JSONDatabase {
 
+  /**
+   * maximum number of queries tracked
+   */
+  public static final int CAPACITY = 1000;
+
+  /**
+   * length of the time window for which recent latencies are reported
+   */
+  public static final long WINDOW_MS = 60 * 1000;
+
+  /**
+   * log linear latency histogram in microseconds (similar to HdrHistogram). Values below 16 are
+   * counted exactly, larger values in 16 sub buckets per power of two, so percentiles are reported
+   * with a relative error of at most 6.25%. Values above 2^36 us (19 hours) are counted in the
+   * last bucket
+   */
+  static class Histogram {
+
+    static final int SUB_BUCKETS = 16;
+
+    static final int MAX_EXPONENT = 36;
+
+    final AtomicLongArray counts =
+        new AtomicLongArray(SUB_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS);
+
+    final LongAdder count = new LongAdder();
+
+    final AtomicLong max = new AtomicLong();
+
+    static int index(long micros) {
+      if (micros < SUB_BUCKETS)
+        return (int) Math.max(micros, 0);
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      if (exponent > MAX_EXPONENT)
+        return SUB_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS - 1;
+      int shift = exponent - 4;
+      return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (micros >> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * largest value counted in the bucket
+     */
+    static long upper(int index) {
+      if (index < SUB_BUCKETS)
+        return index;
+      int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+      long sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+      return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    void record(long micros) {
+      counts.incrementAndGet(index(micros));
+      count.increment();
+      max.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * value below which the given fraction of the recorded values lie, in ms
+     */
+    double percentile(double fraction) {
+      long total = 0;
+      for (int i = 0; i < counts.length(); i++)
+        total += counts.get(i);
+      if (total == 0)
+        return 0;
+      long rank = (long) Math.ceil(fraction * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+        seen += counts.get(i);
+        if (seen >= rank)
+          return Math.min(upper(i), max.get()) / 1000.0;
+      }
+      return max.get() / 1000.0;
+    }
+
+    /**
+     * count and latency percentiles in ms
+     */
+    void summary(Map<String, Object> res, String prefix) {
+      res.put(prefix + "Count", count.sum());
+      res.put(prefix + "P50Ms", percentile(0.5));
+      res.put(prefix + "P95Ms", percentile(0.95));
+      res.put(prefix + "P99Ms", percentile(0.99));
+      res.put(prefix + "MaxMs", max.get() / 1000.0);
+    }
+  }
+
+  /**
+   * latencies recorded since start
+   */
+  static class Window {
+
+    final long start;
+
+    final Histogram histogram = new Histogram();
+
+    Window(long start) {
+      this.start = start;
+    }
+  }
+
   /**
    * query performance entry (one row in the dj-query-performance table)
    */
@@ -27,107 +137,150 @@ public class PerformanceDatabase extends JSONDatabase {
     /**
      * the query string / also the PK
      */
-    public String query;
+    public final String query;
 
     /**
-     * query use case / type
+     * query use case / type (read, all, query, search, create, update, delete, cache, ...)
      */
-    public String type;
+    volatile String type;
 
     /**
      * last run timestamp
      */
-    public Date lastRun;
+    volatile long lastRun;
 
     /**
-     * called how often
+     * last error
      */
-    public int count;
+    volatile String lastError;
 
     /**
-     * error how often
+     * runtime of the last run in us
      */
-    public int errorCount;
+    volatile long lastTime;
 
-    /**
-     * last error
-     */
-    public String lastError;
+    volatile Integer lastTimeoutMs;
+
+    volatile Integer lastLimit;
+
+    final LongAdder count = new LongAdder();
+
+    final LongAdder errorCount = new LongAdder();
 
     /**
-     * total aggregated runtime of all runs
+     * total aggregated runtime of all runs in us
      */
-    public long totalTimeMs;
+    final LongAdder totalTime = new LongAdder();
+
+    final LongAdder rows = new LongAdder();
+
+    final LongAdder cacheHits = new LongAdder();
+
+    final LongAdder cacheMisses = new LongAdder();
+
+    final Histogram histogram = new Histogram();
 
     /**
-     * runtime of the last run
+     * current time window
      */
-    public long lastTimeMs;
+    final AtomicReference<Window> window = new AtomicReference<>();
 
     /**
-     * last timeout
+     * the last complete time window
      */
-    public Integer lastTimeoutMs;
+    volatile Window previous;
 
     /**
-     * last limit
+     * total runtime under which the entry is currently listed in the eviction index
      */
-    public Integer lastLimit;
+    volatile long indexed;
 
     /**
-     * computed average runtime
+     * record a run
+     * 
+     * @param type operation type
+     * @param nanos runtime in nanoseconds
+     * @param rows number of rows returned
+     * @param limit optional limit given to the connection
+     * @param queryTimeout optional timeout in seconds
+     * @param error error message if the run failed
      */
-    public long getAverageTimeMs() {
-      return totalTimeMs / count;
-    }
-
-    public void add(long runtime, Integer limit, Integer queryTimeout, String error) {
-
-      for (StackTraceElement el : Thread.currentThread().getStackTrace()) {
-        if (el.getMethodName().equals("keys")) {
-          this.type = "keys";
-          break;
-        }
-        if (el.getMethodName().equals("search")) {
-          this.type = "search";
-          break;
-        }
-        if (el.getMethodName().equals("query")) {
-          this.type = "query";
-          break;
-        }
-        if (el.getMethodName().equals("all")) {
-          this.type = "all";
-          break;
-        }
-        if (el.getMethodName().equals("read")) {
-          this.type = "read";
-          break;
-        }
-        if (el.getMethodName().equals("update")) {
-          this.type = "update";
-          break;
-        }
-        if (el.getMethodName().equals("create")) {
-          this.type = "create";
-          break;
-        }
-        if (el.getMethodName().equals("delete")) {
-          this.type = "delete";
-          break;
-        }
-      }
-
+    public void add(String type, long nanos, long rows, Integer limit, Integer queryTimeout,
+        String error) {
+      long micros = nanos / 1000;
+      if (type != null)
+        this.type = type;
       if (error != null) {
         this.lastError = error;
-        this.errorCount++;
+        this.errorCount.increment();
       }
-      this.count++;
-      this.lastTimeMs = runtime;
-      this.totalTimeMs += runtime;
-      this.lastRun = new Date();
+      this.count.increment();
+      this.lastTime = micros;
+      this.totalTime.add(micros);
+      this.rows.add(rows);
+      this.lastRun = System.currentTimeMillis();
       this.lastLimit = limit;
       this.lastTimeoutMs = queryTimeout == null ? null : queryTimeout * 1000;
+      histogram.record(micros);
+      window(lastRun).histogram.record(micros);
+    }
+
+    /**
+     * get the current window, starts a new one if it is older than WINDOW_MS
+     */
+    Window window(long now) {
+      Window w = window.get();
+      if (w != null && now - w.start < WINDOW_MS)
+        return w;
+      Window next = new Window(now);
+      if (window.compareAndSet(w, next)) {
+        // report an empty window if there were no runs in the last window
+        previous = w != null && now - w.start < 2 * WINDOW_MS ? w : null;
+        return next;
+      }
+      return window.get();
+    }
+
+    /**
+     * computed cache hit ratio, null if the result is not cached
+     */
+    public Double getCacheHitRatio() {
+      long hits = cacheHits.sum();
+      long misses = cacheMisses.sum();
+      return hits + misses == 0 ? null : (double) hits / (hits + misses);
+    }
+
+    /**
+     * row of the dj-query-performance table
+     */
+    public Map<String, Object> toMap() {
+      long count = this.count.sum();
+      long total = totalTime.sum();
+      Map<String, Object> res = new LinkedHashMap<>();
+      res.put("query", query);
+      res.put("type", type);
+      res.put("lastRun", lastRun == 0 ? null : new Date(lastRun));
+      res.put("count", count);
+      res.put("errorCount", errorCount.sum());
+      res.put("lastError", lastError);
+      res.put("totalTimeMs", total / 1000);
+      res.put("lastTimeMs", lastTime / 1000);
+      res.put("averageTimeMs", count == 0 ? 0 : total / count / 1000);
+      res.put("lastTimeoutMs", lastTimeoutMs);
+      res.put("lastLimit", lastLimit);
+      res.put("rows", rows.sum());
+      res.put("p50Ms", histogram.percentile(0.5));
+      res.put("p95Ms", histogram.percentile(0.95));
+      res.put("p99Ms", histogram.percentile(0.99));
+      res.put("maxMs", histogram.max.get() / 1000.0);
+      window(System.currentTimeMillis());
+      Window w = previous;
+      res.put("windowStart", w == null ? null : new Date(w.start));
+      (w == null ? new Histogram() : w.histogram).summary(res, "window");
+      res.put("cacheHits", cacheHits.sum());
+      res.put("cacheMisses", cacheMisses.sum());
+      res.put("cacheHitRatio", getCacheHitRatio());
+      return res;
     }
   }
 
@@ -135,48 +288,122 @@ public class PerformanceDatabase extends JSONDatabase {
       new ObjectMapper().configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
 
   /**
-   * Concurrent cache. contains max 1000 entries. Queries with low total runtimes are evicted first.
+   * Concurrent cache. contains max CAPACITY entries. Queries with low total runtimes are evicted
+   * first.
    */
   static Map<String, QueryPerformance> queries = new ConcurrentHashMap<>();
 
+  /**
+   * eviction index ordered by total runtime. Runtimes only grow, so entries are re-indexed lazily
+   * when they reach the head of the index with a stale runtime
+   */
+  static ConcurrentSkipListSet<Indexed> index = new ConcurrentSkipListSet<>();
+
+  static class Indexed implements Comparable<Indexed> {
+
+    final long total;
+
+    final String query;
+
+    Indexed(long total, String query) {
+      this.total = total;
+      this.query = query;
+    }
+
+    @Override
+    public int compareTo(Indexed o) {
+      int res = Long.compare(total, o.total);
+      return res != 0 ? res : query.compareTo(o.query);
+    }
+  }
+
   @Override
   public Map<String, Object> read(Table s, Map<String, Object> search) throws Exception {
-    return objectMapper.convertValue(queries.get(search.get("ID")), JSONDatabase.tr);
+    QueryPerformance q = queries.get(search.get("ID"));
+    return q == null ? null : objectMapper.convertValue(q.toMap(), JSONDatabase.tr);
   }
 
   @Override
   public Map<String, Map<String, Object>> queryMap(QueryMeta info, Map<String, Object> arguments)
       throws Exception {
-    return objectMapper.convertValue(queries, JSONDatabase.trr);
+    Map<String, Map<String, Object>> res = new LinkedHashMap<>();
+    for (QueryPerformance q : queries.values())
+      res.put(q.query, q.toMap());
+    return objectMapper.convertValue(res, JSONDatabase.trr);
   }
 
   /**
    * update performance table
    * 
    * @param query the query that was run
-   * @param runtime query runtime in millisecs
+   * @param type operation type
+   * @param nanos query runtime in nanoseconds
+   * @param rows number of rows returned
    * @param limit optional limit given to the connection
+   * @param queryTimeout optional timeout in seconds
+   * @param error error message if the query failed
    */
-  synchronized public static void add(String query, long runtime, Integer limit,
+  public static void add(String query, String type, long nanos, long rows, Integer limit,
       Integer queryTimeout, String error) {
+    get(query).add(type, nanos, rows, limit, queryTimeout, error);
+  }
 
+  /**
+   * update the result cache statistics of a query
+   * 
+   * @param query the database and ID of the catalog query
+   * @param hit true if the result was served from the cache
+   */
+  public static void cache(String query, boolean hit) {
+    QueryPerformance q = get(query);
+    q.type = "cache";
+    q.count.increment();
+    q.lastRun = System.currentTimeMillis();
+    if (hit)
+      q.cacheHits.increment();
+    else
+      q.cacheMisses.increment();
+  }
+
+  /**
+   * get the entry for query, creates it if required
+   */
+  static QueryPerformance get(String query) {
     QueryPerformance q = queries.get(query);
-    if (q == null) {
+    if (q != null)
+      return q;
+    synchronized (PerformanceDatabase.class) {
+      q = queries.get(query);
+      if (q != null)
+        return q;
+      while (queries.size() >= CAPACITY && !index.isEmpty())
+        evict();
       q = new QueryPerformance(query);
-      if (queries.size() == 1000) {
-        // evict the entry with the smallest total runtime
-        long min = Long.MAX_VALUE;
-        String id = null;
-        for (Entry<String, QueryPerformance> e : queries.entrySet())
-          if (e.getValue().totalTimeMs < min) {
-            min = e.getValue().totalTimeMs;
-            id = e.getKey();
-          }
-        queries.remove(id);
-      }
       queries.put(query, q);
+      index.add(new Indexed(0, query));
+      return q;
     }
+  }
 
-    q.add(runtime, limit, queryTimeout, error);
+  /**
+   * remove the entry with the smallest total runtime. Entries whose runtime grew since they were
+   * indexed are re-indexed until the head of the index is up to date
+   */
+  static void evict() {
+    while (true) {
+      Indexed head = index.pollFirst();
+      if (head == null)
+        return;
+      QueryPerformance q = queries.get(head.query);
+      if (q == null)
+        continue;
+      long total = q.totalTime.sum();
+      if (total == q.indexed) {
+        queries.remove(head.query);
+        return;
+      }
+      q.indexed = total;
+      index.add(new Indexed(total, head.query));
+    }
   }
 }
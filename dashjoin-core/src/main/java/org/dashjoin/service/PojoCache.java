@@ -0,0 +1,81 @@
+package org.dashjoin.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * versioned cache of the objects PojoDatabase converts from the config DB JSON (database pojos,
+ * query catalog entries, function definitions). Every write to the config DB increments the
+ * version. Entries carry the stamp that was current when the JSON was read, so a conversion that
+ * races with a write can never be served after the write completed.
+ */
+public class PojoCache {
+
+  /**
+   * cache entry holding the converted value and the stamp it was computed with
+   */
+  static class Entry {
+    final long version;
+    final long stamp;
+    final Object value;
+
+    Entry(long version, long stamp, Object value) {
+      this.version = version;
+      this.stamp = stamp;
+      this.value = value;
+    }
+  }
+
+  /**
+   * incremented on every invalidation
+   */
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * table/ID to entry
+   */
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * current version. Must be read before reading the JSON that is converted and cached
+   */
+  public long version() {
+    return version.get();
+  }
+
+  /**
+   * get the cached value or null if there is none or if it is stale
+   *
+   * @param stamp the state of the layers the union DB currently consists of. Providers may be added
+   *        to the union directly and files may be edited outside of the application, so the
+   *        layers are part of the stamp
+   */
+  public Object get(String table, String id, long stamp) {
+    Entry e = entries.get(key(table, id));
+    if (e == null || e.version != version.get() || e.stamp != stamp)
+      return null;
+    return e.value;
+  }
+
+  /**
+   * cache value, unless the cache was invalidated since version was obtained
+   */
+  public void put(String table, String id, long version, long stamp, Object value) {
+    if (value == null || version != this.version.get())
+      return;
+    entries.put(key(table, id), new Entry(version, stamp, value));
+  }
+
+  /**
+   * drop all entries
+   */
+  public void invalidate() {
+    version.incrementAndGet();
+    entries.clear();
+  }
+
+  static String key(String table, String id) {
+    return table + "/" + id;
+  }
+}
@@ -10,12 +10,21 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.inject.Inject;
@@ -26,6 +35,7 @@ import org.dashjoin.model.QueryMeta;
 import org.dashjoin.model.Table;
 import org.dashjoin.util.Escape;
 import org.dashjoin.util.MapUtil;
+import org.eclipse.microprofile.config.ConfigProvider;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
@@ -66,6 +76,114 @@ public class PojoDatabase extends UnionDatabase implements Config {
     return ((PojoDatabase) services.getConfig())._cache;
   }
 
+  /**
+   * cache of the pojos converted from JSON, busted by writes to the config DB
+   */
+  PojoCache _pojos;
+
+  PojoCache pojos() {
+    if (_cache != null)
+      return _pojos;
+    return ((PojoDatabase) services.getConfig())._pojos;
+  }
+
+  /**
+   * metadata collection progress per database ID (status, start time, duration, number of tables)
+   */
+  final Map<String, Map<String, Object>> _progress = new ConcurrentHashMap<>();
+
+  Map<String, Map<String, Object>> progress() {
+    if (_cache != null)
+      return _progress;
+    return ((PojoDatabase) services.getConfig())._progress;
+  }
+
+  /**
+   * default time metadataCollection() waits for the databases. Databases that take longer keep
+   * connecting in the background and publish their tables once they are done
+   */
+  static final long DEFAULT_METADATA_TIMEOUT_MS = 30 * 1000;
+
+  static long metadataTimeoutMs;
+
+  static synchronized long metadataTimeoutMs() {
+    if (metadataTimeoutMs == 0)
+      try {
+        metadataTimeoutMs = ConfigProvider.getConfig()
+            .getOptionalValue("dashjoin.metadata.timeout-ms", Long.class)
+            .orElse(DEFAULT_METADATA_TIMEOUT_MS);
+      } catch (RuntimeException e) {
+        // no config outside of quarkus
+        metadataTimeoutMs = DEFAULT_METADATA_TIMEOUT_MS;
+      }
+    return metadataTimeoutMs;
+  }
+
+  /**
+   * default time a single database may take to connect in the background. Databases that take
+   * longer are cancelled and marked with TIMEOUT, so the readiness probe does not wait forever
+   */
+  static final long DEFAULT_DATABASE_TIMEOUT_MS = 10 * 60 * 1000;
+
+  static long databaseTimeoutMs;
+
+  static synchronized long databaseTimeoutMs() {
+    if (databaseTimeoutMs == 0)
+      try {
+        databaseTimeoutMs = ConfigProvider.getConfig()
+            .getOptionalValue("dashjoin.metadata.database-timeout-ms", Long.class)
+            .orElse(DEFAULT_DATABASE_TIMEOUT_MS);
+      } catch (RuntimeException e) {
+        // no config outside of quarkus
+        databaseTimeoutMs = DEFAULT_DATABASE_TIMEOUT_MS;
+      }
+    return databaseTimeoutMs;
+  }
+
+  /**
+   * status of a database that did not connect within the database timeout
+   */
+  static final String TIMEOUT = "Error: timeout";
+
+  /**
+   * cancels the collection of databases that exceed the database timeout
+   */
+  static ScheduledExecutorService watchdog;
+
+  static synchronized ScheduledExecutorService watchdog() {
+    if (watchdog == null)
+      watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dj-metadata-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      });
+    return watchdog;
+  }
+
+  /**
+   * threads connecting the databases in parallel
+   */
+  static ExecutorService collector;
+
+  static synchronized ExecutorService collector() {
+    if (collector == null)
+      collector = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "dj-metadata-collection");
+        thread.setDaemon(true);
+        return thread;
+      });
+    return collector;
+  }
+
+  /**
+   * invalidate the converted pojos (called whenever the config DB or one of its layers changes)
+   */
+  void invalidatePojos() {
+    PojoCache pojos = pojos();
+    if (pojos != null)
+      pojos.invalidate();
+  }
+
   @Override
   public PojoDatabase getConfigDatabase() throws Exception {
     return (PojoDatabase) getDatabase(services.getDashjoinID() + "/config");
@@ -74,6 +192,7 @@ public class PojoDatabase extends UnionDatabase implements Config {
   @Override
   public void addDB(ProviderDatabase db) {
     dbs().add(db);
+    invalidatePojos();
   }
 
   /**
@@ -86,9 +205,13 @@ public class PojoDatabase extends UnionDatabase implements Config {
    */
   @Override
   public AbstractDatabase getDatabase(String id) throws Exception {
-    AbstractDatabase db = get("dj-database", id, AbstractDatabase.class);
+    AbstractDatabase db = cached("dj-database", id,
+        () -> readOnly(get("dj-database", id, AbstractDatabase.class)));
     if (db == null)
       throw new IllegalArgumentException("Unknown database: " + id);
+    // copy so callers changing the tables do not affect each other. The tables themselves are
+    // shared and read only
+    db = db.copy();
     if (db instanceof PojoDatabase)
       ((PojoDatabase) db).services = this.services;
     return db;
@@ -97,7 +220,11 @@ public class PojoDatabase extends UnionDatabase implements Config {
   @SuppressWarnings("unchecked")
   @Override
   public AbstractFunction<Object, Object> getFunction(String id) throws Exception {
-    AbstractFunction<Object, Object> db = get("dj-function", id, AbstractFunction.class);
+    // functions carry per call state (security context, read only flag), so only the merged JSON
+    // is cached and each call gets a fresh instance
+    Map<String, Object> json =
+        cached("dj-function", id, () -> read(Table.ofName("dj-function"), of("ID", id)));
+    AbstractFunction<Object, Object> db = convert("dj-function", json, AbstractFunction.class);
     if (db == null)
       throw new IllegalArgumentException("Unknown function: " + id);
     return db;
@@ -108,7 +235,37 @@ public class PojoDatabase extends UnionDatabase implements Config {
    */
   @Override
   public List<AbstractDatabase> getDatabases() throws Exception {
-    return all("dj-database", AbstractDatabase.class);
+    // copy so callers cannot change the cached list or tables
+    List<AbstractDatabase> res = new ArrayList<>();
+    for (AbstractDatabase db : cached("dj-database", "*", () -> {
+      List<AbstractDatabase> all = all("dj-database", AbstractDatabase.class);
+      for (AbstractDatabase db : all)
+        readOnly(db);
+      return all;
+    }))
+      res.add(db.copy());
+    return res;
+  }
+
+  /**
+   * the cached databases share their Table and Property objects with all callers. Wrap their
+   * collections, so changing the shared metadata fails instead of affecting other requests
+   */
+  static AbstractDatabase readOnly(AbstractDatabase db) {
+    if (db != null && db.tables != null)
+      for (Table t : db.tables.values()) {
+        if (t.properties != null) {
+          for (Property p : t.properties.values())
+            if (p.properties != null)
+              p.properties = Collections.unmodifiableMap(p.properties);
+          t.properties = Collections.unmodifiableMap(t.properties);
+        }
+        if (t.readRoles != null)
+          t.readRoles = Collections.unmodifiableList(t.readRoles);
+        if (t.writeRoles != null)
+          t.writeRoles = Collections.unmodifiableList(t.writeRoles);
+      }
+    return db;
   }
 
   /**
@@ -116,6 +273,18 @@ public class PojoDatabase extends UnionDatabase implements Config {
    */
   @Override
   public QueryMeta getQueryMeta(String id) throws Exception {
+    return cached("dj-query-catalog", id, () -> {
+      // shared like the tables
+      QueryMeta res = getQueryMetaInternal(id);
+      if (res != null && res.roles != null)
+        res.roles = Collections.unmodifiableList(res.roles);
+      if (res != null && res.arguments != null)
+        res.arguments = Collections.unmodifiableMap(res.arguments);
+      return res;
+    });
+  }
+
+  QueryMeta getQueryMetaInternal(String id) throws Exception {
     QueryMeta res = get("dj-query-catalog", id, QueryMeta.class);
 
     // avoid having to have a query catalog entry for pojo method config queries #209
@@ -139,16 +308,17 @@ public class PojoDatabase extends UnionDatabase implements Config {
    */
   @Override
   public Table getSchema(String ID) throws Exception {
-    for (Database m : getDatabases())
-      if (((AbstractDatabase) m).tables != null)
-        for (Table s : ((AbstractDatabase) m).tables.values()) {
-          // may be called with a table ID or a column ID
-          if (ID.equals(s.ID))
-            return s;
-          if (ID.startsWith(s.ID + "/"))
-            return s;
-        }
-    return null;
+    // may be called with a table ID or a column ID. The index is rebuilt whenever metadata
+    // collection or a config edit invalidates the pojo cache
+    return cached("Table", "*", () -> new SchemaIndex(getDatabases())).get(ID);
+  }
+
+  /**
+   * get the reverse foreign key index, rebuilt like the schema index
+   */
+  @Override
+  public ReferenceIndex getReferences() throws Exception {
+    return cached("Reference", "*", () -> new ReferenceIndex(getDatabases()));
   }
 
   /**
@@ -168,6 +338,55 @@ public class PojoDatabase extends UnionDatabase implements Config {
     return res;
   }
 
+  /**
+   * loader called on a pojo cache miss
+   */
+  interface Loader<T> {
+    T load() throws Exception;
+  }
+
+  /**
+   * serve table / id from the pojo cache, use loader on a cache miss
+   */
+  @SuppressWarnings("unchecked")
+  <T> T cached(String table, String id, Loader<T> loader) throws Exception {
+    PojoCache pojos = pojos();
+    if (pojos == null)
+      return loader.load();
+
+    // read the stamp before reading the JSON
+    long stamp = stamp();
+    Object res = pojos.get(table, id, stamp);
+    if (res != null)
+      return (T) res;
+    long version = pojos.version();
+    T pojo = loader.load();
+    pojos.put(table, id, version, stamp, pojo);
+    return pojo;
+  }
+
+  /**
+   * combines the number of layers and their modification counters
+   */
+  long stamp() {
+    List<JSONDatabase> all = all();
+    long res = all.size();
+    for (JSONDatabase db : all)
+      res = 31 * res + db.version();
+    return res;
+  }
+
+  /**
+   * serve "get all" queries from an immutable snapshot of the merged layers. The snapshot is
+   * rebuilt after changes, callers get a copy they may change
+   */
+  List<Map<String, Object>> union(QueryMeta qi, Map<String, Object> arguments) throws Exception {
+    if (qi.query.contains("/"))
+      return super.query(qi, arguments);
+    return MapUtil.copy(cached("query", qi.query,
+        () -> Collections.unmodifiableList(super.query(qi, arguments))));
+  }
+
   /**
    * like read(id) but maps to pojo
    */
@@ -294,7 +513,7 @@ public class PojoDatabase extends UnionDatabase implements Config {
           }
       }
     }
-    res.addAll(super.query(qi, arguments));
+    res.addAll(union(qi, arguments));
     return res;
   }
 
@@ -357,6 +576,7 @@ public class PojoDatabase extends UnionDatabase implements Config {
       else
         user().update(Table.ofName("dj-database"), of("ID", parts[0] + "/" + parts[1]),
             MapUtil.of("tables", tables.isEmpty() ? null : tables));
+      invalidatePojos();
       return true;
     }
     if (schema.name.equals("Property")) {
@@ -421,6 +641,7 @@ public class PojoDatabase extends UnionDatabase implements Config {
       else
         user().update(Table.ofName("dj-database"), of("ID", parts[0] + "/" + parts[1]),
             MapUtil.of("tables", tables.isEmpty() ? null : tables));
+      invalidatePojos();
       return true;
     }
 
@@ -429,7 +650,9 @@ public class PojoDatabase extends UnionDatabase implements Config {
       object.remove("tables");
     }
 
-    if (super.update(schema, search, object)) {
+    boolean updated = super.update(schema, search, object);
+    invalidatePojos();
+    if (updated) {
       String id = "" + search.get("ID");
       if (schema.name.equals("dj-database")) {
         removeCache(id);
@@ -462,6 +685,7 @@ public class PojoDatabase extends UnionDatabase implements Config {
         throw new Exception("Dashjoin name must not contain special characters");
     }
     super.create(m, object);
+    invalidatePojos();
     if (m.name.equals("dj-database"))
       metadataCollection(getDatabase((String) object.get("ID")));
   }
@@ -484,6 +708,7 @@ public class PojoDatabase extends UnionDatabase implements Config {
         tables.remove(parts[2]);
         user().update(Table.ofName("dj-database"), of("ID", parts[0] + "/" + parts[1]),
             MapUtil.of("tables", tables.isEmpty() ? null : tables));
+        invalidatePojos();
       }
       return true;
     }
@@ -519,6 +744,7 @@ public class PojoDatabase extends UnionDatabase implements Config {
 
           user().update(Table.ofName("dj-database"), of("ID", parts[0] + "/" + parts[1]),
               MapUtil.of("tables", tables.isEmpty() ? null : tables));
+          invalidatePojos();
         }
         return true;
       } else
@@ -530,7 +756,11 @@ public class PojoDatabase extends UnionDatabase implements Config {
       if (read(schema, search) != null)
         removeCache(id);
 
-    return super.delete(schema, search);
+    try {
+      return super.delete(schema, search);
+    } finally {
+      invalidatePojos();
+    }
   }
 
   /**
@@ -552,6 +782,7 @@ public class PojoDatabase extends UnionDatabase implements Config {
     if (toDel != null)
       dbs().remove(toDel);
     cache().remove(id);
+    invalidatePojos();
   }
 
   /**
@@ -583,6 +814,21 @@ public class PojoDatabase extends UnionDatabase implements Config {
     return projected;
   }
 
+  /**
+   * custom query. connection pool statistics of the SQL databases
+   */
+  @ConfigQuery(query = "dj-connection-pools", table = "dj-database")
+  public List<Map<String, Object>> queryConnectionPools(QueryMeta qi,
+      Map<String, Object> arguments) throws Exception {
+    List<Map<String, Object>> res = new ArrayList<>();
+    for (AbstractDatabase db : getDatabases()) {
+      AbstractDatabase cached = getCached(db.ID);
+      if (cached instanceof SQLDatabase)
+        res.add(((SQLDatabase) cached).poolMetrics());
+    }
+    return res;
+  }
+
   /**
    * get simple class name
    */
@@ -858,46 +1104,159 @@ public class PojoDatabase extends UnionDatabase implements Config {
     metadataCollection(getDatabase(id));
   }
 
+  /**
+   * connects all databases in parallel. Waits until all databases are done or until the metadata
+   * timeout passed. Each database publishes its tables as soon as it is done
+   */
   @Override
   public void metadataCollection() {
+    awaitMetadataCollection(startMetadataCollection());
+  }
+
+  /**
+   * register all databases and start connecting them in the background
+   * 
+   * @return database ID to collection task
+   */
+  Map<String, Future<?>> startMetadataCollection() {
+    Map<String, Future<?>> tasks = new LinkedHashMap<>();
     try {
       for (Database db : getDatabases()) {
-        metadataCollection(db);
+        Map<String, Object> database = register(db);
+        if (database != null) {
+          AbstractDatabase a = (AbstractDatabase) db;
+          long start = System.currentTimeMillis();
+          Future<?> task = collector().submit(() -> collect(a, database));
+          watchdog().schedule(() -> timeout(a, database, task, start), databaseTimeoutMs(),
+              TimeUnit.MILLISECONDS);
+          tasks.put(a.ID, task);
+        }
       }
     } catch (Exception e) {
       // thrown by getDatabase, something is very wrong
       throw new RuntimeException(e);
     }
+    return tasks;
   }
 
-  void metadataCollection(Database db) {
-    try {
-      metadataCollectionEx(db);
-    } catch (Exception e) {
-      // log but ignore
-      logger.warning("Ignoring metadata collection error: " + e);
-      // Stacktrace only shown in fine log
-      logger.log(Level.FINE, "Ignoring metadata collection error", e);
+  /**
+   * wait for the collection tasks, at most until the metadata timeout passed
+   */
+  void awaitMetadataCollection(Map<String, Future<?>> tasks) {
+    long deadline = System.currentTimeMillis() + metadataTimeoutMs();
+    for (Entry<String, Future<?>> task : tasks.entrySet())
+      try {
+        task.getValue().get(Math.max(deadline - System.currentTimeMillis(), 0),
+            TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        logger.warning("Metadata collection still running in the background: " + task.getKey());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        // errors are logged by collect
+      }
+  }
+
+  /**
+   * cancel the collection task if it is still running and mark the database with TIMEOUT
+   */
+  void timeout(AbstractDatabase a, Map<String, Object> database, Future<?> task, long start) {
+    synchronized (database) {
+      if (task.isDone())
+        return;
+      database.put("status", TIMEOUT);
+      // the database might have been registered again in the meantime
+      if (cache().get(a.ID) == a)
+        progress(a.ID, TIMEOUT, start, null);
     }
+    logger.warning("Metadata collection timed out: " + a.ID);
+    task.cancel(true);
+    invalidatePojos();
   }
 
-  @SuppressWarnings("unchecked")
+  void metadataCollection(Database db) {
+    Map<String, Object> database = register(db);
+    if (database != null)
+      collect((AbstractDatabase) db, database);
+  }
+
+  /**
+   * like metadataCollection(db), but throws errors
+   */
   void metadataCollectionEx(Database db) throws Exception {
+    Map<String, Object> database = register(db);
+    if (database != null)
+      collectEx((AbstractDatabase) db, database);
+  }
+
+  /**
+   * put the database in the cache and publish a "connecting..." placeholder without tables.
+   * Returns the placeholder, null if the database is already cached
+   */
+  Map<String, Object> register(Database db) {
     // Ignore null DBs - only happens when i.e. DB class was removed/renamed
     if (db == null)
-      return;
+      return null;
 
     AbstractDatabase a = (AbstractDatabase) db;
 
-    Object cached = getCached(a.ID);
-    if (cached != null)
-      return;
+    if (cache().putIfAbsent(a.ID, a) != null)
+      return null;
 
-    putCache(a.ID, a);
+    // the collector only replaces the values of the existing keys, so readers never see the map
+    // being restructured
     Map<String, Object> database = Maps.newHashMap(of("status", "connecting...", "tables", of()));
     ProviderDatabase provider = new ProviderDatabase(a.ID, of("dj-database", of(a.ID, database)));
     this.addDB(provider);
+    progress(a.ID, "connecting...", System.currentTimeMillis(), null);
+    return database;
+  }
 
+  void progress(String id, String status, long start, Integer tables) {
+    Map<String, Object> res = new LinkedHashMap<>();
+    res.put("ID", id);
+    res.put("status", status);
+    res.put("start", new Date(start));
+    res.put("durationMs", System.currentTimeMillis() - start);
+    res.put("tables", tables);
+    res.put("done", !"connecting...".equals(status));
+    progress().put(id, res);
+  }
+
+  /**
+   * the metadata collection progress of all databases
+   */
+  public List<Map<String, Object>> getProgress() {
+    List<Map<String, Object>> res = new ArrayList<>();
+    for (Map<String, Object> p : progress().values()) {
+      p = new LinkedHashMap<>(p);
+      if (!(Boolean) p.get("done"))
+        p.put("durationMs", System.currentTimeMillis() - ((Date) p.get("start")).getTime());
+      res.add(p);
+    }
+    res.sort((a, b) -> ((String) a.get("ID")).compareTo((String) b.get("ID")));
+    return res;
+  }
+
+  /**
+   * connect to the database and publish its tables, errors are logged
+   */
+  Void collect(AbstractDatabase a, Map<String, Object> database) {
+    try {
+      collectEx(a, database);
+    } catch (Exception e) {
+      // log but ignore
+      logger.warning("Ignoring metadata collection error: " + e);
+      // Stacktrace only shown in fine log
+      logger.log(Level.FINE, "Ignoring metadata collection error", e);
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  void collectEx(AbstractDatabase a, Map<String, Object> database) throws Exception {
+    long start = System.currentTimeMillis();
     try {
       Map<String, Object> meta = a.connectAndCollectMetadata();
 
@@ -919,12 +1278,27 @@ public class PojoDatabase extends UnionDatabase implements Config {
         }
       }
 
-      if (meta != null)
-        database.put("tables", meta);
-      database.put("status", "OK");
+      synchronized (database) {
+        if (TIMEOUT.equals(database.get("status")))
+          // the watchdog gave up on the database
+          return;
+        if (meta != null)
+          database.put("tables", meta);
+        database.put("status", "OK");
+        progress(a.ID, "OK", start, meta == null ? 0 : meta.size());
+      }
     } catch (Exception e) {
-      database.put("status", "Error: " + ExMapper.getMessage(e));
+      synchronized (database) {
+        // keep the timeout, the error is likely caused by the interrupt
+        if (!TIMEOUT.equals(database.get("status"))) {
+          database.put("status", "Error: " + ExMapper.getMessage(e));
+          progress(a.ID, (String) database.get("status"), start, null);
+        }
+      }
       throw e;
+    } finally {
+      // the provider's data was changed in place
+      invalidatePojos();
     }
   }
 
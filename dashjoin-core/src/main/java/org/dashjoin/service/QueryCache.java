@@ -0,0 +1,223 @@
+package org.dashjoin.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.ws.rs.core.SecurityContext;
+import org.dashjoin.model.AbstractDatabase;
+import org.dashjoin.model.QueryMeta;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * opt-in cache for catalog query results, enabled per query via QueryMeta.cacheTtlMs. Entries are
+ * keyed by database, query, arguments and the roles of the caller that are relevant to the query.
+ * They expire after the TTL, the least recently used entries are evicted once CAPACITY is reached,
+ * and writes via Data drop the entries of all queries reading the table written to. Like the
+ * performance data, the cache is local to a cluster node
+ */
+public class QueryCache {
+
+  /**
+   * maximum number of cached results
+   */
+  public static final int CAPACITY = 1000;
+
+  /**
+   * runs the query on a cache miss
+   */
+  public interface Loader {
+    List<Map<String, Object>> load() throws Exception;
+  }
+
+  static class Entry {
+
+    List<Map<String, Object>> result;
+
+    long expires;
+
+    String database;
+
+    /**
+     * normalized names of the tables read by the query
+     */
+    Set<String> tables;
+  }
+
+  static final ObjectMapper om =
+      new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+  static final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > CAPACITY;
+    }
+  };
+
+  /**
+   * incremented by every invalidation. A result is only stored if no write happened while the
+   * query was running
+   */
+  static long version;
+
+  /**
+   * get the query result from the cache or run the query using the loader. Results are not cached
+   * if the query does not enable caching, is a write query, or if the tables it reads are unknown.
+   * A null result is passed on but not cached
+   */
+  public static List<Map<String, Object>> get(SecurityContext sc, String database, Database db,
+      QueryMeta info, Map<String, Object> arguments, boolean graph, Loader loader)
+      throws Exception {
+    if (info.cacheTtlMs == null || "write".equals(info.type))
+      return loader.load();
+
+    String key = key(sc, database, db, info, arguments, graph);
+    String perf = "cache: " + database + "/" + info.ID;
+    Entry cached;
+    long start;
+    synchronized (entries) {
+      cached = entries.get(key);
+      if (cached != null && cached.expires <= System.currentTimeMillis()) {
+        entries.remove(key);
+        cached = null;
+      }
+      start = version;
+    }
+    if (cached != null) {
+      PerformanceDatabase.cache(perf, true);
+      return copy(cached.result);
+    }
+
+    Set<String> tables = tables(db, info.query);
+    if (tables == null)
+      // we would not know when to invalidate the result
+      return loader.load();
+
+    PerformanceDatabase.cache(perf, false);
+    List<Map<String, Object>> res = loader.load();
+    if (res == null)
+      return null;
+
+    Entry e = new Entry();
+    e.result = copy(res);
+    e.expires = System.currentTimeMillis() + info.cacheTtlMs;
+    e.database = database;
+    e.tables = tables;
+    synchronized (entries) {
+      if (version == start)
+        entries.put(key, e);
+    }
+    return res;
+  }
+
+  /**
+   * copy of the rows, so callers modifying the result do not change the cached entry
+   */
+  @SuppressWarnings("unchecked")
+  static List<Map<String, Object>> copy(List<Map<String, Object>> rows) {
+    return (List<Map<String, Object>>) copy((Object) rows);
+  }
+
+  /**
+   * deep copy of nested maps and lists, other values are immutable or not modified by the callers
+   */
+  @SuppressWarnings("unchecked")
+  static Object copy(Object o) {
+    if (o instanceof Map) {
+      Map<String, Object> res = new LinkedHashMap<>();
+      for (Map.Entry<String, Object> e : ((Map<String, Object>) o).entrySet())
+        res.put(e.getKey(), copy(e.getValue()));
+      return res;
+    }
+    if (o instanceof List) {
+      List<Object> res = new ArrayList<>();
+      for (Object item : (List<Object>) o)
+        res.add(copy(item));
+      return res;
+    }
+    return o;
+  }
+
+  /**
+   * database, query type, query text, arguments and the roles the caller holds among the ones
+   * granting access to the query or database
+   */
+  static String key(SecurityContext sc, String database, Database db, QueryMeta info,
+      Map<String, Object> arguments, boolean graph) throws Exception {
+    Set<String> candidates = new HashSet<>();
+    candidates.add("admin");
+    if (info.roles != null)
+      candidates.addAll(info.roles);
+    if (db instanceof AbstractDatabase && ((AbstractDatabase) db).readRoles != null)
+      candidates.addAll(((AbstractDatabase) db).readRoles);
+    Set<String> roles = new TreeSet<>();
+    for (String role : candidates)
+      if (sc.isUserInRole(role))
+        roles.add(role);
+    return database + "\0" + graph + "\0" + info.ID + "\0" + info.query + "\0"
+        + om.writeValueAsString(arguments) + "\0" + roles;
+  }
+
+  /**
+   * normalized names of the tables read by the query, null if they cannot be determined
+   */
+  static Set<String> tables(Database db, String query) {
+    try {
+      List<String> tables = db.getTablesInQuery(query);
+      if (tables == null || tables.isEmpty())
+        return null;
+      Set<String> res = new HashSet<>();
+      for (String table : tables)
+        if (table != null)
+          res.add(normalize(table));
+      return res;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * lower case table name without quotes
+   */
+  static String normalize(String table) {
+    return table.replaceAll("[\"`\\[\\]]", "").toLowerCase();
+  }
+
+  /**
+   * drop the results of the queries reading the table. Table names returned by getTablesInQuery
+   * might be qualified with a schema, so schema.table matches table
+   */
+  public static void invalidate(String database, String table) {
+    String t = normalize(table);
+    synchronized (entries) {
+      version++;
+      entries.values().removeIf(e -> e.database.equals(database)
+          && e.tables.stream().anyMatch(x -> x.equals(t) || x.endsWith("." + t)));
+    }
+  }
+
+  /**
+   * drop the results of all queries on the database
+   */
+  public static void invalidate(String database) {
+    synchronized (entries) {
+      version++;
+      entries.values().removeIf(e -> e.database.equals(database));
+    }
+  }
+
+  /**
+   * number of cached results
+   */
+  public static int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.dashjoin.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.SecurityContext;
+import org.dashjoin.model.AbstractDatabase;
+import org.dashjoin.model.Property;
+import org.dashjoin.model.Table;
+
+/**
+ * reverse foreign key index from the ID of a pk column (dj/db/table/column) to the fk columns
+ * referencing it across all databases. Data.incoming only runs the lookups listed here instead of
+ * scanning all databases and tables. The index is immutable, PojoDatabase builds a new one whenever
+ * metadata collection or a config edit invalidates the pojo cache
+ */
+public class ReferenceIndex {
+
+  /**
+   * fk column referencing a pk
+   */
+  public static class Reference {
+
+    public final AbstractDatabase db;
+
+    public final Table table;
+
+    public final Property property;
+
+    Reference(AbstractDatabase db, Table table, Property property) {
+      this.db = db;
+      this.table = table;
+      this.property = property;
+    }
+  }
+
+  /**
+   * pk column ID to references
+   */
+  private final Map<String, List<Reference>> references = new HashMap<>();
+
+  /**
+   * databases that find incoming links themselves rather than via the fk metadata
+   */
+  private final List<AbstractDatabase> custom = new ArrayList<>();
+
+  public ReferenceIndex(List<AbstractDatabase> dbs) {
+    for (AbstractDatabase db : dbs) {
+      if (overridesIncoming(db))
+        custom.add(db);
+      else if (db.tables != null)
+        for (Table s : db.tables.values())
+          if (s.name != null && s.properties != null)
+            for (Property p : s.properties.values()) {
+              String ref = p.items == null ? p.ref : p.items.ref;
+              if (ref != null)
+                references.computeIfAbsent(ref, k -> new ArrayList<>())
+                    .add(new Reference(db, s, p));
+            }
+    }
+  }
+
+  /**
+   * true if the database implements its own incoming lookup (e.g. RDF4J)
+   */
+  static boolean overridesIncoming(AbstractDatabase db) {
+    try {
+      return db.getClass().getMethod("incoming", SecurityContext.class, String.class, String.class,
+          String.class, Integer.class, Integer.class, long.class, Integer.class, String.class)
+          .getDeclaringClass() != AbstractDatabase.class;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * fk columns referencing the pk column
+   */
+  public List<Reference> get(String pk) {
+    List<Reference> res = references.get(pk);
+    return res == null ? Collections.emptyList() : res;
+  }
+
+  /**
+   * databases whose incoming method must be called for every lookup
+   */
+  public List<AbstractDatabase> custom() {
+    return custom;
+  }
+}
@@ -1,17 +1,15 @@
 package org.dashjoin.service;
 
 import static org.dashjoin.service.QueryEditor.Col.col;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
 import java.sql.Blob;
 import java.sql.Clob;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -30,6 +28,8 @@ import java.time.format.DateTimeFormatter;
 import java.time.temporal.TemporalAccessor;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -37,7 +37,15 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.ws.rs.NotAuthorizedException;
@@ -49,6 +57,8 @@ import org.dashjoin.model.Property;
 import org.dashjoin.model.QueryMeta;
 import org.dashjoin.model.Table;
 import org.dashjoin.service.Data.Choice;
+import org.dashjoin.service.Data.Columnar;
+import org.dashjoin.service.Data.Page;
 import org.dashjoin.service.Data.Resource;
 import org.dashjoin.service.Data.SearchResult;
 import org.dashjoin.service.QueryEditor.Col;
@@ -122,63 +132,133 @@ public class SQLDatabase extends AbstractDatabase {
    */
   public List<String> initScripts;
 
+  /**
+   * JSON config field: maximum number of open connections (default 8)
+   */
+  public Integer maxTotal;
+
+  /**
+   * JSON config field: maximum number of idle connections kept open (default 8)
+   */
+  public Integer maxIdle;
+
+  /**
+   * JSON config field: minimum number of idle connections kept open (default 0)
+   */
+  public Integer minIdle;
+
+  /**
+   * JSON config field: time to wait for a free connection before failing (default: no limit)
+   */
+  public Long maxWaitMs;
+
+  /**
+   * JSON config field: query used to validate connections before they are handed out (default:
+   * Connection.isValid)
+   */
+  public String validationQuery;
+
+  /**
+   * JSON config field: connections not used for this many seconds are considered leaked. They are
+   * closed by the pool evictor and the stack trace of the code that borrowed them is logged
+   * (default: off)
+   */
+  public Integer leakDetectionSeconds;
+
+  /**
+   * JSON config field: number of rows fetched per round trip (default: driver default)
+   */
+  public Integer fetchSize;
+
+  /**
+   * JSON config field: number of prepared statements kept open per connection, 0 disables
+   * statement pooling (default MAX_OPEN_PREPARED_STATEMENTS)
+   */
+  public Integer maxOpenPreparedStatements;
+
+  /**
+   * JSON config field: persist the table metadata in the home folder. On startup, the snapshot is
+   * used instead of reading the catalog if the schema fingerprint did not change. The metadata is
+   * then read in the background and published if it differs from the snapshot
+   */
+  public Boolean metadataSnapshot;
+
   /**
    * DB connection pool
    */
   BasicDataSource _cp;
 
   /**
-   * dynamic proxy used to intercept and trace JDBC calls
+   * where the database sorts null values: high, low, start or end (see DatabaseMetaData)
    */
-  public class Aspect implements InvocationHandler {
+  String nullOrder = "low";
 
-    long start = System.currentTimeMillis();
-    Connection con;
-    java.sql.Statement stmt;
-    Integer maxRows;
-    Integer queryTimeout;
-    String query;
-    String error;
+  /**
+   * number of threads currently waiting for a connection from the pool
+   */
+  final AtomicInteger waiting = new AtomicInteger();
 
-    public Aspect(Connection con) {
-      this.con = con;
-    }
+  /**
+   * number of failed attempts to get a connection from the pool
+   */
+  final LongAdder acquireErrors = new LongAdder();
 
-    @Override
-    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-      if (method.equals(
-          java.sql.Connection.class.getMethod("prepareStatement", new Class[] {String.class}))) {
-        query = (String) args[0];
-        stmt = con.prepareStatement(query);
-        return Proxy.newProxyInstance(this.getClass().getClassLoader(),
-            new Class[] {PreparedStatement.class}, this);
-      }
-      if (method.getName().equals("createStatement")) {
-        stmt = con.createStatement();
-        return Proxy.newProxyInstance(this.getClass().getClassLoader(),
-            new Class[] {java.sql.Statement.class}, this);
-      }
-      if (method.getName().equals("execute"))
-        query = (String) args[0];
-      if (method.getName().equals("setMaxRows"))
-        maxRows = (Integer) args[0];
-      if (method.getName().equals("setQueryTimeout"))
-        queryTimeout = (Integer) args[0];
-      if (method.equals(Connection.class.getMethod("close")))
-        PerformanceDatabase.add(ID + ": " + query, System.currentTimeMillis() - start, maxRows,
-            queryTimeout, error);
-      if (method
-          .equals(java.sql.Statement.class.getMethod("executeQuery", new Class[] {String.class})))
-        query = (String) args[0];
+  /**
+   * time spent waiting for a connection from the pool
+   */
+  final PerformanceDatabase.Histogram acquire = new PerformanceDatabase.Histogram();
 
-      try {
-        return method.invoke(method.getDeclaringClass().equals(Connection.class) ? con : stmt,
-            args);
-      } catch (InvocationTargetException e) {
-        error = e.getCause().toString();
-        throw e.getCause();
-      }
-    }
+  /**
+   * number of prepared statements DBCP keeps open per connection
+   */
+  static final int MAX_OPEN_PREPARED_STATEMENTS = 100;
+
+  /**
+   * interval in which DBCP tops up the idle connections if minIdle is set
+   */
+  static final long EVICTION_RUN_MS = 30 * 1000;
+
+  /**
+   * named parameter queries translated to JDBC placeholders, keyed by the query text
+   */
+  static final StatementCache<ParsedStmt> parsedStatements = new StatementCache<>();
+
+  /**
+   * generated select, insert, update, delete and upsert statements, keyed by operation, table and
+   * columns (see key())
+   */
+  final StatementCache<String> statements = new StatementCache<>();
+
+  /**
+   * parsed queries, keyed by the query text
+   */
+  final StatementCache<TableName> tableNames = new StatementCache<>();
+
+  /**
+   * like getConnection, the runs are reported to PerformanceDatabase as the given operation type
+   */
+  Connection getConnection(String operation) throws SQLException {
+    Connection con = getConnection();
+    if (con instanceof TracedConnection)
+      ((TracedConnection) con).operation = operation;
+    return con;
+  }
+
+  /**
+   * borrow a connection from the pool and wrap it, the statements use the configured fetchSize
+   */
+  TracedConnection traced() throws SQLException {
+    TracedConnection con = new TracedConnection(ID, borrow());
+    con.fetchSize = fetchSize;
+    return con;
+  }
+
+  /**
+   * report the number of rows read via the connection to PerformanceDatabase
+   */
+  static void rows(Connection con, long rows) {
+    if (con instanceof TracedConnection)
+      ((TracedConnection) con).rows += rows;
   }
 
   public Connection getConnection() throws SQLException {
@@ -186,8 +266,7 @@ public class SQLDatabase extends AbstractDatabase {
       SQLDatabase x = services.getConfig().getCachedForce(ID, getClass());
       if (x._cp == null)
         throw new Exception("Database not yet initialized: " + ID);
-      return (Connection) Proxy.newProxyInstance(this.getClass().getClassLoader(),
-          new Class[] {Connection.class}, new Aspect(x._cp.getConnection()));
+      return x.traced();
     } catch (SQLException e) {
       throw e;
     } catch (Exception e) {
@@ -195,6 +274,42 @@ public class SQLDatabase extends AbstractDatabase {
     }
   }
 
+  /**
+   * get a connection from the pool and record the time spent waiting for it
+   */
+  Connection borrow() throws SQLException {
+    long start = System.nanoTime();
+    waiting.incrementAndGet();
+    try {
+      return _cp.getConnection();
+    } catch (SQLException e) {
+      acquireErrors.increment();
+      if (e.getCause() instanceof NoSuchElementException)
+        throw new SQLException("Connection pool of " + ID + " exhausted: " + _cp.getNumActive()
+            + " of " + _cp.getMaxTotal() + " connections in use, " + (waiting.get() - 1)
+            + " other requests waiting", e);
+      throw e;
+    } finally {
+      waiting.decrementAndGet();
+      acquire.record((System.nanoTime() - start) / 1000);
+    }
+  }
+
+  /**
+   * connection pool statistics: open, idle and waiting connections and the time spent waiting
+   */
+  public Map<String, Object> poolMetrics() {
+    Map<String, Object> res = new LinkedHashMap<>();
+    res.put("ID", ID);
+    res.put("active", _cp == null ? 0 : _cp.getNumActive());
+    res.put("idle", _cp == null ? 0 : _cp.getNumIdle());
+    res.put("waiting", waiting.get());
+    res.put("maxTotal", _cp == null ? null : _cp.getMaxTotal());
+    res.put("acquireErrors", acquireErrors.sum());
+    acquire.summary(res, "acquire");
+    return res;
+  }
+
   /**
    * get reference to DB connection pool
    * 
@@ -216,6 +331,31 @@ public class SQLDatabase extends AbstractDatabase {
     if (url.startsWith("jdbc:calcite")) {
       ds.setRollbackOnReturn(false);
     }
+    ds.setPoolPreparedStatements(
+        maxOpenPreparedStatements == null || maxOpenPreparedStatements > 0);
+    ds.setMaxOpenPreparedStatements(maxOpenPreparedStatements == null
+        ? MAX_OPEN_PREPARED_STATEMENTS : maxOpenPreparedStatements);
+    if (maxTotal != null)
+      ds.setMaxTotal(maxTotal);
+    if (maxIdle != null)
+      ds.setMaxIdle(maxIdle);
+    if (minIdle != null) {
+      // idle connections are only created by the evictor
+      ds.setMinIdle(minIdle);
+      ds.setTimeBetweenEvictionRunsMillis(EVICTION_RUN_MS);
+    }
+    if (maxWaitMs != null)
+      ds.setMaxWaitMillis(maxWaitMs);
+    if (validationQuery != null)
+      ds.setValidationQuery(validationQuery);
+    if (leakDetectionSeconds != null) {
+      // on borrow only triggers when the pool is nearly exhausted, the evictor checks regularly
+      ds.setRemoveAbandonedOnBorrow(true);
+      ds.setRemoveAbandonedOnMaintenance(true);
+      ds.setTimeBetweenEvictionRunsMillis(EVICTION_RUN_MS);
+      ds.setRemoveAbandonedTimeout(leakDetectionSeconds);
+      ds.setLogAbandoned(true);
+    }
 
     ds.setPassword(password() == null && name.equals("junit") ? password : password());
     try (Connection con = ds.getConnection()) {
@@ -228,13 +368,64 @@ public class SQLDatabase extends AbstractDatabase {
           InputStream ddl = Loader.open(s);
           RunScript.execute(con, new InputStreamReader(ddl, StandardCharsets.UTF_8));
         }
-      Metadata meta = new Metadata(con, url);
-      Map<String, Object> res = meta.getTables(ID);
+      DatabaseMetaData md = con.getMetaData();
+      if (md.nullsAreSortedAtEnd())
+        nullOrder = "end";
+      else if (md.nullsAreSortedAtStart())
+        nullOrder = "start";
+      else if (md.nullsAreSortedHigh())
+        nullOrder = "high";
+      Metadata meta = new Metadata();
+      meta.readTables(con, url);
+      String fingerprint =
+          Boolean.TRUE.equals(metadataSnapshot) ? meta.fingerprint(con, url) : null;
+      Map<String, Object> res = fingerprint == null ? null : MetadataSnapshot.read(ID, fingerprint);
+      if (res != null) {
+        _cp = ds;
+        PojoDatabase.collector().submit(() -> refreshSnapshot(fingerprint));
+        return res;
+      }
+
+      meta.readDetails(con, url, true);
+      res = meta.getTables(ID);
+      if (fingerprint != null)
+        try {
+          MetadataSnapshot.write(ID, fingerprint, res);
+        } catch (IOException e) {
+          log.warning("Error writing the metadata snapshot of " + ID + ": " + e);
+        }
       _cp = ds;
       return res;
     }
   }
 
+  /**
+   * read the metadata from the database after the snapshot was used on startup. If it changed,
+   * the snapshot is replaced and the database is reconnected in order to publish the new tables
+   */
+  void refreshSnapshot(String fingerprint) {
+    try {
+      Map<String, Object> tables;
+      String current;
+      try (Connection con = _cp.getConnection()) {
+        Metadata meta = new Metadata(con, url);
+        tables = meta.getTables(ID);
+        current = meta.fingerprint(con, url);
+      }
+      if (current.equals(fingerprint)
+          && MetadataSnapshot.same(MetadataSnapshot.read(ID, fingerprint), tables))
+        return;
+
+      log.info("Metadata of " + ID + " changed since the snapshot was taken, reconnecting");
+      MetadataSnapshot.write(ID, current, tables);
+      PojoDatabase config = (PojoDatabase) services.getConfig();
+      if (config.getCached(ID) == this)
+        config.metadataCollection(ID);
+    } catch (Exception e) {
+      log.warning("Error refreshing the metadata snapshot of " + ID + ": " + e);
+    }
+  }
+
   /**
    * tuple holder class to return prepared statement with the arguments array - passed to JDBC
    */
@@ -249,12 +440,45 @@ public class SQLDatabase extends AbstractDatabase {
    * TODO: support nested parameters: ${email[0]} or ${contact.id}
    */
   static PreparedStmt prepareStatement(String query, Map<String, Object> arguments) {
+    ParsedStmt parsed;
+    try {
+      parsed = parsedStatements.get(query, SQLDatabase::parseStatement);
+    } catch (SQLException e) {
+      // parseStatement does not access the database
+      throw new IllegalArgumentException(e);
+    }
+
     PreparedStmt ps = new PreparedStmt();
-    ps.query = query;
+    ps.query = parsed.query;
     List<Object> args = new ArrayList<>();
-    Pattern pattern = Pattern.compile("\\$\\{\\w*\\}");
+    for (String name : parsed.names)
+      args.add(arguments.get(name));
+    ps.arguments = args.toArray();
+
+    // handle special case where we have a query with where col = ? and arg is [null]
+    if (args.size() == 1 && args.get(0) == null && ps.query.contains(" = ?")) {
+      ps.arguments = new Object[0];
+      ps.query = ps.query.replace(" = ?", " is null");
+    }
+
+    return ps;
+  }
+
+  /**
+   * query with the named parameters replaced by ? and the parameter names in order
+   */
+  static class ParsedStmt {
+    String query;
+    List<String> names = new ArrayList<>();
+  }
+
+  static final Pattern parameter = Pattern.compile("\\$\\{\\w*\\}");
+
+  static ParsedStmt parseStatement(String query) {
+    ParsedStmt ps = new ParsedStmt();
+    ps.query = query;
     for (;;) {
-      Matcher m = pattern.matcher(ps.query);
+      Matcher m = parameter.matcher(ps.query);
       if (!m.find())
         break;
 
@@ -262,19 +486,70 @@ public class SQLDatabase extends AbstractDatabase {
         if (ps.query.charAt(m.start() - 1) == '\\')
           break;
 
-      String x = m.group().substring(2, m.group().length() - 1);
-      args.add(arguments.get(x));
+      ps.names.add(m.group().substring(2, m.group().length() - 1));
       ps.query = m.replaceFirst("?");
     }
-    ps.arguments = args.toArray();
+    return ps;
+  }
 
-    // handle special case where we have a query with where col = ? and arg is [null]
-    if (args.size() == 1 && args.get(0) == null && ps.query.contains(" = ?")) {
-      ps.arguments = new Object[0];
-      ps.query = ps.query.replace(" = ?", " is null");
+  /**
+   * get the parsed query from the cache
+   */
+  TableName tableName(String query) throws SQLException {
+    return tableNames.get(query, q -> TableName.create(url, q));
+  }
+
+  /**
+   * get the generated statement from the cache, generate it on a cache miss
+   */
+  String statement(String key, StatementCache.Generator<String> generator) throws SQLException {
+    return statements.get(key, generator);
+  }
+
+  /**
+   * statement cache key: the operation, the table and the column lists the statement depends on
+   */
+  static String key(String operation, String table, Collection<?>... columns) {
+    StringBuilder res = new StringBuilder(operation).append('\0').append(table);
+    for (Collection<?> c : columns) {
+      res.append('\0');
+      for (Object column : c)
+        res.append(column).append('\1');
     }
+    return res.toString();
+  }
 
-    return ps;
+  /**
+   * insert statement for the given columns
+   */
+  String insert(Table m, List<String> columns) throws SQLException {
+    return statement(key("insert", m.name, columns), k -> {
+      List<String> cols = new ArrayList<>();
+      List<String> params = new ArrayList<>();
+      for (String c : columns) {
+        cols.add(q(c));
+        params.add("?");
+      }
+      return "insert into " + schema() + q(m.name) + " (" + String.join(",", cols) + ") values ("
+          + String.join(",", params) + ")";
+    });
+  }
+
+  /**
+   * update statement setting the columns of the records matching the where columns
+   */
+  String update(Table m, Collection<String> columns, Collection<String> where)
+      throws SQLException {
+    return statement(key("update", m.name, columns, where), k -> {
+      List<String> set = new ArrayList<>();
+      for (String c : columns)
+        set.add(q(c) + "=?");
+      List<String> cond = new ArrayList<>();
+      for (String c : where)
+        cond.add(q(c) + "=?");
+      return "update " + schema() + q(m.name) + " set " + String.join(",", set) + " where "
+          + String.join(" and ", cond);
+    });
   }
 
   Property property(String table, String column, String type) throws SQLException {
@@ -377,12 +652,19 @@ public class SQLDatabase extends AbstractDatabase {
   @Override
   public List<SearchResult> search(SecurityContext sc, String search, Integer limit)
       throws Exception {
+    return search(sc, search, limit,
+        SearchWorkers.deadline(services.getConfig().getSearchTimeoutMs()));
+  }
 
-    long start = System.currentTimeMillis();
-    Integer timeout = services.getConfig().getSearchTimeoutMs();
+  /**
+   * search the tables until deadline, called with the deadline of the search across all databases
+   */
+  @Override
+  public List<SearchResult> search(SecurityContext sc, String search, Integer limit,
+      long deadline) throws Exception {
 
     List<SearchResult> ret = new ArrayList<>();
-    search = search.toLowerCase();
+    String lower = search.toLowerCase();
     Map<Table, List<String>> tables = new HashMap<>();
 
     // make sure all tables are added
@@ -394,12 +676,18 @@ public class SQLDatabase extends AbstractDatabase {
         for (Property p : c.properties.values()) {
           // cast column in case it is not a string
           if (supportsIlike())
-            l.add("cast(" + q(p.name) + " as VARCHAR) ILIKE '%" + search + "%'");
+            l.add("cast(" + q(p.name) + " as VARCHAR) ILIKE '%" + lower + "%'");
           else
-            l.add(q(p.name) + " LIKE '%" + search + "%'");
+            l.add(q(p.name) + " LIKE '%" + lower + "%'");
         }
     }
 
+    // search the tables in parallel, statements still running are cancelled once the limit is
+    // reached or the deadline has passed
+    Set<java.sql.Statement> running = ConcurrentHashMap.newKeySet();
+    CompletionService<List<SearchResult>> cs =
+        new ExecutorCompletionService<>(SearchWorkers.tables());
+    Map<Future<List<SearchResult>>, Table> tasks = new LinkedHashMap<>();
     for (Entry<Table, List<String>> e : tables.entrySet()) {
       try {
         ACLContainerRequestFilter.check(sc, this, e.getKey());
@@ -408,46 +696,103 @@ public class SQLDatabase extends AbstractDatabase {
       }
       String sql =
           "SELECT * FROM " + q(e.getKey().name) + " WHERE " + String.join(" or ", e.getValue());
-      try (Connection con = getConnection()) {
-        try (java.sql.Statement pstmt = con.createStatement()) {
-          if (limit != null)
-            pstmt.setMaxRows(limit - ret.size());
+      tasks.put(cs.submit(() -> search(e.getKey(), sql, lower, limit, deadline, running)),
+          e.getKey());
+    }
 
-          if (timeout != null)
-            pstmt.setQueryTimeout(timeout / 1000);
+    // timeout markers do not count towards the limit and are appended after the hits
+    List<SearchResult> timeouts = new ArrayList<>();
+    boolean timeout = false;
+    try {
+      for (int i = 0; i < tasks.size(); i++) {
+        Future<List<SearchResult>> next = SearchWorkers.next(cs, deadline);
+        if (next == null) {
+          timeout = true;
+          break;
+        }
+        try {
+          for (SearchResult r : next.get())
+            if (r.timeout != null)
+              timeouts.add(r);
+            else
+              ret.add(r);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof SQLException && SearchWorkers.remaining(deadline) == 0) {
+            // statement timeout
+            timeouts.add(SearchResult.timeout(name, tasks.get(next).name));
+            continue;
+          }
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        if (limit != null && ret.size() >= limit) {
+          ret = new ArrayList<>(ret.subList(0, limit));
+          break;
+        }
+      }
+    } finally {
+      for (Entry<Future<List<SearchResult>>, Table> task : tasks.entrySet())
+        if (!task.getKey().isDone()) {
+          task.getKey().cancel(true);
+          if (timeout)
+            timeouts.add(SearchResult.timeout(name, task.getValue().name));
+        }
+      for (java.sql.Statement stmt : running)
+        try {
+          stmt.cancel();
+        } catch (SQLException ignore) {
+          // statement already closed
+        }
+    }
+    ret.addAll(timeouts);
+    return ret;
+  }
 
-          try (ResultSet res = pstmt.executeQuery(sql)) {
-            ResultSetMetaData md = res.getMetaData();
-            while (res.next()) {
-              for (int i = 1; i <= md.getColumnCount(); i++) {
-                Object s = res.getObject(i);
-                if (s != null) {
-                  Object[] key = new Object[] {null, null, null, null};
-                  for (Property p : e.getKey().properties.values())
-                    if (p.pkpos != null)
-                      key[p.pkpos] = res.getObject(p.name);
-
-                  Resource url = new Resource();
-                  url.database = name;
-                  url.table = e.getKey().name;
-                  for (Object p : key)
-                    if (p != null)
-                      url.pk.add(p);
-
-                  if (s.toString().toLowerCase().contains(search)) {
-                    ret.add(SearchResult.of(url, md.getColumnName(i), serialize(md, res, i)));
-                    if (limit != null && ret.size() >= limit)
-                      return ret;
-                    break;
-                  }
+  /**
+   * search a single table
+   */
+  List<SearchResult> search(Table t, String sql, String search, Integer limit, long deadline,
+      Set<java.sql.Statement> running) throws Exception {
+    List<SearchResult> ret = new ArrayList<>();
+    try (Connection con = getConnection("search")) {
+      try (java.sql.Statement pstmt = con.createStatement()) {
+        if (limit != null)
+          pstmt.setMaxRows(limit);
+
+        if (deadline != Long.MAX_VALUE)
+          pstmt.setQueryTimeout(
+              (int) Math.max(1, (SearchWorkers.remaining(deadline) + 999) / 1000));
+
+        running.add(pstmt);
+        try (ResultSet res = pstmt.executeQuery(sql)) {
+          ResultSetMetaData md = res.getMetaData();
+          while (res.next()) {
+            for (int i = 1; i <= md.getColumnCount(); i++) {
+              Object s = res.getObject(i);
+              if (s != null) {
+                Object[] key = new Object[] {null, null, null, null};
+                for (Property p : t.properties.values())
+                  if (p.pkpos != null)
+                    key[p.pkpos] = res.getObject(p.name);
+
+                Resource url = new Resource();
+                url.database = name;
+                url.table = t.name;
+                for (Object p : key)
+                  if (p != null)
+                    url.pk.add(p);
+
+                if (s.toString().toLowerCase().contains(search)) {
+                  ret.add(SearchResult.of(url, md.getColumnName(i), serialize(md, res, i)));
+                  if (limit != null && ret.size() >= limit)
+                    return ret;
+                  break;
                 }
               }
             }
           }
+        } finally {
+          running.remove(pstmt);
         }
-        if (timeout != null)
-          if (System.currentTimeMillis() - start > timeout)
-            return ret;
       }
     }
     return ret;
@@ -468,23 +813,54 @@ public class SQLDatabase extends AbstractDatabase {
 
   List<Map<String, Object>> query(QueryMeta info, Map<String, Object> arguments, Integer limit)
       throws SQLException {
+    List<Map<String, Object>> data = new ArrayList<>();
+    try {
+      query(info, arguments, limit, maps(data::add), false);
+    } catch (SQLException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SQLException(e);
+    }
+    return data;
+  }
+
+  @Override
+  public void streamQuery(QueryMeta info, Map<String, Object> arguments, RowConsumer consumer)
+      throws Exception {
+    query(info, arguments, null, maps(consumer), true);
+  }
+
+  @Override
+  public Columnar queryColumnar(QueryMeta info, Map<String, Object> arguments) throws Exception {
+    Columnar res = new Columnar();
+    query(info, arguments, null, columnar(res), false);
+    return res;
+  }
+
+  /**
+   * runs the query and passes the rows to the consumer. If stream is set, rows are fetched from
+   * the database in chunks of fetchSize or FETCH_SIZE rows
+   */
+  void query(QueryMeta info, Map<String, Object> arguments, Integer limit,
+      ResultConsumer consumer, boolean stream) throws Exception {
     PreparedStmt ps = prepareStatement(info.query, arguments);
 
-    List<Map<String, Object>> data = new ArrayList<>();
-    try (Connection con = getConnection()) {
+    try (Connection con = getConnection("query")) {
+      if (stream && !"write".equals(info.type))
+        cursor(con);
       try (PreparedStatement pstmt = con.prepareStatement(ps.query)) {
-        if (limit != null)
-          pstmt.setMaxRows(limit);
+        // pooled statements keep the max rows and fetch size of the previous use
+        pstmt.setMaxRows(limit == null ? 0 : limit);
+        pstmt.setFetchSize(fetchSize(con, limit, stream));
         int idx = 1;
         for (Object x : ps.arguments)
           setObject(pstmt, idx++, x);
 
         if ("write".equals(info.type)) {
-          Map<String, Object> row = new HashMap<>();
-          row.put("rowcount", pstmt.executeUpdate());
-          data.add(row);
+          consumer.columns(new String[] {"rowcount"});
+          consumer.row(new Object[] {pstmt.executeUpdate()});
         } else {
-          TableName tn = TableName.create(url, ps.query);
+          TableName tn = tableName(ps.query);
 
           // if no limit is provided, protect against rogue queries that sometime cause
           // extreme CPU / memory load during stmt.execute() already
@@ -496,26 +872,104 @@ public class SQLDatabase extends AbstractDatabase {
           }
           try (ResultSet res = pstmt.executeQuery()) {
             ResultSetMetaData m = res.getMetaData();
+            String[] names = new String[m.getColumnCount()];
+            for (int c = 1; c <= names.length; c++) {
+              String display = tn.getColumnLabel(m, c);
+              String column = getResultSetColumnName(m, c);
+              String table = tn.getTableName(m, c);
+              if (!column.equals(display))
+                names[c - 1] = display;
+              else if (table == null || table.isEmpty())
+                names[c - 1] = column;
+              else
+                names[c - 1] = table + "." + column;
+            }
+            consumer.columns(names);
+            long rows = 0;
             while (res.next()) {
-              Map<String, Object> row = new LinkedHashMap<>();
-              for (int c = 1; c <= m.getColumnCount(); c++) {
-                String display = tn.getColumnLabel(m, c);
-                String column = getResultSetColumnName(m, c);
-                String table = tn.getTableName(m, c);
-                if (!column.equals(display))
-                  row.put(display, serialize(m, res, c));
-                else if (table == null || table.isEmpty())
-                  row.put(column, serialize(m, res, c));
-                else
-                  row.put(table + "." + column, serialize(m, res, c));
-              }
-              data.add(row);
+              Object[] row = new Object[names.length];
+              for (int c = 1; c <= names.length; c++)
+                row[c - 1] = serialize(m, res, c);
+              consumer.row(row);
+              rows++;
             }
+            rows(con, rows);
           }
         }
       }
     }
-    return data;
+  }
+
+  /**
+   * receives the column names and then the rows of a result set. This avoids creating a map per row
+   * when the columnar representation is requested
+   */
+  interface ResultConsumer {
+
+    void columns(String[] names) throws Exception;
+
+    void row(Object[] values) throws Exception;
+  }
+
+  /**
+   * passes the rows to the consumer as maps
+   */
+  static ResultConsumer maps(RowConsumer consumer) {
+    return new ResultConsumer() {
+
+      String[] names;
+
+      @Override
+      public void columns(String[] names) {
+        this.names = names;
+      }
+
+      @Override
+      public void row(Object[] values) throws Exception {
+        Map<String, Object> row = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++)
+          row.put(names[i], values[i]);
+        consumer.accept(row);
+      }
+    };
+  }
+
+  /**
+   * adds the columns and rows to the columnar result
+   */
+  static ResultConsumer columnar(Columnar res) {
+    return new ResultConsumer() {
+
+      @Override
+      public void columns(String[] names) {
+        res.columns = Arrays.asList(names);
+      }
+
+      @Override
+      public void row(Object[] values) {
+        res.rows.add(values);
+      }
+    };
+  }
+
+  /**
+   * fetch size of a statement: the configured fetchSize, else FETCH_SIZE for streamed reads and the
+   * driver default (0) otherwise. The fetch size must not exceed the max rows
+   */
+  static int fetchSize(Connection con, Integer limit, boolean stream) {
+    Integer configured =
+        con instanceof TracedConnection ? ((TracedConnection) con).fetchSize : null;
+    int res = configured != null ? configured : stream ? FETCH_SIZE : 0;
+    return limit == null || limit == 0 || res == 0 ? res : Math.min(res, limit);
+  }
+
+  /**
+   * postgres only fetches the result in chunks (using a cursor) if auto commit is off. The pool
+   * rolls back and resets auto commit when the connection is returned
+   */
+  void cursor(Connection con) throws SQLException {
+    if (url.startsWith("jdbc:postgresql:"))
+      con.setAutoCommit(false);
   }
 
   @Override
@@ -527,9 +981,9 @@ public class SQLDatabase extends AbstractDatabase {
     }
 
     PreparedStmt ps = prepareStatement(info.query, arguments);
-    TableName tn = TableName.create(url, ps.query);
+    TableName tn = tableName(ps.query);
 
-    try (Connection con = getConnection()) {
+    try (Connection con = getConnection("query")) {
       try (PreparedStatement pstmt = con.prepareStatement(ps.query)) {
         pstmt.setMaxRows(1);
         int idx = 1;
@@ -559,25 +1013,17 @@ public class SQLDatabase extends AbstractDatabase {
 
   @Override
   public void create(Table m, Map<String, Object> object) throws SQLException {
-    try (Connection con = getConnection()) {
-      String insert = "insert into " + schema() + q(m.name) + " (";
-      for (String k : m.properties.keySet()) {
-        // ignore autoinc cols
-        if (Boolean.TRUE.equals(m.properties.get(k).readOnly))
-          continue;
-        insert = insert + q(k) + ",";
-      }
-      insert = insert.substring(0, insert.length() - 1);
-      insert = insert + ") values (";
+    try (Connection con = getConnection("create")) {
+      List<String> cols = new ArrayList<>();
       List<Object> args = new ArrayList<>();
       for (String k : m.properties.keySet()) {
+        // ignore autoinc cols
         if (Boolean.TRUE.equals(m.properties.get(k).readOnly))
           continue;
-        insert = insert + "?,";
+        cols.add(k);
         args.add(object.get(k));
       }
-      insert = insert.substring(0, insert.length() - 1);
-      insert = insert + ")";
+      String insert = insert(m, cols);
 
       if (log.isLoggable(Level.DEBUG))
         log.fine("insert=" + insert);
@@ -606,29 +1052,14 @@ public class SQLDatabase extends AbstractDatabase {
   }
 
   @Override
-  @SuppressWarnings("unused")
   public void create(Table m, List<Map<String, Object>> objects) throws Exception {
-    try (Connection con = getConnection()) {
-      String insert = "insert into " + schema() + q(m.name) + " (";
-      for (String k : m.properties.keySet())
-        insert = insert + q(k) + ",";
-      insert = insert.substring(0, insert.length() - 1);
-      insert = insert + ") values (";
-      for (String k : m.properties.keySet()) {
-        insert = insert + "?,";
-      }
-      insert = insert.substring(0, insert.length() - 1);
-      insert = insert + ")";
+    try (Connection con = getConnection("create")) {
+      String insert = insert(m, new ArrayList<>(m.properties.keySet()));
       try (PreparedStatement stmt = con.prepareStatement(insert)) {
         for (Map<String, Object> object : objects) {
           int i = 1;
-          List<Object> args = new ArrayList<>();
-          for (String k : m.properties.keySet()) {
-            insert = insert + "?,";
-            args.add(object.get(k));
-          }
-          for (Object o : args)
-            setObject(stmt, i++, o);
+          for (String k : m.properties.keySet())
+            setObject(stmt, i++, object.get(k));
           stmt.addBatch();
         }
         stmt.executeBatch();
@@ -638,6 +1069,8 @@ public class SQLDatabase extends AbstractDatabase {
 
   @Override
   public void merge(Table m, List<Map<String, Object>> objects) throws Exception {
+    if (upsert(m, objects))
+      return;
     try {
       create(m, objects);
     } catch (Exception e) {
@@ -646,43 +1079,412 @@ public class SQLDatabase extends AbstractDatabase {
     }
   }
 
+  /**
+   * merge the objects using dialect specific upsert statements, executed as a batch in a single
+   * transaction. Like AbstractDatabase.merge, existing records only get the fields contained in the
+   * object (except _dj_source) updated. Returns false if the dialect is not supported, the table
+   * has no primary key or the upsert fails
+   */
+  boolean upsert(Table m, List<Map<String, Object>> objects) throws Exception {
+    if (upsertDialect() == null || m.properties == null)
+      return false;
+    List<String> keys = new ArrayList<>();
+    for (Property p : m.properties.values())
+      if (p.pkpos != null)
+        keys.add(p.name);
+    if (keys.isEmpty())
+      return false;
+
+    // objects with the same set of fields share the statement
+    Map<List<String>, List<Map<String, Object>>> groups = new LinkedHashMap<>();
+    for (Map<String, Object> object : objects) {
+      List<String> update = new ArrayList<>();
+      for (String k : m.properties.keySet())
+        if (object.containsKey(k) && !keys.contains(k) && !"_dj_source".equals(k))
+          update.add(k);
+      groups.computeIfAbsent(update, k -> new ArrayList<>()).add(object);
+    }
+
+    try (Connection con = getConnection("merge")) {
+      boolean autoCommit = con.getAutoCommit();
+      con.setAutoCommit(false);
+      try {
+        for (Entry<List<String>, List<Map<String, Object>>> group : groups.entrySet()) {
+          if ("update insert".equals(upsertDialect())) {
+            updateInsert(con, m, keys, group.getKey(), group.getValue());
+            continue;
+          }
+          String upsert = statement(key("upsert", m.name, m.properties.keySet(), keys,
+              group.getKey()), k -> upsert(m, keys, group.getKey()));
+          if (log.isLoggable(Level.DEBUG))
+            log.fine("upsert=" + upsert);
+          try (PreparedStatement stmt = con.prepareStatement(upsert)) {
+            for (Map<String, Object> object : group.getValue()) {
+              int i = 1;
+              for (String k : m.properties.keySet())
+                setObject(stmt, i++, object.get(k));
+              stmt.addBatch();
+            }
+            stmt.executeBatch();
+          }
+        }
+        con.commit();
+        return true;
+      } catch (SQLException e) {
+        con.rollback();
+        log.info("Upsert failed, merging row by row: " + e);
+        return false;
+      } catch (Throwable e) {
+        // restoring auto commit would commit the statements run so far
+        try {
+          con.rollback();
+        } catch (SQLException re) {
+          e.addSuppressed(re);
+        }
+        throw e;
+      } finally {
+        con.setAutoCommit(autoCommit);
+      }
+    }
+  }
+
+  /**
+   * upsert syntax supported by this database: "on conflict", "on duplicate key", "merge" or "update
+   * insert" (batched update followed by a batched insert of the rows that were not updated). Null
+   * if there is no upsert support
+   */
+  String upsertDialect() {
+    if (url.startsWith("jdbc:postgresql:") || url.startsWith("jdbc:sqlite"))
+      return "on conflict";
+    if (url.startsWith("jdbc:mysql") || url.startsWith("jdbc:mariadb"))
+      return "on duplicate key";
+    if (url.startsWith("jdbc:oracle:thin:") || url.startsWith("jdbc:jtds:")
+        || url.startsWith("jdbc:sqlserver"))
+      return "merge";
+    if (url.startsWith("jdbc:h2:"))
+      // H2 1.4 does not accept parameters in merge using
+      return "update insert";
+    return null;
+  }
+
+  /**
+   * update the objects in a batch, insert the objects that do not exist yet in a second batch
+   */
+  void updateInsert(Connection con, Table m, List<String> keys, List<String> update,
+      List<Map<String, Object>> objects) throws SQLException {
+    // nothing to update, set the key to itself to find out whether the record exists
+    List<String> cols = update.isEmpty() ? keys.subList(0, 1) : update;
+    int[] counts;
+    try (PreparedStatement stmt = con.prepareStatement(update(m, cols, keys))) {
+      for (Map<String, Object> object : objects) {
+        int i = 1;
+        for (String k : cols)
+          setObject(stmt, i++, object.get(k));
+        for (String k : keys)
+          setObject(stmt, i++, object.get(k));
+        stmt.addBatch();
+      }
+      counts = stmt.executeBatch();
+    }
+
+    List<Map<String, Object>> inserts = new ArrayList<>();
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] < 0)
+        throw new SQLException("Batch update count not available");
+      if (counts[i] == 0)
+        inserts.add(objects.get(i));
+    }
+    if (inserts.isEmpty())
+      return;
+
+    String insert = insert(m, new ArrayList<>(m.properties.keySet()));
+    try (PreparedStatement stmt = con.prepareStatement(insert)) {
+      for (Map<String, Object> object : inserts) {
+        int i = 1;
+        for (String k : m.properties.keySet())
+          setObject(stmt, i++, object.get(k));
+        stmt.addBatch();
+      }
+      stmt.executeBatch();
+    }
+  }
+
+  /**
+   * generate the upsert statement. The parameters are the values of all table columns, existing
+   * records get the update columns set
+   */
+  String upsert(Table m, List<String> keys, List<String> update) {
+    List<String> cols = new ArrayList<>();
+    List<String> params = new ArrayList<>();
+    for (String k : m.properties.keySet()) {
+      cols.add(q(k));
+      params.add("?");
+    }
+    String table = schema() + q(m.name);
+
+    switch (upsertDialect()) {
+      case "on conflict": {
+        List<String> set = new ArrayList<>();
+        for (String k : update)
+          set.add(q(k) + "=excluded." + q(k));
+        List<String> conflict = new ArrayList<>();
+        for (String k : keys)
+          conflict.add(q(k));
+        return "insert into " + table + " (" + String.join(",", cols) + ") values ("
+            + String.join(",", params) + ") on conflict (" + String.join(",", conflict) + ") do "
+            + (set.isEmpty() ? "nothing" : "update set " + String.join(",", set));
+      }
+      case "on duplicate key": {
+        List<String> set = new ArrayList<>();
+        for (String k : update)
+          set.add(q(k) + "=values(" + q(k) + ")");
+        if (set.isEmpty())
+          // nothing to update, ignore the duplicate
+          set.add(q(keys.get(0)) + "=" + q(keys.get(0)));
+        return "insert into " + table + " (" + String.join(",", cols) + ") values ("
+            + String.join(",", params) + ") on duplicate key update " + String.join(",", set);
+      }
+      default: {
+        boolean sqlserver = url.startsWith("jdbc:jtds:") || url.startsWith("jdbc:sqlserver");
+        List<String> select = new ArrayList<>();
+        for (String k : m.properties.keySet())
+          select.add("? " + q(k));
+        List<String> on = new ArrayList<>();
+        for (String k : keys)
+          on.add("t." + q(k) + "=s." + q(k));
+        List<String> set = new ArrayList<>();
+        for (String k : update)
+          set.add(q(k) + "=s." + q(k));
+        List<String> values = new ArrayList<>();
+        for (String k : m.properties.keySet())
+          values.add("s." + q(k));
+
+        String res = "merge into " + table + " t using "
+            + (sqlserver
+                ? "(values (" + String.join(",", params) + ")) s (" + String.join(",", cols) + ")"
+                : "(select " + String.join(",", select) + " from dual) s")
+            + " on (" + String.join(" and ", on) + ")";
+        if (!set.isEmpty())
+          res = res + " when matched then update set " + String.join(",", set);
+        res = res + " when not matched then insert (" + String.join(",", cols) + ") values ("
+            + String.join(",", values) + ")";
+        if (sqlserver)
+          res = res + ";";
+        return res;
+      }
+    }
+  }
+
   @Override
   public Map<String, Object> read(Table s, Map<String, Object> search) throws SQLException {
-    List<Map<String, Object>> res = readInternal(s, null, null, null, false, search);
+    List<Map<String, Object>> res = readInternal("read", s, null, null, null, false, search, null);
     if (res.isEmpty())
       return null;
     else
       return res.get(0);
   }
 
+  /**
+   * max number of keys per in list
+   */
+  static final int IN_LIST_SIZE = 512;
+
+  /**
+   * reads the keys using where pk in (...)
+   */
+  @Override
+  public List<Map<String, Object>> readMany(Table s, List<Map<String, Object>> searches)
+      throws Exception {
+    String pk = singleKey(s, searches);
+    if (pk == null)
+      return super.readMany(s, searches);
+
+    List<Object> keys = new ArrayList<>();
+    for (Map<String, Object> search : searches)
+      keys.add(search.get(pk));
+    Map<String, Map<String, Object>> rows = new HashMap<>();
+    in(s, pk, keys, row -> rows.put(matchKey(s, pk, row.get(pk)), row));
+    List<Map<String, Object>> res = new ArrayList<>();
+    boolean fuzzy = fuzzyKey(s, pk);
+    for (Map<String, Object> search : searches) {
+      Map<String, Object> row = rows.get(matchKey(s, pk, search.get(pk)));
+      // the key might match a row returned in a different form
+      if (row == null && fuzzy)
+        row = read(s, search);
+      res.add(row);
+    }
+    return res;
+  }
+
+  /**
+   * true if the database may return a string key in a different form than it was requested in:
+   * padded char columns and databases that compare strings case insensitively by default
+   */
+  boolean fuzzyKey(Table s, String column) {
+    Property p = s.properties.get(column);
+    if (p == null || !"string".equals(p.type))
+      return false;
+    String type = p.dbType == null ? "" : p.dbType.toLowerCase();
+    if (type.equals("char") || type.equals("nchar") || type.equals("bpchar")
+        || type.equals("character"))
+      return true;
+    return url.startsWith("jdbc:mysql") || url.startsWith("jdbc:mariadb")
+        || url.startsWith("jdbc:jtds:") || url.startsWith("jdbc:sqlserver");
+  }
+
+  /**
+   * reads the values using where column in (...)
+   */
+  @Override
+  public List<Map<String, Object>> allIn(Table s, String column, List<Object> values)
+      throws Exception {
+    List<Map<String, Object>> res = new ArrayList<>();
+    in(s, column, values, res::add);
+    return res;
+  }
+
+  /**
+   * select the rows whose column holds one of the values in chunks using where column in (...). In
+   * lists are padded to the next power of two by repeating the last value, so only a few statements
+   * per table are prepared and cached
+   */
+  void in(Table s, String column, List<Object> values, RowConsumer consumer) throws Exception {
+    Integer timeout = services.getConfig().getAllTimeoutMs();
+    try (Connection con = getConnection("read")) {
+      for (int start = 0; start < values.size(); start += IN_LIST_SIZE) {
+        List<Object> chunk = values.subList(start, Math.min(start + IN_LIST_SIZE, values.size()));
+        int size = chunk.size() == 1 ? 1 : Integer.highestOneBit(chunk.size() - 1) << 1;
+        String select = statement(key("in", s.name, Arrays.asList(column, size)),
+            k -> "select * from " + schema() + q(s.name) + " where " + q(column) + " in ("
+                + String.join(",", Collections.nCopies(size, "?")) + ")");
+        if (log.isLoggable(Level.DEBUG))
+          log.fine("select=" + select);
+        try (PreparedStatement stmt = con.prepareStatement(select)) {
+          // pooled statements keep max rows and timeout of the previous use
+          stmt.setMaxRows(0);
+          stmt.setQueryTimeout(timeout == null ? 0 : timeout / 1000);
+          stmt.setFetchSize(fetchSize(con, null, false));
+          for (int i = 0; i < size; i++)
+            setObject(stmt, i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+          try (ResultSet res = stmt.executeQuery()) {
+            ResultSetMetaData m = res.getMetaData();
+            while (res.next()) {
+              Map<String, Object> row = new LinkedHashMap<>();
+              for (int c = 1; c <= m.getColumnCount(); c++)
+                row.put(m.getColumnName(c), serialize(m, res, c));
+              consumer.accept(row);
+              rows(con, 1);
+            }
+          }
+        }
+      }
+    }
+  }
+
   List<Map<String, Object>> readInternal(Table s, Integer offset, Integer limit, String sort,
       boolean descending, Map<String, Object> search) throws SQLException {
-    Integer timeout = services.getConfig().getAllTimeoutMs();
+    return readInternal("all", s, offset, limit, sort == null ? null : Arrays.asList(sort),
+        descending, search, null);
+  }
+
+  /**
+   * select the rows matching search ordered by the order columns. If after is set, only the rows
+   * following after in this order are returned (keyset pagination)
+   */
+  List<Map<String, Object>> readInternal(String operation, Table s, Integer offset, Integer limit,
+      List<String> order, boolean descending, Map<String, Object> search, List<Object> after)
+      throws SQLException {
     List<Map<String, Object>> ret = new ArrayList<>();
-    try (Connection con = getConnection()) {
-      String select = "select * from " + schema() + q(s.name);
-      if (sort != null)
-        select = select + " order by " + q(sort) + (descending ? " desc" : "");
+    try {
+      readInternal(operation, s, offset, limit, order, descending, search, after, maps(ret::add),
+          false);
+    } catch (SQLException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SQLException(e);
+    }
+    return ret;
+  }
+
+  @Override
+  public void streamAll(Table s, Integer offset, Integer limit, String sort, boolean descending,
+      Map<String, Object> arguments, RowConsumer consumer) throws Exception {
+    readInternal("all", s, offset, limit, sort == null ? null : Arrays.asList(sort), descending,
+        arguments, null, maps(consumer), true);
+  }
+
+  @Override
+  public Columnar allColumnar(Table s, Integer offset, Integer limit, String sort,
+      boolean descending, Map<String, Object> arguments) throws Exception {
+    Columnar res = new Columnar();
+    readInternal("all", s, offset, limit, sort == null ? null : Arrays.asList(sort), descending,
+        arguments, null, columnar(res), false);
+    return res;
+  }
+
+  /**
+   * like readInternal, but passes the rows to the consumer. If stream is set, rows are fetched from
+   * the database in chunks of fetchSize or FETCH_SIZE rows
+   */
+  void readInternal(String operation, Table s, Integer offset, Integer limit, List<String> order,
+      boolean descending, Map<String, Object> search, List<Object> after,
+      ResultConsumer consumer, boolean stream) throws Exception {
+    Integer timeout = services.getConfig().getAllTimeoutMs();
+    try (Connection con = getConnection(operation)) {
+      if (stream)
+        cursor(con);
+      List<String> cols = new ArrayList<>();
+      List<Boolean> jsonb = new ArrayList<>();
       List<Object> args = new ArrayList<>();
-      if (search != null && !search.isEmpty()) {
-        select = select + " where ";
+      if (search != null)
         for (String k : search.keySet()) {
+          cols.add(k);
           if (url.startsWith("jdbc:postgresql:") && search.get(k) instanceof List
               && s.properties.get(k).dbType.equals("jsonb")
               && (((List<?>) search.get(k)).size() == 1)) {
-            select = select + "\"" + k + "\"::jsonb ??" + " ? and ";
+            jsonb.add(true);
             args.add(((List<?>) search.get(k)).get(0));
           } else {
-            select = select + q(k) + "=? and ";
+            jsonb.add(false);
             args.add(search.get(k));
           }
         }
-        select = select.substring(0, select.length() - "and ".length());
+      if (after != null) {
+        // see keyset(), the first column is also used in a range condition
+        args.add(after.get(0));
+        for (int i = 0; i < after.size() - 1; i++) {
+          args.add(after.get(i));
+          args.add(after.get(i));
+        }
+        args.add(after.get(after.size() - 1));
       }
+      List<String> ordering = order == null ? Arrays.asList() : order;
+      boolean orNull = after != null && nullsFollow(s, ordering.get(0), descending);
+      String select = statement(key("select", s.name,
+          Arrays.asList(descending, after != null, orNull), ordering, cols, jsonb), k -> {
+            String res = "select * from " + schema() + q(s.name);
+            List<String> where = new ArrayList<>();
+            for (int i = 0; i < cols.size(); i++)
+              if (jsonb.get(i))
+                where.add("\"" + cols.get(i) + "\"::jsonb ?? ?");
+              else
+                where.add(q(cols.get(i)) + "=?");
+            if (after != null)
+              where.add(keyset(ordering, descending, orNull));
+            if (!where.isEmpty())
+              res = res + " where " + String.join(" and ", where);
+            if (!ordering.isEmpty()) {
+              List<String> sorts = new ArrayList<>();
+              for (String c : ordering)
+                sorts.add(q(c) + (descending ? " desc" : ""));
+              res = res + " order by " + String.join(", ", sorts);
+            }
+            return res;
+          });
       if (url.startsWith("jdbc:jtds:") || url.startsWith("jdbc:sqlserver")) {
         // SQL server uses "select * from table order by x offset 5 rows fetch next 5 rows only
         if (offset != null) {
-          if (sort == null) {
+          if (ordering.isEmpty()) {
             // OFFSET always needs an ORDER BY
             // In case no sorting is active, add the primary key order
             String orderBy = null;
@@ -709,39 +1511,96 @@ public class SQLDatabase extends AbstractDatabase {
       if (log.isLoggable(Level.DEBUG))
         log.fine("select=" + select);
       try (PreparedStatement stmt = con.prepareStatement(select)) {
-        if (limit != null)
-          stmt.setMaxRows(limit);
-
-        if (timeout != null)
-          stmt.setQueryTimeout(timeout / 1000);
+        // pooled statements keep max rows and timeout of the previous use
+        stmt.setMaxRows(limit == null ? 0 : limit);
+        stmt.setQueryTimeout(timeout == null ? 0 : timeout / 1000);
+        stmt.setFetchSize(fetchSize(con, limit, stream));
 
         int i = 1, rows = 0;
         for (Object o : args)
           setObject(stmt, i++, o);
         try (ResultSet res = stmt.executeQuery()) {
           ResultSetMetaData m = res.getMetaData();
+          String[] names = new String[m.getColumnCount()];
+          for (int c = 1; c <= names.length; c++)
+            names[c - 1] = m.getColumnName(c);
+          consumer.columns(names);
           while (res.next()) {
-            if (limit != null && rows++ >= limit)
+            if (limit != null && rows >= limit)
               break;
-            Map<String, Object> row = new LinkedHashMap<>();
-            for (int c = 1; c <= m.getColumnCount(); c++) {
-              row.put(m.getColumnName(c), serialize(m, res, c));
-            }
-            ret.add(row);
+            rows++;
+            Object[] row = new Object[names.length];
+            for (int c = 1; c <= names.length; c++)
+              row[c - 1] = serialize(m, res, c);
+            consumer.row(row);
           }
+          rows(con, rows);
         }
       }
     }
-    return ret;
+  }
+
+  /**
+   * condition selecting the rows following the row with the given values of the order columns:
+   * (a, b) > (?, ?) written as a >= ? and (a > ? or (a = ? and b > ?)), since not all databases
+   * support row value comparisons. The redundant range on the first column allows using an index.
+   * If orNull is set, rows where the first column is null follow as well
+   */
+  String keyset(List<String> order, boolean descending, boolean orNull) {
+    String op = descending ? "<" : ">";
+    String res = q(order.get(order.size() - 1)) + op + "?";
+    for (int i = order.size() - 2; i >= 0; i--)
+      res = "(" + q(order.get(i)) + op + "? or (" + q(order.get(i)) + "=? and " + res + "))";
+    res = q(order.get(0)) + op + "=? and " + res;
+    return orNull ? "((" + res + ") or " + q(order.get(0)) + " is null)" : res;
+  }
+
+  /**
+   * true if the column can be null and null values are sorted after all other values
+   */
+  boolean nullsFollow(Table s, String column, boolean descending) {
+    Property p = s.properties.get(column);
+    if (p != null && p.pkpos != null)
+      return false;
+    if (s.required != null && s.required.contains(column))
+      return false;
+    if ("end".equals(nullOrder))
+      return true;
+    if ("start".equals(nullOrder))
+      return false;
+    return "high".equals(nullOrder) ? !descending : descending;
+  }
+
+  @Override
+  public Page page(Table s, String after, Integer limit, String sort, boolean descending,
+      Map<String, Object> arguments) throws Exception {
+    List<String> columns = Keyset.columns(s, sort);
+    if (columns == null)
+      return super.page(s, after, limit, sort, descending, arguments);
+
+    Keyset keyset = Keyset.parse(after);
+    List<Object> values = null;
+    if (keyset.after != null) {
+      if (keyset.after.size() != columns.size())
+        throw new IllegalArgumentException("Page token does not match the sort order");
+      values = new ArrayList<>();
+      for (int i = 0; i < columns.size(); i++) {
+        Property p = s.properties.get(columns.get(i));
+        values.add(p == null ? keyset.after.get(i) : cast(p, keyset.after.get(i)));
+      }
+    }
+    Integer offset = values == null && keyset.offset > 0 ? keyset.offset : null;
+    List<Map<String, Object>> rows =
+        readInternal("all", s, offset, limit, columns, descending, arguments, values);
+    return Page.of(rows, keyset.next(columns, rows, limit));
   }
 
   @Override
   public boolean update(Table schema, Map<String, Object> search, Map<String, Object> object)
       throws SQLException {
-    try (Connection con = getConnection()) {
+    try (Connection con = getConnection("update")) {
       List<Object> args = new ArrayList<>();
-      String update = "update " + schema() + q(schema.name) + " set ";
-
+      List<String> cols = new ArrayList<>();
       for (String k : schema.properties.keySet()) {
         if (search.keySet().contains(k))
           continue;
@@ -750,19 +1609,12 @@ public class SQLDatabase extends AbstractDatabase {
         if (!object.containsKey(k))
           continue;
 
-        update = update + q(k) + "=?,";
-
-        Object val = object.get(k);
-        args.add(val);
-      }
-
-      update = update.substring(0, update.length() - 1);
-      update = update + " where ";
-      for (String k : search.keySet()) {
-        update = update + q(k) + "=? and ";
-        args.add(search.get(k));
+        cols.add(k);
+        args.add(object.get(k));
       }
-      update = update.substring(0, update.length() - "and ".length());
+      for (Object val : search.values())
+        args.add(val);
+      String update = update(schema, cols, search.keySet());
 
       try (PreparedStatement stmt = con.prepareStatement(update)) {
         int i = 1;
@@ -778,17 +1630,22 @@ public class SQLDatabase extends AbstractDatabase {
 
   @Override
   public boolean delete(Table s, Map<String, Object> search) throws SQLException {
-    try (Connection con = getConnection()) {
-      String select = "delete from " + schema() + q(s.name) + " where ";
+    try (Connection con = getConnection("delete")) {
+      List<String> cols = new ArrayList<>();
       List<Object> args = new ArrayList<>();
       for (String k : search.keySet()) {
         Property prop = s.properties.get(k);
         if (prop != null && prop.pkpos != null) {
-          select = select + q(k) + "=? and ";
+          cols.add(k);
           args.add(search.get(k));
         }
       }
-      select = select.substring(0, select.length() - "and ".length());
+      String select = statement(key("delete", s.name, cols), k -> {
+        List<String> where = new ArrayList<>();
+        for (String c : cols)
+          where.add(q(c) + "=?");
+        return "delete from " + schema() + q(s.name) + " where " + String.join(" and ", where);
+      });
 
       if (log.isLoggable(Level.DEBUG))
         log.fine("delete=" + select);
@@ -963,9 +1820,9 @@ public class SQLDatabase extends AbstractDatabase {
     Map<Col, String> map = new HashMap<>();
     SQLEditor.parseWhere(true, map, body.getWhere());
 
-    TableName tn = TableName.create(url, query);
+    TableName tn = tableName(query);
     List<QueryColumn> table = new ArrayList<>();
-    try (Connection con = getConnection()) {
+    try (Connection con = getConnection("query")) {
       try (java.sql.Statement stmt = con.createStatement()) {
         stmt.setMaxRows(1);
         try (ResultSet res = stmt.executeQuery(query)) {
@@ -1090,7 +1947,7 @@ public class SQLDatabase extends AbstractDatabase {
     List<Choice> ret = new ArrayList<>();
     for (Property p : s.properties.values())
       if (p.pkpos != null)
-        try (Connection con = getConnection()) {
+        try (Connection con = getConnection("keys")) {
           String label = Template.sql(q(p.name), s.djLabel);
           String select = "select " + q(p.name) + ", " + label + " from " + schema() + q(s.name);
           if (prefix != null)
@@ -1102,16 +1959,15 @@ public class SQLDatabase extends AbstractDatabase {
           try (PreparedStatement stmt = con.prepareStatement(select)) {
             if (prefix != null)
               stmt.setString(1, prefix + "%");
-            if (limit != null)
-              stmt.setMaxRows(limit);
-            if (timeout != null)
-              stmt.setQueryTimeout(timeout / 1000);
+            stmt.setMaxRows(limit == null ? 0 : limit);
+            stmt.setQueryTimeout(timeout == null ? 0 : timeout / 1000);
             try (ResultSet res = stmt.executeQuery()) {
               while (res.next()) {
                 Choice choice = new Choice();
                 choice.value = res.getObject(1);
                 choice.name = res.getString(2);
                 ret.add(choice);
+                rows(con, 1);
               }
             }
           }
@@ -664,7 +664,7 @@ public class SQLEditor implements QueryEditorInternal {
   }
 
   void samplesAndMetadata(QueryResponse res, Map<Table, Col> tables) throws SQLException {
-    try (Connection con = db.getConnection()) {
+    try (Connection con = db.getConnection("query")) {
       for (Entry<Table, Col> t : tables.entrySet())
         try (java.sql.Statement stmt = con.createStatement()) {
           stmt.setMaxRows(1);
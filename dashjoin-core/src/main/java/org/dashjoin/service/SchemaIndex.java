@@ -0,0 +1,51 @@
+package org.dashjoin.service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.dashjoin.model.AbstractDatabase;
+import org.dashjoin.model.Table;
+
+/**
+ * hash index from table ID (dj/db/table) to table across all databases. Replaces the scan over all
+ * databases and tables in PojoDatabase.getSchema. The index is immutable, PojoDatabase builds a new
+ * one whenever the config DB changes
+ */
+public class SchemaIndex {
+
+  /**
+   * table ID to table
+   */
+  private final Map<String, Table> tables = new HashMap<>();
+
+  public SchemaIndex(List<AbstractDatabase> dbs) {
+    for (AbstractDatabase db : dbs)
+      if (db.tables != null)
+        for (Table s : db.tables.values())
+          // like the scan, the first database defining a table ID wins
+          if (s.ID != null)
+            tables.putIfAbsent(s.ID, s);
+  }
+
+  /**
+   * get the table by table ID or by the ID of one of its columns (dj/db/table/column)
+   */
+  public Table get(String ID) {
+    for (;;) {
+      Table s = tables.get(ID);
+      if (s != null)
+        return s;
+      int slash = ID.lastIndexOf('/');
+      if (slash < 0)
+        return null;
+      ID = ID.substring(0, slash);
+    }
+  }
+
+  /**
+   * number of indexed tables
+   */
+  public int size() {
+    return tables.size();
+  }
+}
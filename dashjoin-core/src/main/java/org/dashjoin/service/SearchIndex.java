@@ -0,0 +1,510 @@
+package org.dashjoin.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import org.dashjoin.model.AbstractDatabase;
+import org.dashjoin.model.Table;
+import org.dashjoin.service.Data.Page;
+import org.dashjoin.service.Data.Resource;
+import org.dashjoin.service.Data.SearchResult;
+import org.eclipse.microprofile.config.ConfigProvider;
+import lombok.extern.java.Log;
+
+/**
+ * in memory trigram index used by the default search implementation. The index maps every three
+ * character sequence of the lower case cell values to the records containing it. It is filled by a
+ * background crawler reading the tables page by page and kept up to date by the CRUD operations in
+ * Data. Changes made by other clients are picked up when the index is crawled again after
+ * dashjoin.search.refresh-ms (one minute by default). There is one index per database ID, shared by
+ * all copies of the database pojo.
+ *
+ * Like the brute force search in AbstractDatabase, a record matches if one of its cell values
+ * contains the search string (ignoring case). The postings of the trigrams of the search string
+ * select the candidate records, only the cells of these are compared to the search string. Matches
+ * are ranked by the best matching cell: equal values first, then values containing a word that
+ * starts with the search string, then all other matches. Databases with more than MAX_CHARS
+ * characters of text are not indexed and searched without the index.
+ */
+@Log
+public class SearchIndex {
+
+  /**
+   * rows read per crawler round trip
+   */
+  public static final int BATCH_SIZE = 1000;
+
+  /**
+   * maximum number of characters kept per database
+   */
+  public static final long MAX_CHARS = 16 * 1024 * 1024;
+
+  /**
+   * default age after which the index is crawled again
+   */
+  static final long DEFAULT_REFRESH_MS = 60 * 1000;
+
+  static long refreshMs;
+
+  static synchronized long refreshMs() {
+    if (refreshMs == 0)
+      try {
+        refreshMs = ConfigProvider.getConfig()
+            .getOptionalValue("dashjoin.search.refresh-ms", Long.class).orElse(DEFAULT_REFRESH_MS);
+      } catch (RuntimeException e) {
+        // no config outside of quarkus
+        refreshMs = DEFAULT_REFRESH_MS;
+      }
+    return refreshMs;
+  }
+
+  /**
+   * database ID to index
+   */
+  static final Map<String, SearchIndex> indexes = new ConcurrentHashMap<>();
+
+  /**
+   * get the index of the database, create it if there is none yet. Called by the default search
+   */
+  public static SearchIndex get(AbstractDatabase db) {
+    return indexes.compute(key(db),
+        (k, v) -> v != null && v.database.equals(db.name) ? v : new SearchIndex(db.name));
+  }
+
+  /**
+   * get the index of the database, null if the database was not searched using the default search
+   * yet. Used by the CRUD operations, databases with their own search never have an index
+   */
+  public static SearchIndex of(AbstractDatabase db) {
+    SearchIndex res = indexes.get(key(db));
+    return res != null && res.database.equals(db.name) ? res : null;
+  }
+
+  static String key(AbstractDatabase db) {
+    return db.ID == null ? db.name : db.ID;
+  }
+
+  /**
+   * single background thread crawling the databases one after the other
+   */
+  static ExecutorService crawler;
+
+  static synchronized ExecutorService crawler() {
+    if (crawler == null)
+      crawler = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "dj-search-index");
+        thread.setDaemon(true);
+        return thread;
+      });
+    return crawler;
+  }
+
+  /**
+   * indexed record
+   */
+  static class Doc {
+
+    Resource id;
+
+    String[] columns;
+
+    /**
+     * cell values, strings, numbers and booleans are kept as is, other values as string. Needed for
+     * the match reported and to check the candidates
+     */
+    Object[] values;
+
+    /**
+     * number of postings of this record
+     */
+    int trigrams;
+
+    long chars;
+
+    long generation;
+
+    /**
+     * insertion order, ranks equal matches like the brute force search. Also identifies the record
+     * in the postings
+     */
+    int seq;
+  }
+
+  /**
+   * ascending seqs of the records containing a trigram
+   */
+  static class Postings {
+
+    int[] seqs = new int[2];
+
+    int size;
+
+    void add(int seq) {
+      if (size == seqs.length)
+        seqs = Arrays.copyOf(seqs, size * 2);
+      seqs[size++] = seq;
+    }
+
+    boolean contains(int seq) {
+      return Arrays.binarySearch(seqs, 0, size, seq) >= 0;
+    }
+  }
+
+  final String database;
+
+  /**
+   * record key (table and pk) to record
+   */
+  final Map<String, Doc> docs = new HashMap<>();
+
+  /**
+   * seq to record
+   */
+  final Map<Integer, Doc> bySeq = new HashMap<>();
+
+  /**
+   * trigram to records. Removed records stay in the postings until the index is compacted
+   */
+  final Map<String, Postings> postings = new HashMap<>();
+
+  /**
+   * number of postings of indexed and of removed records
+   */
+  long live, dead;
+
+  /**
+   * generates keys for records without primary key
+   */
+  final AtomicLong unkeyed = new AtomicLong();
+
+  int seq;
+
+  /**
+   * maximum number of characters kept, defaults to MAX_CHARS
+   */
+  long maxChars = MAX_CHARS;
+
+  /**
+   * number of characters kept
+   */
+  long chars;
+
+  /**
+   * set if the database has more text than maxChars. The index is emptied and only tried again by
+   * the next crawl
+   */
+  volatile boolean full;
+
+  /**
+   * incremented by every crawl, records not seen by a crawl are removed
+   */
+  volatile long generation;
+
+  /**
+   * true once the index was filled completely
+   */
+  volatile boolean ready;
+
+  /**
+   * start time of the last crawl
+   */
+  volatile long crawled;
+
+  /**
+   * true while the crawler is running
+   */
+  volatile boolean crawling;
+
+  public SearchIndex(String database) {
+    this.database = database;
+  }
+
+  /**
+   * true once the index was filled and can answer searches
+   */
+  public boolean isReady() {
+    return ready && !full;
+  }
+
+  /**
+   * (re)fill the index in the background unless it is being crawled or still fresh. Databases that
+   * were too large to index are tried again less often
+   */
+  public synchronized void refresh(AbstractDatabase db, Collection<Table> tables) {
+    long interval = full ? 10 * refreshMs() : refreshMs();
+    if (crawling || System.currentTimeMillis() - crawled < interval)
+      return;
+    crawling = true;
+    crawled = System.currentTimeMillis();
+    crawler().submit(() -> {
+      try {
+        crawl(db, tables);
+      } catch (Exception e) {
+        log.warning("Error indexing " + database + ": " + e);
+      } finally {
+        crawling = false;
+      }
+    });
+  }
+
+  /**
+   * read all tables page by page and index the records
+   */
+  void crawl(AbstractDatabase db, Collection<Table> tables) throws Exception {
+    long start;
+    synchronized (this) {
+      start = ++generation;
+      full = false;
+    }
+    for (Table t : tables) {
+      // do not index performance traces
+      if ("dj-query-performance".equals(t.name))
+        continue;
+      String after = null;
+      do {
+        Page page = db.page(t, after, BATCH_SIZE, null, false, null);
+        for (Map<String, Object> row : page.data)
+          put(db, t, row);
+        if (full)
+          return;
+        after = page.next;
+      } while (after != null);
+    }
+
+    // remove records that were deleted since the last crawl
+    synchronized (this) {
+      for (Entry<String, Doc> doc : new ArrayList<>(docs.entrySet()))
+        if (doc.getValue().generation < start)
+          remove(doc.getKey());
+      ready = true;
+    }
+  }
+
+  static String key(String table, List<Object> pk) {
+    return table + "\0" + pk;
+  }
+
+  /**
+   * index the record, replaces the previous version of the record
+   */
+  public synchronized void put(AbstractDatabase db, Table t, Map<String, Object> row) {
+    if (row == null || full)
+      return;
+    Resource id = Resource.of(db, t, row);
+    String key = id.pk.isEmpty() ? t.name + "\1" + unkeyed.incrementAndGet() : key(t.name, id.pk);
+    remove(key);
+
+    List<String> columns = new ArrayList<>();
+    List<Object> values = new ArrayList<>();
+    Doc doc = new Doc();
+    for (Entry<String, Object> e : row.entrySet()) {
+      if (e.getValue() == null)
+        continue;
+      String s = e.getValue().toString();
+      boolean scalar = e.getValue() instanceof String || e.getValue() instanceof Number
+          || e.getValue() instanceof Boolean;
+      columns.add(e.getKey());
+      values.add(scalar ? e.getValue() : s);
+      doc.chars += s.length();
+    }
+    doc.id = id;
+    doc.columns = columns.toArray(new String[0]);
+    doc.values = values.toArray();
+    doc.generation = generation;
+
+    chars += doc.chars;
+    if (chars > maxChars) {
+      log.info("Not indexing " + database + ", it contains more than " + maxChars + " characters");
+      full = true;
+      ready = false;
+      docs.clear();
+      bySeq.clear();
+      postings.clear();
+      live = dead = 0;
+      chars = 0;
+      return;
+    }
+    if (seq == Integer.MAX_VALUE)
+      compact();
+    docs.put(key, doc);
+    index(doc);
+  }
+
+  /**
+   * assign the next seq to the record and add it to the postings
+   */
+  void index(Doc doc) {
+    doc.seq = ++seq;
+    bySeq.put(doc.seq, doc);
+    Set<String> trigrams = new HashSet<>();
+    for (Object value : doc.values) {
+      // pad the value so that shorter search strings are contained in a trigram
+      String s = "\0" + value.toString().toLowerCase() + "\0";
+      for (int i = 0; i + 3 <= s.length(); i++)
+        trigrams.add(s.substring(i, i + 3));
+    }
+    for (String trigram : trigrams)
+      postings.computeIfAbsent(trigram, k -> new Postings()).add(doc.seq);
+    doc.trigrams = trigrams.size();
+    live += doc.trigrams;
+  }
+
+  /**
+   * rebuild the postings without the removed records. The records are renumbered in their current
+   * order, so the seqs do not run out
+   */
+  void compact() {
+    List<Doc> list = new ArrayList<>(bySeq.values());
+    list.sort(Comparator.comparing(d -> d.seq));
+    bySeq.clear();
+    postings.clear();
+    live = dead = 0;
+    seq = 0;
+    for (Doc doc : list)
+      index(doc);
+  }
+
+  /**
+   * remove the record identified by the primary key values in search
+   */
+  public synchronized void remove(AbstractDatabase db, Table t, Map<String, Object> search) {
+    remove(key(t.name, Resource.of(db, t, search).pk));
+  }
+
+  void remove(String key) {
+    Doc doc = docs.remove(key);
+    if (doc != null) {
+      chars -= doc.chars;
+      bySeq.remove(doc.seq);
+      live -= doc.trigrams;
+      dead += doc.trigrams;
+      if (dead > live && dead > BATCH_SIZE)
+        compact();
+    }
+  }
+
+  /**
+   * number of indexed records
+   */
+  public synchronized int size() {
+    return docs.size();
+  }
+
+  /**
+   * records that might contain search in one of their cells
+   */
+  synchronized List<Doc> candidates(String search) {
+    List<Doc> res = new ArrayList<>();
+    if (search.length() < 3) {
+      // contained in a trigram of the padded values
+      Set<Integer> seqs = new HashSet<>();
+      for (Entry<String, Postings> e : postings.entrySet())
+        if (e.getKey().contains(search))
+          for (int i = 0; i < e.getValue().size; i++)
+            seqs.add(e.getValue().seqs[i]);
+      for (Integer seq : seqs)
+        if (bySeq.containsKey(seq))
+          res.add(bySeq.get(seq));
+      return res;
+    }
+
+    // intersect the postings of all trigrams, starting with the shortest
+    List<Postings> lists = new ArrayList<>();
+    for (int i = 0; i + 3 <= search.length(); i++) {
+      Postings p = postings.get(search.substring(i, i + 3));
+      if (p == null)
+        return res;
+      lists.add(p);
+    }
+    lists.sort(Comparator.comparing(p -> p.size));
+    Postings first = lists.get(0);
+    next: for (int i = 0; i < first.size; i++) {
+      int seq = first.seqs[i];
+      for (Postings p : lists)
+        if (!p.contains(seq))
+          continue next;
+      if (bySeq.containsKey(seq))
+        res.add(bySeq.get(seq));
+    }
+    return res;
+  }
+
+  /**
+   * find the records with a cell containing search, best matches first
+   *
+   * @param tables tables the user may search
+   */
+  public List<SearchResult> search(String search, Integer limit, Collection<Table> tables) {
+    Set<String> allowed = new HashSet<>();
+    for (Table t : tables)
+      allowed.add(t.name);
+    String s = search.toLowerCase();
+
+    List<Match> matches = new ArrayList<>();
+    for (Doc doc : candidates(s)) {
+      if (!allowed.contains(doc.id.table))
+        continue;
+      Match best = null;
+      for (int i = 0; i < doc.values.length; i++) {
+        int rank = rank(doc.values[i].toString().toLowerCase(), s);
+        if (rank > 0 && (best == null || rank > best.rank)) {
+          best = new Match();
+          best.doc = doc;
+          best.column = i;
+          best.rank = rank;
+        }
+      }
+      if (best != null)
+        matches.add(best);
+    }
+    matches.sort(Comparator.comparing((Match m) -> -m.rank).thenComparing(m -> m.doc.seq));
+
+    List<SearchResult> res = new ArrayList<>();
+    for (Match m : matches) {
+      Resource id = new Resource();
+      id.database = database;
+      id.table = m.doc.id.table;
+      id.pk = m.doc.id.pk;
+      res.add(SearchResult.of(id, m.doc.columns[m.column], m.doc.values[m.column]));
+      if (limit != null && res.size() >= limit)
+        break;
+    }
+    return res;
+  }
+
+  static class Match {
+
+    Doc doc;
+
+    int column;
+
+    int rank;
+  }
+
+  /**
+   * 3 if text equals search, 2 if a word in text starts with search, 1 if text contains search, 0
+   * otherwise
+   */
+  static int rank(String text, String search) {
+    int index = text.indexOf(search);
+    if (index < 0)
+      return 0;
+    if (text.length() == search.length())
+      return 3;
+    for (; index >= 0; index = text.indexOf(search, index + 1))
+      if (index == 0 || !Character.isLetterOrDigit(text.charAt(index - 1)))
+        return 2;
+    return 1;
+  }
+}
@@ -0,0 +1,76 @@
+package org.dashjoin.service;
+
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * bounded worker pools for the federated search. Databases and tables are searched on different
+ * pools, since a database search waits for its table searches and must not take their threads
+ */
+public class SearchWorkers {
+
+  /**
+   * max number of databases / tables searched concurrently
+   */
+  public static final int MAX_PARALLELISM =
+      Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+
+  static ExecutorService databases;
+
+  static ExecutorService tables;
+
+  /**
+   * pool for searching databases
+   */
+  public static synchronized ExecutorService databases() {
+    if (databases == null)
+      databases = pool("dj-search-db-");
+    return databases;
+  }
+
+  /**
+   * pool for searching the tables of a database
+   */
+  public static synchronized ExecutorService tables() {
+    if (tables == null)
+      tables = pool("dj-search-table-");
+    return tables;
+  }
+
+  static ExecutorService pool(String prefix) {
+    AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(MAX_PARALLELISM, r -> {
+      Thread thread = new Thread(r, prefix + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * absolute deadline for the timeout in ms (null means no deadline)
+   */
+  public static long deadline(Integer timeout) {
+    return timeout == null ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+  }
+
+  /**
+   * ms left until the deadline
+   */
+  public static long remaining(long deadline) {
+    return Math.max(0, deadline - System.currentTimeMillis());
+  }
+
+  /**
+   * next completed task, null if the deadline passed
+   */
+  public static <T> Future<T> next(CompletionService<T> cs, long deadline)
+      throws InterruptedException {
+    if (deadline == Long.MAX_VALUE)
+      return cs.take();
+    return cs.poll(remaining(deadline), TimeUnit.MILLISECONDS);
+  }
+}
@@ -6,6 +6,7 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
@@ -67,7 +68,7 @@ public class Services {
    * being read/write and having preference over the other DBs. Other providers may be added later
    * on (e.g. when a DB is defined)
    */
-  synchronized public Config getConfig() {
+  public Config getConfig() {
 
     // if (!multiTenancy) {
     // if (config == null)
@@ -75,17 +76,26 @@ public class Services {
     // return config;
     // }
 
-    String id = tenantManager.getTenantId();
-    Config c = tenantConfigs.get(id);
-    if (c == null) {
+    String id;
+    PojoDatabase c;
+    Map<String, Future<?>> tasks;
+    synchronized (this) {
+      id = tenantManager.getTenantId();
+      Config existing = tenantConfigs.get(id);
+      if (existing != null)
+        return existing;
       c = pojoDatabase();
       tenantConfigs.put(id, c);
 
-      // make sure all DBs are initialized
+      // make sure all DBs are registered, they connect in parallel
       log.info("Starting metadata collection for tenant=" + id);
-      c.metadataCollection();
-      log.info("Done metadata collection for tenant=" + id);
+      tasks = c.startMetadataCollection();
     }
+
+    // wait outside of the lock, since the collector threads need the config as well. Databases
+    // that are not done when the timeout passes publish their tables later
+    c.awaitMetadataCollection(tasks);
+    log.info("Done metadata collection for tenant=" + id);
     return c;
   }
 
@@ -100,6 +110,7 @@ public class Services {
   PojoDatabase pojoDatabase() {
     PojoDatabase config = new PojoDatabase(this);
     config._cache = new ConcurrentHashMap<>();
+    config._pojos = new PojoCache();
     config.name = "config";
     config.ID = "dj/config";
     config._user = persistantDB;
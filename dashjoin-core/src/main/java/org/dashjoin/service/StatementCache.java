@@ -0,0 +1,69 @@
+package org.dashjoin.service;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * bounded LRU cache of the SQL text SQLDatabase derives from queries and table metadata (generated
+ * statements, named parameter translations, parsed queries). Values are computed outside of the
+ * lock, so two threads may generate the same entry concurrently
+ */
+public class StatementCache<T> {
+
+  /**
+   * default number of entries kept per cache
+   */
+  public static final int CAPACITY = 500;
+
+  /**
+   * generates the value on a cache miss
+   */
+  public interface Generator<T> {
+    T generate(String key) throws SQLException;
+  }
+
+  final Map<String, T> entries;
+
+  public StatementCache() {
+    this(CAPACITY);
+  }
+
+  public StatementCache(int capacity) {
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * get the cached value, generate it on a cache miss
+   */
+  public T get(String key, Generator<T> generator) throws SQLException {
+    T res;
+    synchronized (entries) {
+      res = entries.get(key);
+    }
+    if (res != null)
+      return res;
+
+    res = generator.generate(key);
+    synchronized (entries) {
+      entries.put(key, res);
+    }
+    return res;
+  }
+
+  /**
+   * number of cached entries
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package org.dashjoin.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.apache.commons.dbcp2.DelegatingConnection;
+import org.apache.commons.dbcp2.DelegatingPreparedStatement;
+import org.apache.commons.dbcp2.DelegatingStatement;
+
+/**
+ * connection wrapper that traces the statements run via the connection and reports them to
+ * PerformanceDatabase when the connection is closed. The wrapper only intercepts the calls that
+ * carry the query text, max rows, timeout and errors. Result sets are wrapped in a plain
+ * DelegatingResultSet by the dbcp statements, but no row is traced there. The number of rows read
+ * is reported by the caller via SQLDatabase.rows()
+ */
+public class TracedConnection extends DelegatingConnection<Connection> {
+
+  /**
+   * prefix of the query key in PerformanceDatabase, usually the database ID
+   */
+  final String database;
+
+  final long start = System.nanoTime();
+
+  /**
+   * operation type reported to PerformanceDatabase
+   */
+  String operation;
+
+  String query;
+
+  Integer maxRows;
+
+  Integer queryTimeout;
+
+  String error;
+
+  /**
+   * optional fetch size set on all statements
+   */
+  Integer fetchSize;
+
+  /**
+   * number of rows read, reported by the caller
+   */
+  long rows;
+
+  private boolean reported;
+
+  public TracedConnection(String database, Connection con) {
+    super(con);
+    this.database = database;
+  }
+
+  @Override
+  public Statement createStatement() throws SQLException {
+    checkOpen();
+    try {
+      return new TracedStatement(this, fetchSize(getDelegateInternal().createStatement()));
+    } catch (SQLException e) {
+      handleException(e);
+      return null;
+    }
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String sql) throws SQLException {
+    checkOpen();
+    query = sql;
+    try {
+      return new TracedPreparedStatement(this,
+          fetchSize(getDelegateInternal().prepareStatement(sql)));
+    } catch (SQLException e) {
+      handleException(e);
+      return null;
+    }
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
+      throws SQLException {
+    checkOpen();
+    query = sql;
+    try {
+      return new TracedPreparedStatement(this,
+          fetchSize(getDelegateInternal().prepareStatement(sql, autoGeneratedKeys)));
+    } catch (SQLException e) {
+      handleException(e);
+      return null;
+    }
+  }
+
+  <T extends Statement> T fetchSize(T stmt) throws SQLException {
+    if (fetchSize != null)
+      stmt.setFetchSize(fetchSize);
+    return stmt;
+  }
+
+  @Override
+  protected void handleException(SQLException e) throws SQLException {
+    error = e.toString();
+    super.handleException(e);
+  }
+
+  @Override
+  public void close() throws SQLException {
+    if (!reported) {
+      reported = true;
+      PerformanceDatabase.add(database + ": " + query, operation, System.nanoTime() - start, rows,
+          maxRows, queryTimeout, error);
+    }
+    super.close();
+  }
+
+  /**
+   * traced statement created via createStatement
+   */
+  static class TracedStatement extends DelegatingStatement {
+
+    final TracedConnection con;
+
+    TracedStatement(TracedConnection con, Statement stmt) {
+      super(con, stmt);
+      this.con = con;
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+      con.query = sql;
+      return super.execute(sql);
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+      con.query = sql;
+      return super.executeQuery(sql);
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+      con.query = sql;
+      return super.executeUpdate(sql);
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+      con.maxRows = max;
+      super.setMaxRows(max);
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+      con.queryTimeout = seconds;
+      super.setQueryTimeout(seconds);
+    }
+
+    @Override
+    protected void handleException(SQLException e) throws SQLException {
+      con.error = e.toString();
+      super.handleException(e);
+    }
+  }
+
+  /**
+   * traced statement created via prepareStatement
+   */
+  static class TracedPreparedStatement extends DelegatingPreparedStatement {
+
+    final TracedConnection con;
+
+    TracedPreparedStatement(TracedConnection con, PreparedStatement stmt) {
+      super(con, stmt);
+      this.con = con;
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+      con.maxRows = max;
+      super.setMaxRows(max);
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+      con.queryTimeout = seconds;
+      super.setQueryTimeout(seconds);
+    }
+
+    @Override
+    protected void handleException(SQLException e) throws SQLException {
+      con.error = e.toString();
+      super.handleException(e);
+    }
+  }
+}
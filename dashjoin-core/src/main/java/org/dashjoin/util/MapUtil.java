@@ -36,6 +36,27 @@ public class MapUtil {
     }
   }
 
+  /**
+   * deep copy of nested maps and lists, other values are shared. Used to hand out data from
+   * snapshots that must not be changed by the caller
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T copy(T object) {
+    if (object instanceof Map<?, ?>) {
+      Map<Object, Object> res = new LinkedHashMap<>();
+      for (Entry<?, ?> e : ((Map<?, ?>) object).entrySet())
+        res.put(e.getKey(), copy(e.getValue()));
+      return (T) res;
+    }
+    if (object instanceof List<?>) {
+      List<Object> res = new ArrayList<>(((List<?>) object).size());
+      for (Object i : (List<?>) object)
+        res.add(copy(i));
+      return (T) res;
+    }
+    return object;
+  }
+
   public static Map<String, Object> of() {
     return new LinkedHashMap<>();
   }
@@ -6,8 +6,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import javax.ws.rs.NotAuthorizedException;
 import javax.ws.rs.core.SecurityContext;
 import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.CharStream;
@@ -19,9 +23,12 @@ import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.dashjoin.model.AbstractDatabase;
 import org.dashjoin.model.Property;
+import org.dashjoin.service.ACLContainerRequestFilter;
 import org.dashjoin.service.Data;
 import org.dashjoin.service.Data.Origin;
 import org.dashjoin.service.Data.Resource;
+import org.dashjoin.service.ReferenceIndex;
+import org.dashjoin.service.ReferenceIndex.Reference;
 import org.dashjoin.service.Services;
 import org.dashjoin.util.cypher.CypherBaseListener;
 import org.dashjoin.util.cypher.CypherLexer;
@@ -343,6 +350,36 @@ public class OpenCypherQuery {
    */
   List<Map<String, Object>> res = new ArrayList<>();
 
+  /**
+   * maximum number of incoming links followed per record and fk column when no edge is specified
+   */
+  static final int INCOMING_LIMIT = 100;
+
+  /**
+   * partial solution: the variables bound by the links matched so far and the record the next link
+   * starts from
+   */
+  static class Binding {
+
+    Map<String, Object> vars;
+
+    Map<String, Object> start;
+
+    List<Object> steps;
+
+    Map<String, Object> row;
+
+    /**
+     * ID of the table of row (dj/database/table)
+     */
+    String table;
+  }
+
+  /**
+   * the query is evaluated breadth first: all partial solutions reaching a link (the frontier) are
+   * expanded together, so every link costs a few multi key reads or in-list queries rather than
+   * one query per record
+   */
   public List<Map<String, Object>> run(Services service, Data data, SecurityContext sc)
       throws Exception {
 
@@ -352,28 +389,32 @@ public class OpenCypherQuery {
 
     // compute starting context nodes
     String[] table = Escape.parseTableID(context.name);
+    List<Binding> frontier = new ArrayList<>();
     for (Map<String, Object> row : data.all(sc, table[1], table[2], null, null, null, false,
-        context.key == null ? null
-            : MapUtil.of(context.key,
-                context.value.startsWith("'") && context.value.endsWith("'")
-                    ? context.value.substring(1, context.value.length() - 1)
-                    : context.value))) {
-
-      // initialize variable bindings
-      Map<String, Object> vars = new LinkedHashMap<>();
-
-      // initialize path variable
-      Map<String, Object> path = MapUtil.of("start", row, "steps", new ArrayList<>());
+        context.key == null ? null : MapUtil.of(context.key, unquote(context.value)))) {
+      Binding b = new Binding();
+      b.vars = new LinkedHashMap<>();
+      b.start = row;
+      b.steps = new ArrayList<>();
       if (pathVariable != null)
-        vars.put(pathVariable, path);
-
-      step(service, data, sc, context, new LinkedHashMap<>(vars), path, row, 0);
+        b.vars.put(pathVariable, MapUtil.of("start", b.start, "steps", b.steps));
+      b.row = row;
+      b.table = context.name;
+      addResource(table[1], table[2], row);
+      b.vars.put(context.variable, row);
+      frontier.add(b);
     }
+
+    for (Chain link : links)
+      frontier = step(service, data, sc, link, frontier);
+
+    for (Binding b : frontier)
+      res.add(project(b.vars));
     return res;
   }
 
   /**
-   * holds potential recursion data
+   * record reached by following a link
    */
   static class Struct {
     Struct(Map<String, Object> i, String linkEdgeName, String ctxName) {
@@ -387,105 +428,249 @@ public class OpenCypherQuery {
     String ctxName;
   }
 
+  /**
+   * follow link from all records in the frontier, returns the extended partial solutions in the
+   * order of the frontier
+   */
   @SuppressWarnings("unchecked")
-  void step(Services service, Data data, SecurityContext sc, VariableName ctx,
-      Map<String, Object> vars, Map<String, Object> path, Map<String, Object> row, int linkIndex)
-      throws Exception {
+  List<Binding> step(Services service, Data data, SecurityContext sc, Chain link,
+      List<Binding> frontier) throws Exception {
 
-    // parse context metadata
-    String[] table = Escape.parseTableID(ctx.name);
-    addResource(table[1], table[2], row);
-    vars.put(ctx.variable, row);
-
-    if (linkIndex == links.size())
-      // solution found
-      res.add(project(vars));
-    else {
-      Chain link = links.get(linkIndex);
-      ctx = link.table.getVariableName();
-      if (row == null)
-        return;
-      List<Struct> incRes = new ArrayList<>();
-      if (link.left2right) {
-        if (link.edge.name == null) {
-          // outgoing link, no rel type specified, check all properties for "ref"
-          for (Property p : dbs.get(table[1]).tables.get(table[2]).properties.values())
-            if (p.ref != null) {
-              if (!checkContext(ctx, p.ref.substring(0, p.ref.lastIndexOf('/'))))
-                return;
-              incRes
-                  .add(new Struct(
-                      (Map<String, Object>) data.traverse(sc, table[1], table[2],
-                          "" + row.get(pk(dbs.get(table[1]), table[2])), p.name),
-                      p.name, ctx.name));
-            }
-        } else {
-          // outgoing link with prop, do a simple traverse
-          String ref = dbs.get(table[1]).tables.get(table[2]).properties.get(link.edge.name).ref;
-          ref = ref == null ? null : ref.substring(0, ref.lastIndexOf('/'));
-          if (!checkContext(ctx, ref))
-            return;
-          incRes.add(new Struct(
-              (Map<String, Object>) data.traverse(sc, table[1], table[2],
-                  "" + row.get(pk(dbs.get(table[1]), table[2])), link.edge.name),
-              link.edge.name, ctx.name));
-        }
-      } else {
-        if (link.edge.name == null) {
-          // incoming, no prop specified, call data.incoming
-          for (Origin o : data.incoming(sc, table[1], table[2],
-              "" + row.get(pk(dbs.get(table[1]), table[2])), 0, 100)) {
-            Map<String, Object> lookup =
-                data.read(sc, o.id.database, o.id.table, "" + o.id.pk.get(0));
-            if (!checkContext(ctx, "dj/" + o.id.database + "/" + o.id.table))
-              return;
-            incRes.add(new Struct(lookup, o.fk, ctx.name));
-          }
-        } else {
-          // incoming, prop specified, do a traverse (which might yield several results)
-          if (!checkContext(ctx, link.edge.name.substring(0, link.edge.name.lastIndexOf('/'))))
-            return;
-          for (Map<String, Object> x : (List<Map<String, Object>>) data.traverse(sc, table[1],
-              table[2], "" + row.get(pk(dbs.get(table[1]), table[2])), link.edge.name))
-            incRes.add(new Struct(x, link.edge.name, ctx.name));
-        }
-      }
-      for (Struct i : incRes) {
+    List<List<Struct>> next = new ArrayList<>();
+    for (int i = 0; i < frontier.size(); i++)
+      next.add(new ArrayList<>());
+
+    if (link.left2right)
+      outgoing(sc, link, frontier, next);
+    else if (link.edge.name == null)
+      incoming(service, data, sc, link, frontier, next);
+    else
+      incoming(sc, link, frontier, next);
+
+    List<Binding> res = new ArrayList<>();
+    for (int f = 0; f < frontier.size(); f++) {
+      Binding b = frontier.get(f);
+      for (Struct i : next.get(f)) {
 
         // omit nulls
         if (i.i == null)
           continue;
 
         // check condition
-        if (link.table.key != null) {
-          String val = link.table.value;
-          if (val.startsWith("'") && val.endsWith("'"))
-            val = val.substring(1, val.length() - 1);
-          if (!("" + i.i.get(link.table.key)).equals(val))
+        if (link.table.key != null)
+          if (!("" + i.i.get(link.table.key)).equals(unquote(link.table.value)))
             continue;
-        }
 
-        row = i.i;
-        vars.put(link.table.variable, row);
+        String[] table = Escape.parseTableID(i.ctxName);
+        addResource(table[1], table[2], i.i);
 
         Map<String, Object> edge =
             MapUtil.of("_dj_edge", i.linkEdgeName, "_dj_outbound", link.left2right);
-        vars.put(link.edge.variable, edge);
 
-        ((List<Object>) path.get("steps")).add(MapUtil.of("edge", edge, "end", row));
-        ctx.name = i.ctxName;
-        step(service, data, sc, ctx, new LinkedHashMap<>(vars), path, row, linkIndex + 1);
+        Binding n = new Binding();
+        n.vars = new LinkedHashMap<>(b.vars);
+        n.start = b.start;
+        n.steps = new ArrayList<>(b.steps);
+        n.steps.add(MapUtil.of("edge", edge, "end", i.i));
+        if (pathVariable != null)
+          n.vars.put(pathVariable, MapUtil.of("start", n.start, "steps", n.steps));
+        n.row = i.i;
+        n.table = i.ctxName;
+        n.vars.put(link.table.variable, n.row);
+        n.vars.put(link.edge.variable, edge);
+        res.add(n);
       }
     }
+    return res;
   }
 
-  boolean checkContext(VariableName ctx, String ref) {
-    if (ctx.name == null)
-      ctx.name = ref;
-    else if (!ctx.name.equals(ref))
+  /**
+   * outgoing link: collect the fk values of all records and read the records they point to per
+   * table using AbstractDatabase.readMany
+   */
+  void outgoing(SecurityContext sc, Chain link, List<Binding> frontier, List<List<Struct>> next)
+      throws Exception {
+
+    // target table to fk values
+    Map<String, Set<String>> keys = new LinkedHashMap<>();
+    for (Binding b : frontier) {
+      for (Property p : properties(b, link))
+        keys.computeIfAbsent(ref(p), k -> new LinkedHashSet<>()).add("" + b.row.get(p.name));
+    }
+
+    // target table to fk value to record
+    Map<String, Map<String, Map<String, Object>>> rows = new HashMap<>();
+    for (Entry<String, Set<String>> e : keys.entrySet()) {
+      String[] table = Escape.parseTableID(e.getKey());
+      AbstractDatabase db = dbs.get(table[1]);
+      org.dashjoin.model.Table m = db.tables.get(table[2]);
+      ACLContainerRequestFilter.check(sc, db, m);
+      String pk = pk(db, table[2]);
+      List<String> values = new ArrayList<>(e.getValue());
+      List<Map<String, Object>> searches = new ArrayList<>();
+      for (String value : values) {
+        Map<String, Object> search = MapUtil.of(pk, value);
+        db.cast(m, search);
+        searches.add(search);
+      }
+      List<Map<String, Object>> found = db.readMany(m, searches);
+      Map<String, Map<String, Object>> byKey = new HashMap<>();
+      for (int i = 0; i < values.size(); i++)
+        byKey.put(values.get(i), found.get(i));
+      rows.put(e.getKey(), byKey);
+    }
+
+    for (int f = 0; f < frontier.size(); f++) {
+      Binding b = frontier.get(f);
+      for (Property p : properties(b, link)) {
+        String ref = ref(p);
+        next.get(f).add(new Struct(rows.get(ref).get("" + b.row.get(p.name)), p.name, ref));
+      }
+    }
+  }
+
+  /**
+   * fk properties of the record followed by an outgoing link, omits null values and references to
+   * tables other than the one required by the link
+   */
+  List<Property> properties(Binding b, Chain link) {
+    String[] table = Escape.parseTableID(b.table);
+    org.dashjoin.model.Table m = dbs.get(table[1]).tables.get(table[2]);
+    List<Property> res = new ArrayList<>();
+    for (Property p : m.properties.values())
+      if (p.ref != null && (link.edge.name == null || link.edge.name.equals(p.name)))
+        if (b.row.get(p.name) != null)
+          if (link.table.name == null || link.table.name.equals(ref(p)))
+            res.add(p);
+    return res;
+  }
+
+  /**
+   * incoming link via the given fk column: find the records pointing to the frontier using
+   * AbstractDatabase.allIn
+   */
+  void incoming(SecurityContext sc, Chain link, List<Binding> frontier, List<List<Struct>> next)
+      throws Exception {
+    String ref = link.edge.name.substring(0, link.edge.name.lastIndexOf('/'));
+    if (link.table.name != null && !link.table.name.equals(ref))
       // ref type and table type do not match
-      return false;
-    return true;
+      return;
+
+    String[] table = Escape.parseTableID(ref);
+    AbstractDatabase db = dbs.get(table[1]);
+    org.dashjoin.model.Table m = db.tables.get(table[2]);
+    ACLContainerRequestFilter.check(sc, db, m);
+    String fk = link.edge.name.substring(link.edge.name.lastIndexOf('/') + 1);
+
+    List<String> keys = new ArrayList<>();
+    for (Binding b : frontier)
+      keys.add(pkValue(b));
+    Map<String, List<Map<String, Object>>> rows = allIn(db, m, fk, keys, null);
+    for (int f = 0; f < frontier.size(); f++)
+      for (Map<String, Object> row : rows.getOrDefault(keys.get(f), Arrays.asList()))
+        next.get(f).add(new Struct(row, link.edge.name, ref));
+  }
+
+  /**
+   * incoming link without edge type: find the records pointing to the frontier via all fk columns
+   * referencing the frontier table's primary key
+   */
+  void incoming(Services service, Data data, SecurityContext sc, Chain link,
+      List<Binding> frontier, List<List<Struct>> next) throws Exception {
+
+    // group the frontier by table
+    Map<String, List<Integer>> byTable = new LinkedHashMap<>();
+    for (int f = 0; f < frontier.size(); f++)
+      byTable.computeIfAbsent(frontier.get(f).table, k -> new ArrayList<>()).add(f);
+
+    ReferenceIndex references = service.getConfig().getReferences();
+    for (Entry<String, List<Integer>> e : byTable.entrySet()) {
+      String[] table = Escape.parseTableID(e.getKey());
+      String pk = null;
+      for (Property p : dbs.get(table[1]).tables.get(table[2]).properties.values())
+        if (p.pkpos != null)
+          // incoming for composite key not yet supported
+          pk = pk == null ? p.ID : "";
+      if (pk == null || pk.isEmpty())
+        continue;
+
+      List<String> keys = new ArrayList<>();
+      for (int f : e.getValue())
+        keys.add(pkValue(frontier.get(f)));
+
+      for (Reference r : references.get(pk)) {
+        String ref = "dj/" + r.db.name + "/" + r.table.name;
+        if (link.table.name != null && !link.table.name.equals(ref))
+          continue;
+        try {
+          ACLContainerRequestFilter.check(sc, r.db, r.table);
+        } catch (NotAuthorizedException ignore) {
+          continue;
+        }
+        Map<String, List<Map<String, Object>>> rows =
+            allIn(r.db, r.table, r.property.name, keys, INCOMING_LIMIT);
+        for (int i = 0; i < keys.size(); i++)
+          for (Map<String, Object> row : rows.getOrDefault(keys.get(i), Arrays.asList()))
+            next.get(e.getValue().get(i)).add(new Struct(row, r.property.ID, ref));
+      }
+
+      // databases without fk metadata are asked record by record
+      for (AbstractDatabase d : references.custom())
+        for (int i = 0; i < keys.size(); i++)
+          for (Origin o : d.incoming(sc, table[1], table[2], keys.get(i), 0, INCOMING_LIMIT,
+              System.currentTimeMillis(), service.getConfig().getAllTimeoutMs(), pk)) {
+            String ref = "dj/" + o.id.database + "/" + o.id.table;
+            if (link.table.name != null && !link.table.name.equals(ref))
+              continue;
+            next.get(e.getValue().get(i)).add(new Struct(
+                data.read(sc, o.id.database, o.id.table, "" + o.id.pk.get(0)), o.fk, ref));
+          }
+    }
+  }
+
+  /**
+   * read the records of table m whose column holds one of the keys, grouped by key. The number of
+   * records per key is capped at limit
+   */
+  Map<String, List<Map<String, Object>>> allIn(AbstractDatabase db, org.dashjoin.model.Table m,
+      String column, List<String> keys, Integer limit) throws Exception {
+    List<Object> values = new ArrayList<>();
+    Map<String, String> byMatch = new HashMap<>();
+    for (String key : new LinkedHashSet<>(keys)) {
+      Map<String, Object> search = MapUtil.of(column, key);
+      db.cast(m, search);
+      values.add(search.get(column));
+      byMatch.put(db.matchKey(m, column, key), key);
+    }
+    Map<String, List<Map<String, Object>>> res = new HashMap<>();
+    for (Map<String, Object> row : db.allIn(m, column, values)) {
+      String key = byMatch.get(db.matchKey(m, column, row.get(column)));
+      List<Map<String, Object>> list =
+          res.computeIfAbsent(key == null ? "" + row.get(column) : key, k -> new ArrayList<>());
+      if (limit == null || list.size() < limit)
+        list.add(row);
+    }
+    return res;
+  }
+
+  /**
+   * table ID referenced by the fk property
+   */
+  static String ref(Property p) {
+    return p.ref.substring(0, p.ref.lastIndexOf('/'));
+  }
+
+  /**
+   * primary key value of the record an incoming link points to
+   */
+  String pkValue(Binding b) {
+    String[] table = Escape.parseTableID(b.table);
+    return "" + b.row.get(pk(dbs.get(table[1]), table[2]));
+  }
+
+  static String unquote(String value) {
+    return value.startsWith("'") && value.endsWith("'") ? value.substring(1, value.length() - 1)
+        : value;
   }
 
   /**
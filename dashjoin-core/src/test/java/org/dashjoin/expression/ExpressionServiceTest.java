@@ -1,5 +1,6 @@
 package org.dashjoin.expression;
 
+import java.util.Map;
 import javax.inject.Inject;
 import javax.ws.rs.core.SecurityContext;
 import org.dashjoin.function.AbstractFunction;
@@ -132,6 +133,38 @@ public class ExpressionServiceTest {
     s.jsonata(sc, "$coord({\"x\":1})", null, false);
   }
 
+  @Test
+  public void testCachedBindingsUseCaller() throws Exception {
+    SecurityContext alice = Mockito.mock(SecurityContext.class);
+    Mockito.when(alice.isUserInRole(ArgumentMatchers.anyString())).thenReturn(true);
+    Mockito.when(alice.getUserPrincipal()).thenReturn(() -> "alice");
+    SecurityContext bob = Mockito.mock(SecurityContext.class);
+    Mockito.when(bob.isUserInRole(ArgumentMatchers.anyString())).thenReturn(true);
+    Mockito.when(bob.getUserPrincipal()).thenReturn(() -> "bob");
+
+    // the same expression and bindings are reused, the function must still see the current caller
+    Assertions.assertEquals("alice", s.jsonata(alice, "$djUser()", null, false).asText());
+    Assertions.assertEquals("bob", s.jsonata(bob, "$djUser()", null, false).asText());
+    Assertions.assertEquals("alice", s.resolve(s.prepare(alice, "$djUser()"), null));
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    SecurityContext sc = Mockito.mock(SecurityContext.class);
+    Mockito.when(sc.isUserInRole(ArgumentMatchers.anyString())).thenReturn(true);
+    String engine = s.jsonataJs ? "jsonata-js" : "jsonata4java";
+
+    s.jsonata(sc, "1 + 41", null, false);
+    long hits = hits(s.cache(sc), engine);
+    Assertions.assertEquals(42, s.jsonata(sc, "1 + 41", null, false).asInt());
+    Assertions.assertEquals(hits + 1, hits(s.cache(sc), engine));
+  }
+
+  @SuppressWarnings("unchecked")
+  long hits(Map<String, Object> stats, String engine) {
+    return (Long) ((Map<String, Object>) stats.get(engine)).get("hits");
+  }
+
   public static class Coord {
     public int x;
     public int y;
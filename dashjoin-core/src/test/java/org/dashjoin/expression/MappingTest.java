@@ -137,4 +137,31 @@ public class MappingTest {
     Assertions.assertEquals("[{a=1, rid=0}, {a=2, rid=1}]",
         Mapping.apply(s, sc, source, mappings).get("t").toString());
   }
+
+  @Test
+  public void testParallel() throws Exception {
+    Map<String, Mapping> mappings = new LinkedHashMap<>();
+    mappings.put("t", newMapping());
+    mappings.get("t").rowFilter = "a % 3 != 0";
+    mappings.get("t").rowMapping = ImmutableMap.of("a", "a", "rid", "$index()");
+
+    Map<String, List<Map<String, Object>>> source = new LinkedHashMap<>();
+    source.put("t", new ArrayList<>());
+    for (int i = 0; i < 1000; i++)
+      source.get("t").add(ImmutableMap.of("a", i));
+
+    SecurityContext sc = Mockito.mock(SecurityContext.class);
+    Mockito.when(sc.isUserInRole(ArgumentMatchers.anyString())).thenReturn(true);
+
+    Index.reset();
+    List<Map<String, Object>> sequential = Mapping.apply(s, sc, source, mappings).get("t");
+    Index.reset();
+    List<Map<String, Object>> parallel = Mapping.apply(s, sc, source, mappings, 4).get("t");
+
+    Assertions.assertEquals(666, parallel.size());
+    Assertions.assertEquals(sequential.toString(), parallel.toString());
+    Assertions.assertEquals("{a=1, rid=1}", parallel.get(0).toString());
+    Assertions.assertEquals("{a=998, rid=998}", parallel.get(665).toString());
+    Assertions.assertEquals(1000, Index.get());
+  }
 }
@@ -0,0 +1,116 @@
+package org.dashjoin.expression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.ws.rs.core.SecurityContext;
+import org.dashjoin.expression.ExpressionService.ParsedExpression;
+import org.dashjoin.mapping.Mapping;
+import org.dashjoin.util.MapUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import io.quarkus.test.junit.QuarkusTest;
+
+/**
+ * checks that the polyglot value bridge maps rows like the JSON text round trip on Mapping.apply.
+ * Requires the jsonata node module, JSBridgeTest covers the conversion without it
+ */
+@QuarkusTest
+public class MappingValueBridgeTest {
+
+  @Inject
+  ExpressionService s;
+
+  List<Map<String, Object>> apply(ParsedExpression filter, ParsedExpression rowMapping,
+      List<Map<String, Object>> rows) throws Exception {
+    List<Map<String, Object>> res = new ArrayList<>();
+    for (Map<String, Object> row : rows) {
+      Map<String, Object> mapped = Mapping.apply(s, filter, rowMapping, row);
+      if (mapped != null)
+        res.add(mapped);
+    }
+    return res;
+  }
+
+  static List<Map<String, Object>> rows(int count) {
+    List<Map<String, Object>> rows = new ArrayList<>();
+    for (int i = 0; i < count; i++)
+      rows.add(MapUtil.of("ID", i, "NAME", "name" + i, "PRICE", i * 0.5, "TAGS",
+          List.of("a", "b"), "ADDRESS", MapUtil.of("CITY", "city" + i % 10)));
+    return rows;
+  }
+
+  ParsedExpression filter() throws Exception {
+    return s.prepare(Mockito.mock(SecurityContext.class), "ID % 2 = 0");
+  }
+
+  ParsedExpression rowMapping() throws Exception {
+    return s.prepare(Mockito.mock(SecurityContext.class),
+        "{\"id\": ID, \"label\": NAME & ' ' & ADDRESS.CITY, \"total\": PRICE * 2,"
+            + " \"tags\": TAGS}");
+  }
+
+  @Test
+  public void testValueBridge() throws Exception {
+    Assumptions.assumeTrue(s.jsonataJs, "JsonataJS not available");
+
+    List<Map<String, Object>> rows = rows(100);
+    ParsedExpression filter = filter();
+    ParsedExpression rowMapping = rowMapping();
+
+    boolean valueBridge = s.valueBridge;
+    try {
+      s.valueBridge = false;
+      List<Map<String, Object>> expected = apply(filter, rowMapping, rows);
+      Assertions.assertEquals(50, expected.size());
+      Assertions.assertEquals("name2 city2", expected.get(1).get("label"));
+      Assertions.assertEquals(List.of("a", "b"), expected.get(1).get("tags"));
+
+      s.valueBridge = true;
+      Assertions.assertEquals(expected, apply(filter, rowMapping, rows));
+    } finally {
+      s.valueBridge = valueBridge;
+    }
+  }
+
+  /**
+   * Mapping.apply on 20000 rows, the value bridge must be faster than the JSON text round trip
+   */
+  @Test
+  @Tag("benchmark")
+  public void testBenchmark() throws Exception {
+    Assumptions.assumeTrue(s.jsonataJs, "JsonataJS not available");
+
+    List<Map<String, Object>> rows = rows(20000);
+    ParsedExpression filter = filter();
+    ParsedExpression rowMapping = rowMapping();
+
+    boolean valueBridge = s.valueBridge;
+    try {
+      // warm up both paths
+      s.valueBridge = false;
+      List<Map<String, Object>> expected = apply(filter, rowMapping, rows);
+      s.valueBridge = true;
+      Assertions.assertEquals(expected, apply(filter, rowMapping, rows));
+
+      s.valueBridge = false;
+      long start = System.nanoTime();
+      apply(filter, rowMapping, rows);
+      long json = System.nanoTime() - start;
+
+      s.valueBridge = true;
+      start = System.nanoTime();
+      apply(filter, rowMapping, rows);
+      long bridge = System.nanoTime() - start;
+
+      Assertions.assertTrue(bridge < json,
+          "bridge: " + bridge / 1000000 + "ms, json: " + json / 1000000 + "ms");
+    } finally {
+      s.valueBridge = valueBridge;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package org.dashjoin.expression.jsonatajs;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import org.dashjoin.util.MapUtil;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Value;
+import org.graalvm.polyglot.proxy.ProxyArray;
+import org.graalvm.polyglot.proxy.ProxyObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * tests the conversion between Java and Javascript values
+ */
+public class JSBridgeTest {
+
+  static final ObjectMapper om =
+      new ObjectMapper().configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+
+  Context cx;
+
+  JSBridge bridge;
+
+  /**
+   * create the Javascript context, skip the test if the engine is not available
+   */
+  void engine() {
+    try {
+      cx = Context.create("js");
+    } catch (Throwable e) {
+      Assumptions.assumeTrue(false, "Javascript engine not available: " + e);
+    }
+    bridge = new JSBridge(cx);
+  }
+
+  @AfterEach
+  public void after() {
+    if (cx != null)
+      cx.close();
+  }
+
+  Object eval(String function, Object data) throws Exception {
+    if (cx == null)
+      engine();
+    Value f = cx.eval("js", function);
+    return bridge.toJava(f.execute(bridge.toJS(data)));
+  }
+
+  /**
+   * JSON text round trip used when the value bridge is switched off
+   */
+  Object json(String function, Object data) throws Exception {
+    Value f = cx.eval("js", function);
+    Value parse = cx.eval("js", "JSON.parse");
+    Value res = f.execute(data == null ? null : parse.execute(om.writeValueAsString(data)));
+    Value text = cx.eval("js", "JSON.stringify").execute(res);
+    return JSBridge.isUndefined(text) ? null : om.readValue(text.asString(), Object.class);
+  }
+
+  /**
+   * the proxy conversion does not need a Javascript engine
+   */
+  @Test
+  public void testProxy() throws Exception {
+    JSBridge bridge = new JSBridge(null, null);
+    Map<String, Object> nested = MapUtil.of("a", null);
+    Map<String, Object> row = MapUtil.of("s", "x", "i", 1, "d", new BigDecimal("1.5"), "nested",
+        nested, "date", new java.util.Date(0));
+
+    ProxyObject proxy = (ProxyObject) bridge.toJS(row);
+    Assertions.assertEquals("x", proxy.getMember("s"));
+    Assertions.assertEquals(1, proxy.getMember("i"));
+    Assertions.assertEquals(1.5, proxy.getMember("d"));
+    Assertions.assertEquals("1970-01-01T00:00:00.000+00:00", proxy.getMember("date"));
+    Assertions.assertTrue(proxy.hasMember("nested"));
+    Assertions.assertFalse(proxy.hasMember("missing"));
+    Assertions.assertNull(proxy.getMember("missing"));
+
+    // nested maps are converted once, on first access
+    Object member = proxy.getMember("nested");
+    Assertions.assertSame(nested, ((JSBridge.MapProxy) member).map);
+    Assertions.assertSame(member, proxy.getMember("nested"));
+    Assertions.assertTrue(((ProxyObject) member).hasMember("a"));
+    Assertions.assertNull(((ProxyObject) member).getMember("a"));
+
+    ProxyArray keys = (ProxyArray) proxy.getMemberKeys();
+    Assertions.assertEquals(5, keys.getSize());
+    Assertions.assertEquals("s", keys.get(0));
+    Assertions.assertEquals("date", keys.get(4));
+
+    Assertions.assertThrows(UnsupportedOperationException.class,
+        () -> proxy.putMember("s", null));
+    Assertions.assertEquals("x", row.get("s"));
+  }
+
+  /**
+   * the value bridge yields the same result as the JSON text round trip
+   */
+  @Test
+  public void testJsonRoundTrip() throws Exception {
+    engine();
+    String mapping = "x => x.ID % 2 === 0 ? {id: x.ID, label: x.NAME + ' ' + x.ADDRESS.CITY,"
+        + " total: x.PRICE * 2, tags: x.TAGS, copy: x.ADDRESS, none: x.NONE, nan: 0 / 0,"
+        + " f: () => 1, undef: undefined} : undefined";
+    for (int i = 0; i < 10; i++) {
+      Map<String, Object> row = MapUtil.of("ID", i, "NAME", "name" + i, "PRICE",
+          new BigDecimal(i).multiply(new BigDecimal("0.5")), "TAGS", Arrays.asList("a", null),
+          "ADDRESS", MapUtil.of("CITY", "city" + i, "SINCE", new java.util.Date(i)), "NONE",
+          null);
+      Assertions.assertEquals(json(mapping, row), eval(mapping, row), "row " + i);
+    }
+  }
+
+  @Test
+  public void testInput() throws Exception {
+    Map<String, Object> row =
+        MapUtil.of("s", "x", "i", 1, "d", new BigDecimal("1.5"), "list", Arrays.asList(1, 2),
+            "nested", MapUtil.of("a", null), "date", new java.util.Date(0));
+
+    Assertions.assertEquals("string number number true object",
+        eval("x => [typeof x.s, typeof x.i, typeof x.d, Array.isArray(x.list), typeof x.nested]"
+            + ".join(' ')", row));
+    Assertions.assertEquals(true, eval("x => x.missing === undefined", row));
+    Assertions.assertEquals(true, eval("x => x.nested.a === null", row));
+    Assertions.assertEquals(Arrays.asList("s", "i", "d", "list", "nested", "date"),
+        eval("x => Object.keys(x)", row));
+    Assertions.assertEquals(3, eval("x => x.list[0] + x.list[1]", row));
+    Assertions.assertEquals("1970-01-01T00:00:00.000+00:00", eval("x => x.date", row));
+  }
+
+  @Test
+  public void testOutput() throws Exception {
+    Assertions.assertEquals(MapUtil.of("a", 1, "b", 1.5, "c", Arrays.asList("x", null, true)),
+        eval("x => ({a: 1, b: 1.5, c: ['x', null, true], d: undefined, f: () => 1})", null));
+    Assertions.assertNull(eval("x => undefined", null));
+    Assertions.assertNull(eval("x => NaN", null));
+    Assertions.assertEquals(3000000000L, eval("x => 3000000000", null));
+
+    // input passed through
+    Assertions.assertEquals(MapUtil.of("a", MapUtil.of("b", 1)),
+        eval("x => ({a: x})", MapUtil.of("b", 1)));
+  }
+}
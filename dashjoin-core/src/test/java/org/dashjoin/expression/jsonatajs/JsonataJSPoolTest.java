@@ -0,0 +1,54 @@
+package org.dashjoin.expression.jsonatajs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * tests the pool of JsonataJS contexts
+ */
+public class JsonataJSPoolTest {
+
+  @BeforeEach
+  public void before() {
+    Assumptions.assumeTrue(JsonataJS.isAvailable(), "JsonataJS not available");
+  }
+
+  @Test
+  public void testNested() throws Exception {
+    JsonataJS.run(outer -> {
+      JsonataJS.run(inner -> {
+        Assertions.assertSame(outer, inner);
+        return null;
+      });
+      Assertions.assertEquals(1, outer.depth);
+      return null;
+    });
+    Assertions.assertNull(JsonataJS.current.get());
+  }
+
+  @Test
+  public void testConcurrent() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(4 * JsonataJS.poolSize());
+    try {
+      List<Future<Object>> res = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        int x = i;
+        res.add(pool.submit(() -> JsonataJS.run(js -> js
+            .toJava(js.evaluate(js.jsonata("$ * 2"), js.toJS(x), js.getBindings())))));
+      }
+      for (int i = 0; i < 200; i++)
+        Assertions.assertEquals(2 * i, res.get(i).get());
+    } finally {
+      pool.shutdown();
+    }
+    Assertions.assertTrue(JsonataJS.created.get() <= JsonataJS.poolSize());
+    Assertions.assertEquals(JsonataJS.created.get(), JsonataJS.idle.size());
+  }
+}
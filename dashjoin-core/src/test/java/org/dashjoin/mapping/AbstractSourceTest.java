@@ -5,6 +5,7 @@ import static org.dashjoin.util.MapUtil.of;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -20,5 +21,56 @@ public class AbstractSourceTest {
   @Test
   public void testType() {
     Assertions.assertEquals("date", Provider.type("z", table));
+    Assertions.assertEquals("string", Provider.type("w", table));
+    Assertions.assertNull(AbstractSource.infer("w", table));
+  }
+
+  @Test
+  public void testWiden() {
+    Assertions.assertEquals("integer", AbstractSource.widen(null, "integer"));
+    Assertions.assertEquals("integer", AbstractSource.widen("integer", null));
+    Assertions.assertEquals("number", AbstractSource.widen("integer", "number"));
+    Assertions.assertEquals("string", AbstractSource.widen("integer", "string"));
+    Assertions.assertEquals("string", AbstractSource.widen("date", "boolean"));
+  }
+
+  @Test
+  public void testContext() throws Exception {
+    // preview: no consumer, producer is told to stop when the queue is full
+    AbstractSource.Context preview = new AbstractSource.Context();
+    for (int i = 0; i < 1000; i++)
+      Assertions.assertTrue(preview.put(i));
+    Assertions.assertFalse(preview.put(1000));
+
+    AbstractSource.Context context = new AbstractSource.Context();
+    context.consumer = true;
+    Thread producer = new Thread(() -> {
+      try {
+        for (int i = 0; i < 5000; i++)
+          context.put(i);
+      } catch (InterruptedException e) {
+        context.error = e;
+      } finally {
+        context.producerDone();
+      }
+    });
+    producer.start();
+
+    for (int i = 0; i < 5000; i++) {
+      Assertions.assertTrue(context.queue.size() <= 1000);
+      Assertions.assertEquals(i, context.next());
+    }
+    Assertions.assertNull(context.next());
+    producer.join();
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    AbstractSource.Context context = new AbstractSource.Context();
+    context.consumer = true;
+    for (int i = 0; i < 1000; i++)
+      context.put(i);
+    context.cancelled = true;
+    Assertions.assertThrows(CancellationException.class, () -> context.put(1000));
   }
 }
@@ -0,0 +1,26 @@
+package org.dashjoin.mapping;
+
+import static org.dashjoin.util.MapUtil.of;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.SecurityContext;
+
+/**
+ * streams rows via the context queue rather than returning them from gather
+ */
+public class StreamingProvider extends AbstractSource {
+
+  public int rows;
+
+  public int maxQueueSize;
+
+  @Override
+  public Map<String, List<Map<String, Object>>> gather(SecurityContext sc) throws Exception {
+    Context context = AbstractSource.context.get();
+    for (int i = 0; i < rows; i++) {
+      maxQueueSize = Math.max(maxQueueSize, context.queue.size());
+      context.put(of("stream", List.of(of("ID", i, "name", "row " + i))));
+    }
+    return null;
+  }
+}
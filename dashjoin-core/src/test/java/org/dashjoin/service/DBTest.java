@@ -1,6 +1,8 @@
 package org.dashjoin.service;
 
 import static com.google.common.collect.ImmutableMap.of;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -13,6 +15,7 @@ import org.dashjoin.model.Property;
 import org.dashjoin.model.Table;
 import org.dashjoin.service.Data.Choice;
 import org.dashjoin.service.Data.Origin;
+import org.dashjoin.service.Data.Page;
 import org.dashjoin.service.Data.Resource;
 import org.dashjoin.service.Data.SearchResult;
 import org.dashjoin.util.Escape;
@@ -253,6 +256,35 @@ public class DBTest {
     map("{ID=2, NAME=joe, WORKSON=1000}", x.get(0));
   }
 
+  @Test
+  public void testAllPage() throws Exception {
+    SecurityContext sc = Mockito.mock(SecurityContext.class);
+    Mockito.when(sc.isUserInRole(ArgumentMatchers.anyString())).thenReturn(true);
+    Page page = db.page(sc, "junit", toID("EMP"), null, 1, null, false, null);
+    map("{WORKSON=1000, ID=1, NAME=mike}", page.data.get(0));
+    page = db.page(sc, "junit", toID("EMP"), page.next, 1, null, false, null);
+    map("{ID=2, NAME=joe, WORKSON=1000}", page.data.get(0));
+    page = db.page(sc, "junit", toID("EMP"), page.next, 1, null, false, null);
+    Assertions.assertEquals(0, page.data.size());
+    Assertions.assertNull(page.next);
+  }
+
+  @Test
+  public void testStream() throws Exception {
+    SecurityContext sc = Mockito.mock(SecurityContext.class);
+    Mockito.when(sc.isUserInRole(ArgumentMatchers.anyString())).thenReturn(true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    db.streamAll(sc, "junit", toID("EMP"), 0, 10, null, false, null).write(out);
+    String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+    Assertions.assertEquals(2, lines.length);
+    map("{WORKSON=1000, ID=1, NAME=mike}", JSONDatabase.fromJsonString(lines[0]));
+
+    out = new ByteArrayOutputStream();
+    db.streamQuery(sc, "junit", "list", null).write(out);
+    lines = out.toString(StandardCharsets.UTF_8).split("\n");
+    Assertions.assertEquals(db.query(sc, "junit", "list", null).size(), lines.length);
+  }
+
   void map(String string, Map<String, Object> map) {
     string = string.substring(1, string.length() - 1);
     string = string.replaceAll("ID=", idRead() + "=");
@@ -357,6 +389,12 @@ public class DBTest {
   public void testList() throws Exception {
     Map<String, Map<String, Object>> res = db.list("junit", toID("EMP"), Arrays.asList(toID("1")));
     map("{WORKSON=1000, ID=1, NAME=mike}", res.get(toID("1")));
+
+    res = db.list("junit", toID("EMP"), Arrays.asList(toID("2"), toID("1"), toID("3")));
+    Assertions.assertEquals(3, res.size());
+    map("{WORKSON=1000, ID=2, NAME=joe}", res.get(toID("2")));
+    map("{WORKSON=1000, ID=1, NAME=mike}", res.get(toID("1")));
+    Assertions.assertNull(res.get(toID("3")));
   }
 
   @Test
@@ -3,6 +3,8 @@ package org.dashjoin.service;
 import static com.google.common.collect.ImmutableMap.of;
 import static com.google.common.collect.Maps.newHashMap;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import javax.inject.Inject;
 import javax.ws.rs.core.SecurityContext;
@@ -10,7 +12,9 @@ import org.apache.commons.lang3.reflect.FieldUtils;
 import org.dashjoin.mapping.AbstractSource;
 import org.dashjoin.mapping.Mapping;
 import org.dashjoin.mapping.Provider;
+import org.dashjoin.mapping.StreamingProvider;
 import org.dashjoin.model.AbstractDatabase;
+import org.dashjoin.model.QueryMeta;
 import org.dashjoin.model.Table;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -273,4 +277,147 @@ public class DDLTest {
     Assertions.assertEquals("b",
         db.all(Table.ofName("t"), null, null, null, false, null).get(1).get("name"));
   }
+
+  @Test
+  public void ztestStream() throws Exception {
+
+    StreamingProvider s = new StreamingProvider();
+    s.database = "ddl";
+    FieldUtils.writeField(s, "services", services, true);
+    s.createSchema = true;
+    s.mappings = ImmutableMap.of("stream", new Mapping());
+    s.mappings.get("stream").pk = "ID";
+    s.rows = 5000;
+
+    s.run(null);
+
+    Assertions.assertTrue(s.maxQueueSize <= 1000);
+    AbstractDatabase db = services.getConfig().getDatabase("dj/ddl");
+    List<Map<String, Object>> rows =
+        db.all(Table.ofName("stream"), null, null, null, false, null);
+    Assertions.assertEquals(5000, rows.size());
+    Assertions.assertEquals("row 4999", rows.get(4999).get("name"));
+  }
+
+  @Test
+  public void ztestWiden() throws Exception {
+
+    AbstractSource s = new AbstractSource() {
+      @Override
+      public Map<String, List<Map<String, Object>>> gather(SecurityContext sc) throws Exception {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+          Map<String, Object> row = newHashMap(of("ID", i));
+          // null / integer in the first chunk, integer / string later
+          row.put("late", i < 1500 ? null : i);
+          row.put("mixed", i < 1500 ? (Object) i : "s" + i);
+          rows.add(row);
+        }
+        return of("widen", rows);
+      }
+    };
+    s.database = "ddl";
+    FieldUtils.writeField(s, "services", services, true);
+    s.createSchema = true;
+    s.mappings = ImmutableMap.of("widen", new Mapping());
+    s.mappings.get("widen").pk = "ID";
+
+    s.run(null);
+
+    AbstractDatabase db = services.getConfig().getDatabase("dj/ddl");
+    Assertions.assertEquals("number", db.tables.get("widen").properties.get("late").type);
+    Assertions.assertEquals("string", db.tables.get("widen").properties.get("mixed").type);
+    List<Map<String, Object>> rows =
+        db.all(Table.ofName("widen"), null, null, "ID", false, null);
+    Assertions.assertEquals(2500, rows.size());
+    Assertions.assertEquals(2000, rows.get(2000).get("late"));
+    Assertions.assertEquals("s2000", rows.get(2000).get("mixed"));
+  }
+
+  AbstractSource extract(boolean arrays) throws Exception {
+    AbstractSource s = new AbstractSource() {
+      @Override
+      public Map<String, List<Map<String, Object>>> gather(SecurityContext sc) throws Exception {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+          Map<String, Object> row = newHashMap(of("ID", i));
+          // the first chunk does not contain any arrays
+          if (arrays && i >= 1200)
+            row.put("list", List.of(of("ID", "item" + i)));
+          rows.add(row);
+        }
+        return of("src", rows);
+      }
+    };
+    s.database = "ddl";
+    FieldUtils.writeField(s, "services", services, true);
+    s.createSchema = true;
+    s.mappings = ImmutableMap.of("src", new Mapping(), "item", new Mapping());
+    s.mappings.get("src").pk = "ID";
+    s.mappings.get("item").pk = "ID";
+    s.mappings.get("item").sourceTable = "src";
+    s.mappings.get("item").extractColumn = "list";
+    s.mappings.get("item").extractKey = "ID";
+    return s;
+  }
+
+  @Test
+  public void ztestExtract() throws Exception {
+    extract(true).run(null);
+
+    AbstractDatabase db = services.getConfig().getDatabase("dj/ddl");
+    List<Map<String, Object>> rows = db.all(Table.ofName("item"), null, null, "ID", false, null);
+    Assertions.assertEquals(300, rows.size());
+    Assertions.assertEquals(1200, rows.get(0).get("parent_ID"));
+
+    Exception e = Assertions.assertThrows(Exception.class, () -> extract(false).run(null));
+    Assertions.assertTrue(e.getMessage().contains("does not contain arrays"));
+  }
+
+  /**
+   * returns whether the cached result of a query reading the table is still present
+   */
+  boolean cached(String table) throws Exception {
+    SecurityContext sc = Mockito.mock(SecurityContext.class);
+    Database db = Mockito.mock(Database.class);
+    Mockito.when(db.getTablesInQuery(ArgumentMatchers.anyString())).thenReturn(List.of(table));
+    QueryMeta info = QueryMeta.ofQuery("select * from " + table);
+    info.ID = "etl-" + table;
+    info.cacheTtlMs = 60000;
+    boolean[] hit = {true};
+    QueryCache.get(sc, "ddl", db, info, null, false, () -> {
+      hit[0] = false;
+      return new ArrayList<>();
+    });
+    return hit[0];
+  }
+
+  @Test
+  public void testQueryCache() throws Exception {
+    AbstractSource s = new AbstractSource() {
+      int id;
+
+      @Override
+      public Map<String, List<Map<String, Object>>> gather(SecurityContext sc) throws Exception {
+        return of("cached", List.of(newHashMap(of("ID", id++, "name", "x"))));
+      }
+    };
+    s.database = "ddl";
+    FieldUtils.writeField(s, "services", services, true);
+    s.createSchema = true;
+    s.mappings = ImmutableMap.of("cached", new Mapping());
+    s.mappings.get("cached").pk = "ID";
+
+    // the run creates the table, this drops all results of the database
+    cached("cached");
+    cached("unrelated");
+    s.run(null);
+    Assertions.assertFalse(cached("cached"));
+    Assertions.assertFalse(cached("unrelated"));
+
+    // the schema is unchanged, only the results reading the target table are dropped
+    s.run(null);
+    Assertions.assertFalse(cached("cached"));
+    Assertions.assertTrue(cached("unrelated"));
+  }
 }
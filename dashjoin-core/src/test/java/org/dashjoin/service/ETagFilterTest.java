@@ -0,0 +1,87 @@
+package org.dashjoin.service;
+
+import static org.dashjoin.util.MapUtil.of;
+import java.lang.annotation.Annotation;
+import java.util.Arrays;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+/**
+ * tests the conditional GET handling
+ */
+public class ETagFilterTest {
+
+  MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+
+  ContainerResponseContext response(Object entity) {
+    ContainerResponseContext res = Mockito.mock(ContainerResponseContext.class);
+    Mockito.when(res.getStatus()).thenReturn(200);
+    Mockito.when(res.hasEntity()).thenReturn(true);
+    Mockito.when(res.getEntity()).thenReturn(entity);
+    Mockito.when(res.getMediaType()).thenReturn(MediaType.APPLICATION_JSON_TYPE);
+    Mockito.when(res.getHeaders()).thenReturn(headers);
+    return res;
+  }
+
+  ContainerRequestContext request(String method, String ifNoneMatch) {
+    ContainerRequestContext req = Mockito.mock(ContainerRequestContext.class);
+    Mockito.when(req.getMethod()).thenReturn(method);
+    Mockito.when(req.getHeaderString(HttpHeaders.IF_NONE_MATCH)).thenReturn(ifNoneMatch);
+    return req;
+  }
+
+  @Test
+  public void testNotModified() throws Exception {
+    ETagFilter filter = new ETagFilter();
+    Object entity = Arrays.asList(of("ID", 1, "NAME", "mike"));
+
+    ContainerResponseContext res = response(entity);
+    filter.filter(request("GET", null), res);
+    EntityTag tag = (EntityTag) headers.getFirst(HttpHeaders.ETAG);
+    Assertions.assertNotNull(tag);
+    Assertions.assertFalse(tag.isWeak());
+    Mockito.verify(res).setEntity(ArgumentMatchers.eq("[{\"ID\":1,\"NAME\":\"mike\"}]".getBytes()),
+        ArgumentMatchers.<Annotation[]>any(), ArgumentMatchers.eq(MediaType.APPLICATION_JSON_TYPE));
+
+    // same content yields the same tag
+    res = response(Arrays.asList(of("ID", 1, "NAME", "mike")));
+    filter.filter(request("GET", "\"other\", W/\"" + tag.getValue() + "\""), res);
+    Mockito.verify(res).setStatus(304);
+    Mockito.verify(res).setEntity(null);
+
+    // changed content
+    res = response(Arrays.asList(of("ID", 1, "NAME", "joe")));
+    filter.filter(request("GET", "\"" + tag.getValue() + "\""), res);
+    Mockito.verify(res, Mockito.never()).setStatus(304);
+    Assertions.assertNotEquals(tag, headers.getFirst(HttpHeaders.ETAG));
+  }
+
+  @Test
+  public void testIgnored() throws Exception {
+    ETagFilter filter = new ETagFilter();
+    ContainerResponseContext res = response(of("ID", 1));
+    filter.filter(request("POST", "*"), res);
+    Assertions.assertNull(headers.getFirst(HttpHeaders.ETAG));
+    Mockito.verify(res, Mockito.never()).setStatus(304);
+  }
+
+  @Test
+  public void testMatches() {
+    EntityTag tag = new EntityTag("x");
+    Assertions.assertTrue(ETagFilter.matches("\"x\"", tag));
+    Assertions.assertTrue(ETagFilter.matches("W/\"x\"", tag));
+    Assertions.assertTrue(ETagFilter.matches("\"a\" , \"x\"", tag));
+    Assertions.assertTrue(ETagFilter.matches("*", tag));
+    Assertions.assertFalse(ETagFilter.matches("\"y\"", tag));
+    Assertions.assertFalse(ETagFilter.matches(null, tag));
+  }
+}
@@ -0,0 +1,78 @@
+package org.dashjoin.service;
+
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import io.quarkus.test.junit.QuarkusTest;
+
+@QuarkusTest
+public class InfoTest {
+
+  @Inject
+  Services services;
+
+  @Inject
+  Info info;
+
+  SecurityContext sc(boolean admin) {
+    SecurityContext sc = Mockito.mock(SecurityContext.class);
+    Mockito.when(sc.getUserPrincipal()).thenReturn(Mockito.mock(Principal.class));
+    Mockito.when(sc.isUserInRole(ArgumentMatchers.anyString())).thenReturn(admin);
+    return sc;
+  }
+
+  @SuppressWarnings("unchecked")
+  Map<String, Object> status(Response res, String id) {
+    Map<String, Object> entity = (Map<String, Object>) res.getEntity();
+    for (Map<String, Object> db : (List<Map<String, Object>>) entity.get("databases"))
+      if (db.get("ID").equals(id))
+        return db;
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testReady() {
+    services.getConfig().metadataCollection();
+    Response res = info.ready(Mockito.mock(SecurityContext.class));
+    Assertions.assertEquals(200, res.getStatus());
+    Assertions.assertEquals(true, ((Map<String, Object>) res.getEntity()).get("ready"));
+    Assertions.assertEquals("OK", status(res, "dj/junit").get("status"));
+    Assertions.assertTrue((Integer) status(res, "dj/junit").get("tables") > 0);
+  }
+
+  @Test
+  public void testRedact() {
+    PojoDatabase config = (PojoDatabase) services.getConfig();
+    config.progress("dj/broken", "Error: secret", System.currentTimeMillis(), null);
+    try {
+      Assertions.assertEquals("Error",
+          status(info.ready(Mockito.mock(SecurityContext.class)), "dj/broken").get("status"));
+      Assertions.assertEquals("Error", status(info.ready(sc(false)), "dj/broken").get("status"));
+      Assertions.assertEquals("Error: secret",
+          status(info.ready(sc(true)), "dj/broken").get("status"));
+    } finally {
+      config.progress().remove("dj/broken");
+    }
+  }
+
+  @Test
+  public void testConnecting() {
+    PojoDatabase config = (PojoDatabase) services.getConfig();
+    config.progress("dj/slow", "connecting...", System.currentTimeMillis(), null);
+    try {
+      Response res = info.ready(Mockito.mock(SecurityContext.class));
+      Assertions.assertEquals(503, res.getStatus());
+      Assertions.assertEquals("connecting...", status(res, "dj/slow").get("status"));
+    } finally {
+      config.progress().remove("dj/slow");
+    }
+  }
+}
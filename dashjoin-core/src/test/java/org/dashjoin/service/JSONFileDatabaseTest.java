@@ -0,0 +1,138 @@
+package org.dashjoin.service;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import org.dashjoin.model.QueryMeta;
+import org.dashjoin.model.Table;
+import org.dashjoin.util.Home;
+import org.dashjoin.util.MapUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * tests the parsed snapshot of the file DB
+ */
+public class JSONFileDatabaseTest {
+
+  JSONFileDatabase db;
+
+  File dir;
+
+  @BeforeEach
+  public void before() {
+    db = new JSONFileDatabase();
+    db.home = new Home(Optional.empty(), Optional.empty());
+    dir = db.home.getFile("model/snapshot-test");
+  }
+
+  @AfterEach
+  public void after() throws Exception {
+    db.stopWatching();
+    File[] files = dir.listFiles();
+    if (files != null)
+      for (File f : files)
+        f.delete();
+    dir.delete();
+  }
+
+  QueryMeta all() {
+    QueryMeta info = new QueryMeta();
+    info.query = "snapshot-test";
+    return info;
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    Table s = Table.ofName("snapshot-test");
+    Assertions.assertEquals(0, db.queryMap(all(), null).size());
+
+    db.create(s, MapUtil.of("ID", "1", "name", "one"));
+    Assertions.assertEquals("one", db.read(s, MapUtil.of("ID", "1")).get("name"));
+    Assertions.assertEquals(1, db.queryMap(all(), null).size());
+
+    // callers get a copy
+    db.read(s, MapUtil.of("ID", "1")).put("name", "changed");
+    db.queryMap(all(), null).get("1").put("name", "changed");
+    Assertions.assertEquals("one", db.read(s, MapUtil.of("ID", "1")).get("name"));
+
+    long version = db.version();
+    db.update(s, MapUtil.of("ID", "1"), MapUtil.of("name", "uno"));
+    Assertions.assertTrue(db.version() > version);
+    Assertions.assertEquals("uno", db.read(s, MapUtil.of("ID", "1")).get("name"));
+
+    Assertions.assertTrue(db.delete(s, MapUtil.of("ID", "1")));
+    Assertions.assertNull(db.read(s, MapUtil.of("ID", "1")));
+    Assertions.assertEquals(0, db.queryMap(all(), null).size());
+  }
+
+  @Test
+  public void testExternalEdit() throws Exception {
+    Table s = Table.ofName("snapshot-test");
+    db.create(s, MapUtil.of("ID", "1", "name", "one"));
+    Assertions.assertEquals("one", db.read(s, MapUtil.of("ID", "1")).get("name"));
+
+    // edit the file in place, this does not change the folder timestamp
+    Files.writeString(new File(dir, "1.json").toPath(), "{\"ID\": \"1\", \"name\": \"edited\"}");
+    Map<String, Object> res = null;
+    for (int i = 0; i < 100; i++) {
+      res = db.read(s, MapUtil.of("ID", "1"));
+      if ("edited".equals(res.get("name")))
+        break;
+      Thread.sleep(100);
+    }
+    Assertions.assertEquals("edited", res.get("name"));
+
+    // add a file
+    Files.writeString(new File(dir, "2.json").toPath(), "{\"ID\": \"2\"}");
+    for (int i = 0; i < 100; i++) {
+      if (db.queryMap(all(), null).size() == 2)
+        break;
+      Thread.sleep(100);
+    }
+    Assertions.assertEquals(2, db.queryMap(all(), null).size());
+  }
+
+  @Test
+  public void testReadOne() throws Exception {
+    Table s = Table.ofName("snapshot-test");
+    dir.mkdirs();
+    Files.writeString(new File(dir, "1.json").toPath(), "{\"ID\": \"1\"}");
+    Files.writeString(new File(dir, "2.json").toPath(), "{\"ID\": \"2\"}");
+
+    // a single record read does not parse the whole folder
+    Assertions.assertEquals("1", db.read(s, MapUtil.of("ID", "1")).get("ID"));
+    Assertions.assertEquals(1, db.parsed.size());
+    Assertions.assertTrue(db.snapshots.isEmpty());
+  }
+
+  @Test
+  public void testUnwatched() throws Exception {
+    db = new JSONFileDatabase() {
+      @Override
+      synchronized boolean watch(Path dir) {
+        return false;
+      }
+    };
+    db.home = new Home(Optional.empty(), Optional.empty());
+    Table s = Table.ofName("snapshot-test");
+    dir.mkdirs();
+    File one = new File(dir, "1.json");
+    File two = new File(dir, "2.json");
+    Files.writeString(one.toPath(), "{\"ID\": \"1\", \"name\": \"one\"}");
+    Files.writeString(two.toPath(), "{\"ID\": \"2\"}");
+    Assertions.assertEquals(2, db.queryMap(all(), null).size());
+    Object parsed = db.parsed.get(two).value;
+
+    // only the edited file is parsed again
+    Files.writeString(one.toPath(), "{\"ID\": \"1\", \"name\": \"edited\"}");
+    Assertions.assertEquals("edited", db.queryMap(all(), null).get("1").get("name"));
+    Assertions.assertEquals("edited", db.read(s, MapUtil.of("ID", "1")).get("name"));
+    Assertions.assertSame(parsed, db.parsed.get(two).value);
+    Assertions.assertTrue(db.snapshots.isEmpty());
+  }
+}
@@ -53,6 +53,25 @@ public class MetadataTest {
     }
   }
 
+  @Test
+  public void testBulk() throws Exception {
+    String url = "jdbc:h2:mem:test";
+    try (Connection con = DriverManager.getConnection(url)) {
+      Metadata single = new Metadata();
+      single.readTables(con, url);
+      single.readDetails(con, url, false);
+
+      Metadata bulk = new Metadata();
+      bulk.readTables(con, url);
+      Assertions.assertTrue(bulk.readKeys(con, url));
+      Assertions.assertTrue(bulk.readColumns(con.getMetaData(), null));
+
+      Assertions.assertTrue(single.tables.size() > 1);
+      Assertions.assertEquals(single.getTables("dj/junit"),
+          new Metadata(con, url).getTables("dj/junit"));
+    }
+  }
+
   @Test
   public void testMultipleFksToSameTable() {
     MdTable t = new MdTable("t");
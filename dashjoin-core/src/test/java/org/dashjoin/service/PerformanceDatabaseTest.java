@@ -0,0 +1,98 @@
+package org.dashjoin.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.dashjoin.service.PerformanceDatabase.Histogram;
+import org.dashjoin.service.PerformanceDatabase.QueryPerformance;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * tests the query performance recorder
+ */
+public class PerformanceDatabaseTest {
+
+  @Test
+  public void testBuckets() {
+    for (long v : new long[] {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456, 1L << 35})
+      Assertions.assertTrue(Histogram.upper(Histogram.index(v)) >= v);
+    for (long v : new long[] {16, 100, 1000, 123456, 1L << 35})
+      Assertions.assertTrue(Histogram.upper(Histogram.index(v)) <= v * 1.0625);
+    Assertions.assertEquals(Histogram.index((1L << 37) - 1), Histogram.index(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testPercentiles() {
+    Histogram h = new Histogram();
+    for (int i = 1; i <= 1000; i++)
+      h.record(i * 1000);
+    Assertions.assertEquals(500, h.percentile(0.5), 500 * 0.0625);
+    Assertions.assertEquals(950, h.percentile(0.95), 950 * 0.0625);
+    Assertions.assertEquals(990, h.percentile(0.99), 990 * 0.0625);
+    Assertions.assertEquals(1000, h.percentile(1), 0);
+    Assertions.assertEquals(0, new Histogram().percentile(0.5));
+  }
+
+  @Test
+  public void testRecord() throws Exception {
+    QueryPerformance q = new QueryPerformance("select 1");
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread =
+          new Thread(() -> {
+            for (int i = 0; i < 1000; i++)
+              q.add("query", 2000000, 3, 10, null, i == 0 ? "error" : null);
+          });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads)
+      thread.join();
+
+    Map<String, Object> row = q.toMap();
+    Assertions.assertEquals("query", row.get("type"));
+    Assertions.assertEquals(4000L, row.get("count"));
+    Assertions.assertEquals(4L, row.get("errorCount"));
+    Assertions.assertEquals(12000L, row.get("rows"));
+    Assertions.assertEquals(8000L, row.get("totalTimeMs"));
+    Assertions.assertEquals(2L, row.get("averageTimeMs"));
+    Assertions.assertEquals(2.0, (double) row.get("p99Ms"), 2 * 0.0625);
+    Assertions.assertEquals(2.0, row.get("maxMs"));
+    Assertions.assertEquals(10, row.get("lastLimit"));
+
+    // the first window is not complete yet
+    Assertions.assertNull(row.get("windowStart"));
+    Assertions.assertEquals(0L, row.get("windowCount"));
+    q.window.set(new PerformanceDatabase.Window(
+        q.window.get().start - PerformanceDatabase.WINDOW_MS));
+    q.window.get().histogram.record(5000);
+    row = q.toMap();
+    Assertions.assertEquals(1L, row.get("windowCount"));
+    Assertions.assertEquals(5.0, row.get("windowMaxMs"));
+  }
+
+  @Test
+  public void testEvict() {
+    synchronized (PerformanceDatabase.class) {
+      PerformanceDatabase.queries.clear();
+      PerformanceDatabase.index.clear();
+    }
+    for (int i = 0; i < PerformanceDatabase.CAPACITY; i++)
+      PerformanceDatabase.add("q" + i, "query", (i + 1) * 1000000L, 0, null, null, null);
+
+    // q0 grows after it was indexed
+    PerformanceDatabase.add("q0", "query", 10000000000L, 0, null, null, null);
+
+    PerformanceDatabase.add("new", "query", 1000000, 0, null, null, null);
+    Assertions.assertEquals(PerformanceDatabase.CAPACITY, PerformanceDatabase.queries.size());
+    Assertions.assertTrue(PerformanceDatabase.queries.containsKey("q0"));
+    Assertions.assertFalse(PerformanceDatabase.queries.containsKey("q1"));
+    Assertions.assertTrue(PerformanceDatabase.queries.containsKey("new"));
+
+    // new has the smallest total now
+    PerformanceDatabase.add("new2", "query", 1000000, 0, null, null, null);
+    Assertions.assertFalse(PerformanceDatabase.queries.containsKey("new"));
+    Assertions.assertTrue(PerformanceDatabase.queries.containsKey("q2"));
+  }
+}
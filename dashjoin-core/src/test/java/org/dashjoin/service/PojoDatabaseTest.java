@@ -2,8 +2,12 @@ package org.dashjoin.service;
 
 import static com.google.common.collect.ImmutableMap.of;
 import static com.google.common.collect.Maps.newHashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
 import javax.ws.rs.core.SecurityContext;
 import org.dashjoin.model.AbstractDatabase;
@@ -121,6 +125,12 @@ public class PojoDatabaseTest {
     Map<String, Property> meta = config.queryMeta(qi, null);
     Assertions.assertEquals((Integer) 0, meta.get("ID").pkpos);
 
+    // pools are opened by the metadata collection of the tenant config
+    qi.query = "dj-connection-pools";
+    res = ((PojoDatabase) services.getConfig()).query(qi, null);
+    Assertions.assertEquals("dj/junit", res.get(0).get("ID"));
+    Assertions.assertEquals(0, res.get(0).get("active"));
+
     qi.query = "Table";
     res = config.query(qi, null);
     Assertions.assertEquals("dj/junit/T", res.get(0).get("ID"));
@@ -148,6 +158,11 @@ public class PojoDatabaseTest {
     QueryMeta meta = config.getQueryMeta("dj-page-urls");
     Assertions.assertEquals("authenticated", meta.roles.get(0));
     Assertions.assertEquals("dj-page-urls", meta.query);
+
+    // operational queries have a catalog entry restricting them to admin
+    meta = config.getQueryMeta("dj-connection-pools");
+    Assertions.assertEquals(Arrays.asList("admin"), meta.roles);
+    Assertions.assertEquals("dj-connection-pools", meta.query);
   }
 
   @Test
@@ -260,6 +275,43 @@ public class PojoDatabaseTest {
     Assertions.assertEquals("dj/junit/T", keys.get(0).value);
   }
 
+  @Test
+  public void testPojoCache() throws Exception {
+    PojoDatabase config = services.pojoDatabase();
+
+    // hot lookups are served from the cache, callers get their own tables map
+    AbstractDatabase db = config.getDatabase("dj/junit");
+    Assertions.assertSame(db.tables.get("T"), config.getDatabase("dj/junit").tables.get("T"));
+    db.tables.remove("T");
+    Assertions.assertNotNull(config.getDatabase("dj/junit").tables.get("T"));
+    Assertions.assertSame(config.getQueryMeta("list"), config.getQueryMeta("list"));
+
+    // the shared tables are read only
+    Table shared = config.getDatabase("dj/junit").tables.get("T");
+    Assertions.assertThrows(UnsupportedOperationException.class,
+        () -> shared.properties.remove("ID"));
+    Table all = config.getDatabases().stream().filter(d -> "dj/junit".equals(d.ID)).findFirst()
+        .get().tables.get("T");
+    Assertions.assertThrows(UnsupportedOperationException.class,
+        () -> all.properties.put("x", new Property()));
+    Assertions.assertThrows(UnsupportedOperationException.class,
+        () -> config.getQueryMeta("list").roles.add("x"));
+
+    // functions carry per call state and must not be shared
+    Assertions.assertNotSame(config.getFunction("echo"), config.getFunction("echo"));
+
+    // writes bust the cache
+    Table table = new Table();
+    table.name = "Table";
+    config.update(table, newHashMap(of("ID", "dj/junit/T")), of("dj-label", "cached"));
+    AbstractDatabase updated = config.getDatabase("dj/junit");
+    Assertions.assertNotSame(db, updated);
+    Assertions.assertEquals("cached", updated.tables.get("T").djLabel);
+
+    config.update(table, newHashMap(of("ID", "dj/junit/T")), MapUtil.of("dj-label", null));
+    Assertions.assertNull(config.getDatabase("dj/junit").tables.get("T").djLabel);
+  }
+
   @Test
   public void testCRUD() throws Exception {
     PojoDatabase config = services.pojoDatabase();
@@ -269,4 +321,114 @@ public class PojoDatabaseTest {
         of("instanceLayout", of("widget", "test")));
     config.update(table, newHashMap(of("ID", "dj/junit/T")), MapUtil.of("instanceLayout", null));
   }
+
+  @Test
+  public void testParallelCollection() throws Exception {
+    PojoDatabase config = services.pojoDatabase();
+    CountDownLatch connected = new CountDownLatch(1);
+    AbstractDatabase slow = new TestDatabase() {
+      @Override
+      public Map<String, Object> connectAndCollectMetadata() throws Exception {
+        connected.await();
+        return of("dj/slow/T", newHashMap(of("ID", "dj/slow/T", "name", "T")));
+      }
+    };
+    slow.ID = "dj/slow";
+    Map<String, Object> database = config.register(slow);
+    Assertions.assertNull(config.register(slow));
+    Future<?> task = PojoDatabase.collector().submit(() -> config.collect(slow, database));
+
+    // the placeholder is published while the database is connecting
+    long timeout = PojoDatabase.metadataTimeoutMs();
+    PojoDatabase.metadataTimeoutMs = 10;
+    try {
+      config.awaitMetadataCollection(of("dj/slow", task));
+    } finally {
+      PojoDatabase.metadataTimeoutMs = timeout;
+    }
+    Assertions.assertEquals("connecting...", database.get("status"));
+    Assertions.assertEquals(false, config.getProgress().get(0).get("done"));
+
+    connected.countDown();
+    task.get();
+    Assertions.assertEquals("OK", database.get("status"));
+    Map<String, Object> progress = config.getProgress().get(0);
+    Assertions.assertEquals("dj/slow", progress.get("ID"));
+    Assertions.assertEquals(true, progress.get("done"));
+    Assertions.assertEquals(1, progress.get("tables"));
+  }
+
+  @Test
+  public void testCollectionTimeout() throws Exception {
+    PojoDatabase config = services.pojoDatabase();
+    CountDownLatch interrupted = new CountDownLatch(1);
+    AbstractDatabase hanging = new TestDatabase() {
+      @Override
+      public Map<String, Object> connectAndCollectMetadata() throws Exception {
+        try {
+          new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+          throw e;
+        }
+        return null;
+      }
+    };
+    hanging.ID = "dj/hanging";
+    Map<String, Object> database = config.register(hanging);
+    long start = System.currentTimeMillis();
+    Future<?> task = PojoDatabase.collector().submit(() -> config.collect(hanging, database));
+    try {
+      // the watchdog cancels the task and marks the database as done
+      config.timeout(hanging, database, task, start);
+      Assertions.assertTrue(task.isCancelled());
+      Assertions.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+      Assertions.assertEquals(PojoDatabase.TIMEOUT, database.get("status"));
+      Map<String, Object> progress = config.progress().get("dj/hanging");
+      Assertions.assertEquals(PojoDatabase.TIMEOUT, progress.get("status"));
+      Assertions.assertEquals(true, progress.get("done"));
+
+      // a finished task is left alone
+      config.timeout(hanging, database, task, start);
+      Assertions.assertEquals(PojoDatabase.TIMEOUT,
+          config.progress().get("dj/hanging").get("status"));
+    } finally {
+      config.progress().remove("dj/hanging");
+      config.removeCache("dj/hanging");
+    }
+  }
+
+  int searchConfig(SecurityContext sc, String search) throws Exception {
+    int res = 0;
+    for (Data.SearchResult r : data.search(sc, search, null))
+      if ("config".equals(r.id.database))
+        res++;
+    return res;
+  }
+
+  @Test
+  public void testSearchIndex() throws Exception {
+    SecurityContext sc = Mockito.mock(SecurityContext.class);
+    Mockito.when(sc.isUserInRole(ArgumentMatchers.anyString())).thenReturn(true);
+
+    // the first search crawls the config DB in the background
+    searchConfig(sc, "search-index-test");
+    AbstractDatabase config = services.getConfig().getDatabase("dj/config");
+    for (int i = 0; i < 300; i++)
+      if (SearchIndex.of(config) != null && SearchIndex.of(config).isReady())
+        break;
+      else
+        Thread.sleep(100);
+    Assertions.assertTrue(SearchIndex.of(config).isReady());
+
+    // CRUD operations update the index the search uses, even though they write the config DB
+    data.create(sc, "config", "dj-role", newHashMap(of("ID", "search-index-test")));
+    try {
+      Assertions.assertEquals(1, searchConfig(sc, "search-index-test"));
+    } finally {
+      data.delete(sc, "config", "dj-role", "search-index-test");
+    }
+    Assertions.assertEquals(0, searchConfig(sc, "search-index-test"));
+    Assertions.assertTrue(SearchIndex.of(config).isReady());
+  }
 }
@@ -0,0 +1,136 @@
+package org.dashjoin.service;
+
+import static org.dashjoin.util.MapUtil.of;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.ws.rs.core.SecurityContext;
+import org.dashjoin.model.QueryMeta;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+/**
+ * tests the catalog query result cache
+ */
+public class QueryCacheTest {
+
+  AtomicInteger runs = new AtomicInteger();
+
+  SecurityContext sc(boolean user) {
+    SecurityContext sc = Mockito.mock(SecurityContext.class);
+    Mockito.when(sc.isUserInRole(ArgumentMatchers.anyString())).thenReturn(false);
+    Mockito.when(sc.isUserInRole("user")).thenReturn(user);
+    return sc;
+  }
+
+  Database db(String... tables) throws Exception {
+    Database db = Mockito.mock(Database.class);
+    Mockito.when(db.getTablesInQuery(ArgumentMatchers.anyString()))
+        .thenReturn(Arrays.asList(tables));
+    return db;
+  }
+
+  QueryMeta info(String id, Integer ttl) {
+    QueryMeta info = QueryMeta.ofQuery("select * from EMP");
+    info.ID = id;
+    info.roles = Arrays.asList("user");
+    info.cacheTtlMs = ttl;
+    return info;
+  }
+
+  List<Map<String, Object>> get(SecurityContext sc, Database db, QueryMeta info,
+      Map<String, Object> arguments) throws Exception {
+    return QueryCache.get(sc, "cachetest", db, info, arguments, false, () -> {
+      runs.incrementAndGet();
+      return Arrays.asList(of("ID", runs.get()));
+    });
+  }
+
+  @Test
+  public void testHit() throws Exception {
+    Database db = db("EMP");
+    QueryMeta info = info("hit", 60000);
+    Assertions.assertEquals(get(sc(true), db, info, of("x", 1)),
+        get(sc(true), db, info, of("x", 1)));
+    Assertions.assertEquals(1, runs.get());
+
+    // arguments and roles are part of the key
+    get(sc(true), db, info, of("x", 2));
+    Assertions.assertEquals(2, runs.get());
+    get(sc(false), db, info, of("x", 1));
+    Assertions.assertEquals(3, runs.get());
+
+    PerformanceDatabase.QueryPerformance perf =
+        PerformanceDatabase.queries.get("cache: cachetest/hit");
+    Assertions.assertEquals(1, perf.cacheHits.sum());
+    Assertions.assertEquals(3, perf.cacheMisses.sum());
+    Assertions.assertEquals(0.25, perf.getCacheHitRatio());
+  }
+
+  @Test
+  public void testCopy() throws Exception {
+    Database db = db("EMP");
+    QueryMeta info = info("copy", 60000);
+
+    // modifying the result of a miss or a hit does not change the cached rows
+    get(sc(true), db, info, null).get(0).put("ID", "changed");
+    get(sc(true), db, info, null).get(0).put("ID", "changed");
+    Assertions.assertEquals(1, get(sc(true), db, info, null).get(0).get("ID"));
+    Assertions.assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    Database db = db("PUBLIC.\"EMP\"");
+    QueryMeta info = info("invalidate", 60000);
+    get(sc(true), db, info, null);
+    QueryCache.invalidate("cachetest", "PRJ");
+    QueryCache.invalidate("other", "EMP");
+    get(sc(true), db, info, null);
+    Assertions.assertEquals(1, runs.get());
+
+    QueryCache.invalidate("cachetest", "EMP");
+    get(sc(true), db, info, null);
+    Assertions.assertEquals(2, runs.get());
+
+    QueryCache.invalidate("cachetest");
+    get(sc(true), db, info, null);
+    Assertions.assertEquals(3, runs.get());
+  }
+
+  @Test
+  public void testNotCached() throws Exception {
+    // caching not enabled
+    get(sc(true), db("EMP"), info("off", null), null);
+    get(sc(true), db("EMP"), info("off", null), null);
+    Assertions.assertEquals(2, runs.get());
+
+    // write query
+    QueryMeta write = info("write", 60000);
+    write.type = "write";
+    get(sc(true), db("EMP"), write, null);
+    get(sc(true), db("EMP"), write, null);
+    Assertions.assertEquals(4, runs.get());
+
+    // tables unknown
+    Database db = Mockito.mock(Database.class);
+    Mockito.when(db.getTablesInQuery(ArgumentMatchers.anyString()))
+        .thenThrow(new RuntimeException());
+    get(sc(true), db, info("unknown", 60000), null);
+    get(sc(true), db, info("unknown", 60000), null);
+    Assertions.assertEquals(6, runs.get());
+  }
+
+  @Test
+  public void testExpire() throws Exception {
+    Database db = db("EMP");
+    QueryMeta info = info("expire", 1);
+    get(sc(true), db, info, null);
+    Thread.sleep(10);
+    get(sc(true), db, info, null);
+    Assertions.assertEquals(2, runs.get());
+  }
+}
@@ -0,0 +1,72 @@
+package org.dashjoin.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import javax.ws.rs.core.SecurityContext;
+import org.dashjoin.model.AbstractDatabase;
+import org.dashjoin.model.Property;
+import org.dashjoin.model.Table;
+import org.dashjoin.service.Data.Origin;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * tests the reverse foreign key index used by Data.incoming
+ */
+public class ReferenceIndexTest {
+
+  static Table table(String db, String name, String fk, String ref) {
+    Table s = Table.ofName(name);
+    s.ID = db + "/" + name;
+    s.properties = new LinkedHashMap<>();
+    Property id = new Property();
+    id.name = "ID";
+    id.ID = s.ID + "/ID";
+    id.pkpos = 0;
+    s.properties.put(id.name, id);
+    if (fk != null) {
+      Property p = new Property();
+      p.name = fk;
+      p.ID = s.ID + "/" + fk;
+      p.ref = ref;
+      s.properties.put(p.name, p);
+    }
+    return s;
+  }
+
+  @Test
+  public void testIndex() {
+    AbstractDatabase db1 = new TestDatabase();
+    db1.ID = "dj/db1";
+    db1.tables.put("PRJ", table(db1.ID, "PRJ", null, null));
+    db1.tables.put("EMP", table(db1.ID, "EMP", "WORKSON", "dj/db1/PRJ/ID"));
+
+    AbstractDatabase db2 = new TestDatabase();
+    db2.ID = "dj/db2";
+    db2.tables.put("TASK", table(db2.ID, "TASK", "PROJECT", "dj/db1/PRJ/ID"));
+
+    AbstractDatabase db3 = new TestDatabase() {
+      @Override
+      public List<Origin> incoming(SecurityContext sc, String database, String table,
+          String objectId, Integer offset, Integer limit, long start, Integer timeout, String pk)
+          throws Exception {
+        return new ArrayList<>();
+      }
+    };
+    db3.tables.put("X", table("dj/db3", "X", "PRJ", "dj/db1/PRJ/ID"));
+
+    ReferenceIndex index = new ReferenceIndex(Arrays.asList(db1, db2, db3));
+    List<ReferenceIndex.Reference> refs = index.get("dj/db1/PRJ/ID");
+    Assertions.assertEquals(2, refs.size());
+    Assertions.assertEquals("WORKSON", refs.get(0).property.name);
+    Assertions.assertSame(db1, refs.get(0).db);
+    Assertions.assertEquals("TASK", refs.get(1).table.name);
+    Assertions.assertSame(db2, refs.get(1).db);
+    Assertions.assertEquals(0, index.get("dj/db1/EMP/ID").size());
+
+    // databases with their own incoming implementation are always asked
+    Assertions.assertEquals(Arrays.asList(db3), index.custom());
+  }
+}
@@ -1,8 +1,33 @@
 package org.dashjoin.service;
 
+import static org.dashjoin.util.MapUtil.of;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import javax.inject.Inject;
+import javax.ws.rs.core.SecurityContext;
+import org.dashjoin.model.Property;
+import org.dashjoin.model.QueryMeta;
+import org.dashjoin.model.Table;
+import org.dashjoin.service.Data.SearchResult;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.quarkus.test.junit.QuarkusTest;
 
 /**
@@ -30,4 +55,416 @@ public class SQLDatabaseTest extends AbstractDatabaseTest {
     services.getConfig().metadataCollection();
     return services.getConfig().getDatabase("dj/junit");
   }
+
+  @Test
+  public void testUpsert() throws Exception {
+    SQLDatabase db = (SQLDatabase) db();
+    Table s = db.tables.get("EMP");
+    List<Map<String, Object>> batch = Arrays.asList(of("ID", 1, "NAME", "mike"),
+        of("ID", 10, "NAME", "new", "WORKSON", 1000), of("ID", 11));
+    Assertions.assertTrue(db.upsert(s, batch));
+
+    // WORKSON is not in the object and remains unchanged
+    Assertions.assertEquals(1000, db.read(s, Collections.singletonMap("ID", 1)).get("WORKSON"));
+    Assertions.assertEquals("new", db.read(s, Collections.singletonMap("ID", 10)).get("NAME"));
+    Assertions.assertNotNull(db.read(s, Collections.singletonMap("ID", 11)));
+
+    db.merge(s, Arrays.asList(of("ID", 10, "NAME", "updated")));
+    Assertions.assertEquals("updated", db.read(s, Collections.singletonMap("ID", 10)).get("NAME"));
+
+    db.delete(s, Collections.singletonMap("ID", 10));
+    db.delete(s, Collections.singletonMap("ID", 11));
+  }
+
+  @Test
+  public void testUpsertRollback() throws Exception {
+    SQLDatabase real = (SQLDatabase) db();
+    SQLDatabase db = Mockito.spy(real);
+    Table s = real.tables.get("EMP");
+    Object name = real.read(s, Collections.singletonMap("ID", 1)).get("NAME");
+    Mockito.doAnswer(i -> real.getConnection(i.getArgument(0))).when(db)
+        .getConnection(ArgumentMatchers.anyString());
+    Mockito.doThrow(new IllegalStateException()).when(db).setObject(ArgumentMatchers.any(),
+        ArgumentMatchers.anyInt(), ArgumentMatchers.eq("boom"));
+
+    // the first group is updated before the second one fails
+    List<Map<String, Object>> batch =
+        Arrays.asList(of("ID", 1, "NAME", "changed"), of("ID", 1, "WORKSON", "boom"));
+    Assertions.assertThrows(IllegalStateException.class, () -> db.upsert(s, batch));
+    Assertions.assertEquals(name, real.read(s, Collections.singletonMap("ID", 1)).get("NAME"));
+  }
+
+  @Test
+  public void testUpsertDialects() throws Exception {
+    Table t = Table.ofName("T");
+    t.properties = new java.util.LinkedHashMap<>();
+    for (String col : Arrays.asList("ID", "A", "B")) {
+      Property p = new Property();
+      p.name = col;
+      t.properties.put(col, p);
+    }
+    t.properties.get("ID").pkpos = 0;
+    List<String> keys = Arrays.asList("ID");
+    List<String> update = Arrays.asList("A");
+
+    SQLDatabase db = new SQLDatabase();
+    db.url = "jdbc:postgresql://localhost/db";
+    Assertions.assertEquals("insert into \"T\" (\"ID\",\"A\",\"B\") values (?,?,?)"
+        + " on conflict (\"ID\") do update set \"A\"=excluded.\"A\"",
+        db.upsert(t, keys, update));
+    Assertions.assertTrue(db.upsert(t, keys, Arrays.asList()).endsWith("do nothing"));
+
+    db.url = "jdbc:mariadb://localhost/db";
+    Assertions.assertTrue(db.upsert(t, keys, update)
+        .endsWith("on duplicate key update \"A\"=values(\"A\")"));
+
+    db.url = "jdbc:oracle:thin:@localhost:1521/ORCL";
+    Assertions.assertEquals("merge into \"T\" t using (select ? \"ID\",? \"A\",? \"B\" from dual) s"
+        + " on (t.\"ID\"=s.\"ID\") when matched then update set \"A\"=s.\"A\""
+        + " when not matched then insert (\"ID\",\"A\",\"B\") values (s.\"ID\",s.\"A\",s.\"B\")",
+        db.upsert(t, keys, update));
+
+    db.url = "jdbc:sqlserver://localhost:1433;SCHEMA=dbo";
+    Assertions.assertTrue(db.upsert(t, keys, update)
+        .startsWith("merge into dbo.\"T\" t using (values (?,?,?)) s (\"ID\",\"A\",\"B\")"));
+    Assertions.assertTrue(db.upsert(t, keys, update).endsWith(";"));
+
+    db.url = "jdbc:h2:mem:test";
+    Assertions.assertEquals("update insert", db.upsertDialect());
+
+    db.url = "jdbc:db2://localhost:50000/db";
+    Assertions.assertNull(db.upsertDialect());
+  }
+
+  @Test
+  public void testStatementCache() throws Exception {
+    SQLDatabase db = (SQLDatabase) db();
+    Table s = db.tables.get("EMP");
+
+    db.read(s, Collections.singletonMap("ID", 1));
+    int size = db.statements.size();
+    db.read(s, Collections.singletonMap("ID", 2));
+    Assertions.assertEquals(size, db.statements.size());
+    db.read(s, of("ID", 2, "NAME", "x"));
+    Assertions.assertEquals(size + 1, db.statements.size());
+
+    SQLDatabase.PreparedStmt ps =
+        SQLDatabase.prepareStatement("select * from t where a=${a} and b=${b}", of("a", 1, "b", 2));
+    Assertions.assertEquals("select * from t where a=? and b=?", ps.query);
+    ps = SQLDatabase.prepareStatement("select * from t where a=${a} and b=${b}", of("b", 3));
+    Assertions.assertEquals(Arrays.asList(null, 3), Arrays.asList(ps.arguments));
+
+    // pooled statements must not keep the max rows of the previous call
+    QueryMeta info = new QueryMeta();
+    info.query = getQuery();
+    Assertions.assertEquals(1, db.query(info, null, 1).size());
+    Assertions.assertTrue(db.query(info, null, null).size() > 1);
+  }
+
+  @Test
+  public void testReadMany() throws Exception {
+    SQLDatabase db = (SQLDatabase) db();
+    Table s = db.tables.get("EMP");
+    List<Map<String, Object>> res =
+        db.readMany(s, Arrays.asList(of("ID", 2), of("ID", 99), of("ID", 1)));
+    Assertions.assertEquals("joe", res.get(0).get("NAME"));
+    Assertions.assertNull(res.get(1));
+    Assertions.assertEquals("mike", res.get(2).get("NAME"));
+
+    // keys are matched by value, not by their string form
+    res = db.readMany(s, Arrays.asList(of("ID", 1.0), of("ID", new BigDecimal("2.00"))));
+    Assertions.assertEquals("mike", res.get(0).get("NAME"));
+    Assertions.assertEquals("joe", res.get(1).get("NAME"));
+
+    // in lists are padded to a power of two
+    int size = db.statements.size();
+    db.readMany(s, Arrays.asList(of("ID", 1), of("ID", 2), of("ID", 3), of("ID", 4)));
+    Assertions.assertEquals(size, db.statements.size());
+
+    // composite searches are read one by one
+    res = db.readMany(s, Arrays.asList(of("ID", 1, "NAME", "joe")));
+    Assertions.assertNull(res.get(0));
+
+    // missing keys are not read one by one
+    long queries = queries();
+    res = db.readMany(s, Arrays.asList(of("ID", 2), of("ID", 98), of("ID", 99)));
+    Assertions.assertNull(res.get(1));
+    Assertions.assertEquals(queries + 1, queries());
+  }
+
+  static long queries() {
+    long res = 0;
+    for (Entry<String, PerformanceDatabase.QueryPerformance> e : PerformanceDatabase.queries
+        .entrySet())
+      if (e.getKey().startsWith("dj/junit: "))
+        res += e.getValue().count.sum();
+    return res;
+  }
+
+  @Test
+  public void testFuzzyKey() throws Exception {
+    SQLDatabase db = (SQLDatabase) db();
+    Table t = Table.ofName("T");
+    Property id = new Property();
+    id.type = "string";
+    id.dbType = "VARCHAR";
+    t.properties = of("ID", id);
+    Assertions.assertFalse(db.fuzzyKey(t, "ID"));
+    id.dbType = "CHAR";
+    Assertions.assertTrue(db.fuzzyKey(t, "ID"));
+    id.type = "number";
+    Assertions.assertFalse(db.fuzzyKey(t, "ID"));
+  }
+
+  @Test
+  public void testPool() throws Exception {
+    SQLDatabase db = new SQLDatabase();
+    db.init(services);
+    db.ID = "dj/pool";
+    db.name = "pool";
+    db.url = "jdbc:h2:mem:pool";
+    db.maxTotal = 1;
+    db.maxWaitMs = 100L;
+    db.fetchSize = 10;
+    db.leakDetectionSeconds = 60;
+    db.connectAndCollectMetadata();
+
+    // leaked connections are also reclaimed by the evictor
+    Assertions.assertTrue(db._cp.getRemoveAbandonedOnMaintenance());
+    Assertions.assertEquals(SQLDatabase.EVICTION_RUN_MS, db._cp.getTimeBetweenEvictionRunsMillis());
+    try (Connection con = db.borrow()) {
+      Map<String, Object> metrics = db.poolMetrics();
+      Assertions.assertEquals(1, metrics.get("active"));
+      Assertions.assertEquals(1, metrics.get("maxTotal"));
+      Assertions.assertEquals(1L, metrics.get("acquireCount"));
+
+      SQLException e = Assertions.assertThrows(SQLException.class, () -> db.borrow());
+      Assertions.assertTrue(e.getMessage().contains("exhausted"));
+      Assertions.assertEquals(1L, db.poolMetrics().get("acquireErrors"));
+    }
+
+    // the configured fetch size is used for plain and streamed reads, capped by the limit
+    try (Connection con = db.traced()) {
+      Assertions.assertEquals(10, con.prepareStatement("select 1").getFetchSize());
+      Assertions.assertEquals(10, SQLDatabase.fetchSize(con, null, false));
+      Assertions.assertEquals(10, SQLDatabase.fetchSize(con, null, true));
+      Assertions.assertEquals(5, SQLDatabase.fetchSize(con, 5, true));
+      ((TracedConnection) con).fetchSize = null;
+      Assertions.assertEquals(0, SQLDatabase.fetchSize(con, null, false));
+      Assertions.assertEquals(Database.FETCH_SIZE, SQLDatabase.fetchSize(con, null, true));
+    } finally {
+      db.close();
+    }
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    String url = "jdbc:h2:mem:snapshot";
+    File file = MetadataSnapshot.file("dj/snapshot");
+    try (Connection con = DriverManager.getConnection(url);
+        java.sql.Statement stmt = con.createStatement()) {
+      stmt.execute("create table T(ID int primary key)");
+
+      SQLDatabase db = snapshot(url);
+      Map<String, Object> tables = db.connectAndCollectMetadata();
+      db.close();
+      Assertions.assertTrue(file.exists());
+
+      // the snapshot is used and refreshed in the background
+      stmt.execute("alter table T add NAME varchar(255)");
+      db = snapshot(url);
+      Assertions.assertEquals(tables, db.connectAndCollectMetadata());
+      for (int i = 0; i < 100 && !Files.readString(file.toPath()).contains("NAME"); i++)
+        Thread.sleep(100);
+      db.close();
+      Assertions.assertTrue(Files.readString(file.toPath()).contains("NAME"));
+
+      // a new table changes the fingerprint
+      stmt.execute("create table S(ID int primary key)");
+      db = snapshot(url);
+      Assertions.assertTrue(db.connectAndCollectMetadata().containsKey("S"));
+      db.close();
+    } finally {
+      file.delete();
+      file.getParentFile().delete();
+    }
+  }
+
+  SQLDatabase snapshot(String url) {
+    SQLDatabase db = new SQLDatabase();
+    db.init(services);
+    db.ID = "dj/snapshot";
+    db.name = "snapshot";
+    db.url = url;
+    db.metadataSnapshot = true;
+    return db;
+  }
+
+  @Test
+  public void testPerformance() throws Exception {
+    SQLDatabase db = (SQLDatabase) db();
+    Table s = db.tables.get("EMP");
+    db.all(s, null, null, "NAME", true, null);
+    PerformanceDatabase.QueryPerformance perf = null;
+    for (PerformanceDatabase.QueryPerformance q : PerformanceDatabase.queries.values())
+      if (q.query.startsWith(db.ID + ": ") && q.query.contains("order by"))
+        perf = q;
+    Map<String, Object> row = perf.toMap();
+    Assertions.assertEquals("all", row.get("type"));
+    Assertions.assertEquals(2L, (long) row.get("rows") / (long) row.get("count"));
+  }
+
+  @Test
+  public void testAllIn() throws Exception {
+    SQLDatabase db = (SQLDatabase) db();
+    Table s = db.tables.get("EMP");
+    Assertions.assertEquals(2, db.allIn(s, "WORKSON", Arrays.asList(1000, 99)).size());
+    Assertions.assertEquals(1, db.allIn(s, "NAME", Arrays.asList("joe")).size());
+    Assertions.assertEquals(0, db.allIn(s, "ID", Arrays.asList()).size());
+  }
+
+  @Test
+  public void testPage() throws Exception {
+    SQLDatabase db = (SQLDatabase) db();
+    Table s = db.tables.get("EMP");
+    for (int id = 20; id < 27; id++)
+      db.create(s, of("ID", id, "NAME", id % 3 == 0 ? null : "n" + id % 2, "WORKSON", 1000));
+    try {
+      List<Object> all = new ArrayList<>();
+      for (Map<String, Object> row : db.all(s, null, null, "ID", false, null))
+        all.add(row.get("ID"));
+
+      for (String sort : Arrays.asList(null, "ID", "NAME"))
+        for (boolean descending : Arrays.asList(false, true)) {
+          List<Object> ids = new ArrayList<>();
+          String after = null;
+          do {
+            Data.Page page = db.page(s, after, 2, sort, descending, null);
+            Assertions.assertTrue(page.data.size() <= 2);
+            for (Map<String, Object> row : page.data)
+              ids.add(row.get("ID"));
+            after = page.next;
+          } while (after != null);
+          Assertions.assertEquals(all.size(), ids.size());
+          Assertions.assertEquals(new HashSet<>(all), new HashSet<>(ids));
+        }
+
+      // keyset condition on the sort and key columns
+      Data.Page page = db.page(s, null, 2, "NAME", false, of("WORKSON", 1000));
+      Keyset keyset = Keyset.parse(page.next);
+      Assertions.assertEquals(2, keyset.offset);
+      Assertions.assertEquals("\"NAME\">=? and (\"NAME\">? or (\"NAME\"=? and \"ID\">?))",
+          db.keyset(Arrays.asList("NAME", "ID"), false, false));
+    } finally {
+      for (int id = 20; id < 27; id++)
+        db.delete(s, of("ID", id));
+    }
+  }
+
+  @Test
+  public void testColumnar() throws Exception {
+    SQLDatabase db = (SQLDatabase) db();
+    Table s = db.tables.get("EMP");
+    for (int id = 100; id < 600; id++)
+      db.create(s, of("ID", id, "NAME", "name" + id, "WORKSON", 1000));
+    try {
+      QueryMeta info = new QueryMeta();
+      info.query = getQuery();
+      Assertions.assertEquals(db.query(info, null), db.queryColumnar(info, null).toMaps());
+      Data.Columnar columnar = db.allColumnar(s, null, null, "ID", false, null);
+      Assertions.assertEquals(Arrays.asList("ID", "NAME", "WORKSON"), columnar.columns);
+      List<Map<String, Object>> maps = db.all(s, null, null, "ID", false, null);
+      Assertions.assertEquals(maps, columnar.toMaps());
+      Assertions.assertEquals(maps, Data.Columnar.of(maps).toMaps());
+
+      // the column names are written once
+      ObjectMapper om = new ObjectMapper();
+      int mapBytes = om.writeValueAsBytes(maps).length;
+      int columnarBytes = om.writeValueAsBytes(columnar).length;
+      Assertions.assertTrue(columnarBytes < mapBytes * 2 / 3, columnarBytes + " " + mapBytes);
+
+      // no map is allocated per row
+      long mapAlloc = Long.MAX_VALUE;
+      long columnarAlloc = Long.MAX_VALUE;
+      for (int i = 0; i < 5; i++) {
+        long start = allocated();
+        db.all(s, null, null, "ID", false, null);
+        mapAlloc = Math.min(mapAlloc, allocated() - start);
+        start = allocated();
+        db.allColumnar(s, null, null, "ID", false, null);
+        columnarAlloc = Math.min(columnarAlloc, allocated() - start);
+      }
+      Assertions.assertTrue(columnarAlloc < mapAlloc, columnarAlloc + " " + mapAlloc);
+    } finally {
+      for (int id = 100; id < 600; id++)
+        db.delete(s, of("ID", id));
+    }
+  }
+
+  @Test
+  public void testSearchDeadline() throws Exception {
+    SQLDatabase db = (SQLDatabase) db();
+    SecurityContext sc = Mockito.mock(SecurityContext.class);
+    Mockito.when(sc.isUserInRole(ArgumentMatchers.anyString())).thenReturn(true);
+    Config config = Mockito.mock(Config.class);
+    Mockito.when(config.getSearchTimeoutMs()).thenReturn(500);
+    Mockito.when(config.searchTables(ArgumentMatchers.any())).thenReturn(db.tables.values());
+    Mockito.doAnswer(invocation -> services.getConfig()
+        .getCachedForce(invocation.getArgument(0), SQLDatabase.class)).when(config)
+        .getCachedForce(ArgumentMatchers.any(), ArgumentMatchers.any());
+    Services mock = Mockito.mock(Services.class);
+    Mockito.when(mock.getConfig()).thenReturn(config);
+
+    // the EMP table does not answer in time
+    SQLDatabase slow = Mockito.spy(db);
+    slow.init(mock);
+    Mockito.doAnswer(invocation -> {
+      Thread.sleep(10000);
+      return invocation.callRealMethod();
+    }).when(slow).search(ArgumentMatchers.eq(db.tables.get("EMP")), ArgumentMatchers.anyString(),
+        ArgumentMatchers.anyString(), ArgumentMatchers.any(), ArgumentMatchers.anyLong(),
+        ArgumentMatchers.any());
+
+    long start = System.currentTimeMillis();
+    List<SearchResult> res = slow.search(sc, "dev-project", null);
+    Assertions.assertTrue(System.currentTimeMillis() - start < 5000);
+    Assertions.assertEquals(2, res.size());
+    Assertions.assertEquals("dev-project", res.get(0).match);
+    Assertions.assertEquals("EMP", res.get(1).id.table);
+    Assertions.assertTrue(res.get(1).timeout);
+
+    // the deadline passed by the search across all databases wins over the search timeout
+    Mockito.when(config.getSearchTimeoutMs()).thenReturn(5000);
+    start = System.currentTimeMillis();
+    res = slow.search(sc, "dev-project", null, SearchWorkers.deadline(500));
+    Assertions.assertTrue(System.currentTimeMillis() - start < 3000);
+    Assertions.assertEquals("EMP", res.get(res.size() - 1).id.table);
+    Assertions.assertTrue(res.get(res.size() - 1).timeout);
+
+    // the limit is applied across tables
+    Assertions.assertEquals(1, db.search(sc, "1000", 1).size());
+
+    // timeout markers do not count towards the limit
+    SQLDatabase marker = Mockito.spy(db);
+    marker.init(mock);
+    Mockito.doAnswer(invocation -> {
+      Table t = invocation.getArgument(0);
+      if (t.name.equals("EMP"))
+        return Arrays.asList(SearchResult.timeout(db.name, "EMP"));
+      Thread.sleep(200);
+      return invocation.callRealMethod();
+    }).when(marker).search(ArgumentMatchers.any(Table.class), ArgumentMatchers.anyString(),
+        ArgumentMatchers.anyString(), ArgumentMatchers.any(), ArgumentMatchers.anyLong(),
+        ArgumentMatchers.any());
+    res = marker.search(sc, "1000", 1);
+    Assertions.assertEquals(2, res.size());
+    Assertions.assertNull(res.get(0).timeout);
+    Assertions.assertEquals("EMP", res.get(1).id.table);
+    Assertions.assertTrue(res.get(1).timeout);
+  }
+
+  static long allocated() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
 }
@@ -0,0 +1,105 @@
+package org.dashjoin.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.dashjoin.model.AbstractDatabase;
+import org.dashjoin.model.Table;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * tests the table ID index used by PojoDatabase.getSchema
+ */
+public class SchemaIndexTest {
+
+  static List<AbstractDatabase> dbs(int dbCount, int tableCount) {
+    List<AbstractDatabase> dbs = new ArrayList<>();
+    for (int d = 0; d < dbCount; d++) {
+      AbstractDatabase db = new TestDatabase();
+      db.ID = "dj/db" + d;
+      for (int t = 0; t < tableCount; t++) {
+        Table s = Table.ofName("table" + t);
+        s.parent = db.ID;
+        s.ID = db.ID + "/" + s.name;
+        db.tables.put(s.name, s);
+      }
+      dbs.add(db);
+    }
+    return dbs;
+  }
+
+  /**
+   * previous implementation of PojoDatabase.getSchema
+   */
+  static Table scan(List<AbstractDatabase> dbs, String ID) {
+    for (AbstractDatabase m : dbs)
+      for (Table s : m.tables.values()) {
+        if (ID.equals(s.ID))
+          return s;
+        if (ID.startsWith(s.ID + "/"))
+          return s;
+      }
+    return null;
+  }
+
+  @Test
+  public void testLookup() {
+    List<AbstractDatabase> dbs = dbs(2, 2);
+    SchemaIndex index = new SchemaIndex(dbs);
+    Assertions.assertEquals(4, index.size());
+    Assertions.assertEquals("dj/db1/table0", index.get("dj/db1/table0").ID);
+    Assertions.assertEquals("dj/db1/table0", index.get("dj/db1/table0/column").ID);
+    Assertions.assertEquals("dj/db1/table0", index.get("dj/db1/table0/column/nested").ID);
+    Assertions.assertNull(index.get("dj/db1/table2"));
+    Assertions.assertNull(index.get("dj/db2"));
+    Assertions.assertNull(index.get("x"));
+  }
+
+  /**
+   * the index returns the same tables as the previous scan for table IDs, column IDs and misses
+   */
+  @Test
+  public void testScan() {
+    List<AbstractDatabase> dbs = dbs(5, 20);
+    SchemaIndex index = new SchemaIndex(dbs);
+    Assertions.assertEquals(100, index.size());
+    for (int d = 0; d < 6; d++)
+      for (int t = 0; t < 22; t++)
+        for (String suffix : new String[] {"", "/column", "/column/nested", "x"}) {
+          String id = "dj/db" + d + "/table" + t + suffix;
+          Assertions.assertSame(scan(dbs, id), index.get(id), id);
+        }
+  }
+
+  /**
+   * 1000 column ID lookups with 50 databases and 500 tables each, the index must be clearly faster
+   * than the scan
+   */
+  @Test
+  @Tag("benchmark")
+  public void testBenchmark() {
+    List<AbstractDatabase> dbs = dbs(50, 500);
+    SchemaIndex index = new SchemaIndex(dbs);
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 1000; i++)
+      ids.add("dj/db" + (i % 50) + "/table" + (i * 7 % 500) + "/column");
+
+    // warm up both paths before measuring
+    for (String id : ids)
+      Assertions.assertSame(scan(dbs, id), index.get(id), id);
+
+    long start = System.nanoTime();
+    for (String id : ids)
+      scan(dbs, id);
+    long scanned = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (String id : ids)
+      index.get(id);
+    long indexed = System.nanoTime() - start;
+
+    Assertions.assertTrue(indexed * 10 < scanned,
+        "index: " + indexed / 1000 + "us, scan: " + scanned / 1000 + "us");
+  }
+}
@@ -0,0 +1,147 @@
+package org.dashjoin.service;
+
+import static org.dashjoin.util.MapUtil.of;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.dashjoin.model.AbstractDatabase;
+import org.dashjoin.model.Property;
+import org.dashjoin.model.Table;
+import org.dashjoin.service.Data.SearchResult;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * tests the full text index used by AbstractDatabase.search
+ */
+public class SearchIndexTest {
+
+  List<Map<String, Object>> rows = new ArrayList<>();
+
+  AbstractDatabase db = new TestDatabase() {
+    @Override
+    public List<Map<String, Object>> all(Table s, Integer offset, Integer limit, String sort,
+        boolean descending, Map<String, Object> arguments) throws Exception {
+      return rows;
+    }
+  };
+
+  Table table() {
+    Table t = Table.ofName("EMP");
+    Property id = new Property();
+    id.name = "ID";
+    id.pkpos = 0;
+    t.properties = of("ID", id);
+    return t;
+  }
+
+  @Test
+  public void testSearch() throws Exception {
+    db.name = "db";
+    Table t = table();
+    SearchIndex index = new SearchIndex("db");
+    index.put(db, t, of("ID", 1, "NAME", "Mike Miller", "CITY", "Munich"));
+    index.put(db, t, of("ID", 2, "NAME", "Joe", "CITY", "Mike's town, Mike county"));
+    index.put(db, t, of("ID", 3, "NAME", "Jane", "CITY", "Berlin"));
+
+    index.put(db, t, of("ID", 4, "NAME", "Mike"));
+
+    // equal values first, then word prefixes in insertion order
+    List<SearchResult> res = index.search("mike", null, Arrays.asList(t));
+    Assertions.assertEquals(3, res.size());
+    Assertions.assertEquals(Arrays.asList(4), res.get(0).id.pk);
+    Assertions.assertEquals(Arrays.asList(1), res.get(1).id.pk);
+    Assertions.assertEquals("NAME", res.get(1).column);
+    Assertions.assertEquals("Mike Miller", res.get(1).match);
+    Assertions.assertEquals("db", res.get(1).id.database);
+    Assertions.assertEquals("EMP", res.get(1).id.table);
+    Assertions.assertEquals(Arrays.asList(2), res.get(2).id.pk);
+    Assertions.assertEquals("CITY", res.get(2).column);
+
+    // substring match like the brute force search
+    Assertions.assertEquals(3, index.search("IKE", null, Arrays.asList(t)).size());
+    Assertions.assertEquals("Mike's town, Mike county",
+        index.search("'s", null, Arrays.asList(t)).get(0).match);
+    Assertions.assertEquals(1, index.search("mike miller", null, Arrays.asList(t)).size());
+    Assertions.assertEquals(0, index.search("mike munich", null, Arrays.asList(t)).size());
+    Assertions.assertEquals(1, index.search("mike", 1, Arrays.asList(t)).size());
+    Assertions.assertEquals(0, index.search("mike", null, Collections.emptyList()).size());
+
+    // numbers are matched by their string value
+    Assertions.assertEquals(4, index.search("4", null, Arrays.asList(t)).get(0).match);
+    index.remove(db, t, of("ID", 4));
+
+    // update and delete
+    index.put(db, t, of("ID", 1, "NAME", "Peter"));
+    Assertions.assertEquals(1, index.search("mike", null, Arrays.asList(t)).size());
+    Assertions.assertEquals(1, index.search("peter", null, Arrays.asList(t)).size());
+    index.remove(db, t, of("ID", 2));
+    Assertions.assertEquals(0, index.search("mike", null, Arrays.asList(t)).size());
+    Assertions.assertEquals(2, index.size());
+  }
+
+  @Test
+  public void testCompact() throws Exception {
+    db.name = "db";
+    Table t = table();
+    SearchIndex index = new SearchIndex("db");
+    for (int i = 0; i < 2000; i++)
+      index.put(db, t, of("ID", i % 10, "NAME", "name" + i));
+    Assertions.assertEquals(10, index.size());
+
+    // postings of updated records are dropped once they make up most of the index
+    Assertions.assertTrue(index.postings.get("nam").size < 200);
+    Assertions.assertEquals(1, index.search("name1999", null, Arrays.asList(t)).size());
+    Assertions.assertEquals(0, index.search("name0", null, Arrays.asList(t)).size());
+
+    // records are renumbered before the seqs run out
+    index.seq = Integer.MAX_VALUE;
+    index.put(db, t, of("ID", 10, "NAME", "joe"));
+    Assertions.assertEquals(11, index.seq);
+    Assertions.assertEquals(1, index.search("joe", null, Arrays.asList(t)).size());
+    Assertions.assertEquals("name1990",
+        index.search("name", null, Arrays.asList(t)).get(0).match);
+  }
+
+  @Test
+  public void testMaxChars() throws Exception {
+    db.name = "db";
+    Table t = table();
+    SearchIndex index = new SearchIndex("db");
+    index.maxChars = 8;
+    rows.add(of("ID", 1, "NAME", "mike"));
+    index.crawl(db, Arrays.asList(t));
+    Assertions.assertTrue(index.isReady());
+
+    // too large, the database is searched without the index
+    rows.add(of("ID", 2, "NAME", "joe"));
+    index.crawl(db, Arrays.asList(t));
+    Assertions.assertFalse(index.isReady());
+    Assertions.assertEquals(0, index.size());
+    Assertions.assertEquals(0, index.chars);
+
+    rows.remove(1);
+    index.crawl(db, Arrays.asList(t));
+    Assertions.assertTrue(index.isReady());
+    Assertions.assertEquals(5, index.chars);
+  }
+
+  @Test
+  public void testCrawl() throws Exception {
+    db.name = "db";
+    Table t = table();
+    SearchIndex index = new SearchIndex("db");
+    rows.add(of("ID", 1, "NAME", "mike"));
+    rows.add(of("ID", 2, "NAME", "joe"));
+    index.crawl(db, Arrays.asList(t));
+    Assertions.assertEquals(2, index.size());
+
+    // records deleted by other clients are removed by the next crawl
+    rows.remove(1);
+    index.crawl(db, Arrays.asList(t));
+    Assertions.assertEquals(1, index.size());
+    Assertions.assertEquals(0, index.search("joe", null, Arrays.asList(t)).size());
+  }
+}
@@ -0,0 +1,46 @@
+package org.dashjoin.service;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * tests the bounded SQL statement cache
+ */
+public class StatementCacheTest {
+
+  @Test
+  public void testLRU() throws Exception {
+    AtomicInteger runs = new AtomicInteger();
+    StatementCache<String> cache = new StatementCache<>(2);
+    StatementCache.Generator<String> generator = k -> {
+      runs.incrementAndGet();
+      return "select " + k;
+    };
+
+    Assertions.assertEquals("select a", cache.get("a", generator));
+    Assertions.assertEquals("select a", cache.get("a", generator));
+    Assertions.assertEquals(1, runs.get());
+
+    // b is evicted since a was used more recently
+    cache.get("b", generator);
+    cache.get("a", generator);
+    cache.get("c", generator);
+    Assertions.assertEquals(2, cache.size());
+    Assertions.assertEquals(3, runs.get());
+    cache.get("a", generator);
+    Assertions.assertEquals(3, runs.get());
+    cache.get("b", generator);
+    Assertions.assertEquals(4, runs.get());
+  }
+
+  @Test
+  public void testError() throws Exception {
+    StatementCache<String> cache = new StatementCache<>();
+    Assertions.assertThrows(SQLException.class, () -> cache.get("a", k -> {
+      throw new SQLException("parse error");
+    }));
+    Assertions.assertEquals(0, cache.size());
+  }
+}
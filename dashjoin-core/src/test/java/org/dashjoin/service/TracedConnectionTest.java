@@ -0,0 +1,98 @@
+package org.dashjoin.service;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import org.apache.commons.dbcp2.DelegatingResultSet;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * tests the connection wrapper reporting to PerformanceDatabase
+ */
+public class TracedConnectionTest {
+
+  static final String URL = "jdbc:h2:mem:traced;DB_CLOSE_DELAY=-1";
+
+  @BeforeAll
+  public static void init() throws Exception {
+    try (Connection con = DriverManager.getConnection(URL);
+        Statement stmt = con.createStatement()) {
+      stmt.execute("create table if not exists T(ID int primary key, NAME varchar(255))");
+      stmt.execute("delete from T");
+      stmt.execute("insert into T select x, 'name' || x from system_range(1, 100)");
+    }
+  }
+
+  @Test
+  public void testTrace() throws Exception {
+    String query = "select * from T where ID < ?";
+    try (Connection con = new TracedConnection("traced", DriverManager.getConnection(URL))) {
+      SQLDatabase.rows(con, 0);
+      ((TracedConnection) con).operation = "read";
+      try (PreparedStatement stmt = con.prepareStatement(query)) {
+        stmt.setMaxRows(10);
+        stmt.setQueryTimeout(5);
+        stmt.setInt(1, 4);
+        try (ResultSet res = stmt.executeQuery()) {
+          while (res.next())
+            SQLDatabase.rows(con, 1);
+        }
+      }
+    }
+    Map<String, Object> row = PerformanceDatabase.queries.get("traced: " + query).toMap();
+    Assertions.assertEquals("read", row.get("type"));
+    Assertions.assertEquals(3L, row.get("rows"));
+    Assertions.assertEquals(10, row.get("lastLimit"));
+    Assertions.assertEquals(5000, row.get("lastTimeoutMs"));
+    Assertions.assertNull(row.get("lastError"));
+
+    try (Connection con = new TracedConnection("traced", DriverManager.getConnection(URL));
+        Statement stmt = con.createStatement()) {
+      Assertions.assertThrows(SQLException.class, () -> stmt.executeQuery("select * from X"));
+    }
+    row = PerformanceDatabase.queries.get("traced: select * from X").toMap();
+    Assertions.assertEquals(1L, row.get("errorCount"));
+    Assertions.assertTrue(((String) row.get("lastError")).contains("X"));
+  }
+
+  long read(Connection con) throws Exception {
+    long sum = 0;
+    try (PreparedStatement stmt = con.prepareStatement("select ID, NAME from T")) {
+      try (ResultSet res = stmt.executeQuery()) {
+        if (con instanceof TracedConnection)
+          Assertions.assertTrue(res instanceof DelegatingResultSet);
+        while (res.next()) {
+          sum += res.getInt(1);
+          if (res.getObject(2) != null)
+            SQLDatabase.rows(con, 1);
+        }
+      }
+    }
+    return sum;
+  }
+
+  @Test
+  public void testRead() throws Exception {
+    String query = "traced-read: select ID, NAME from T";
+    long raw;
+    try (Connection con = DriverManager.getConnection(URL)) {
+      raw = read(con);
+    }
+    try (Connection con = new TracedConnection("traced-read", DriverManager.getConnection(URL))) {
+      Assertions.assertEquals(raw, read(con));
+      Assertions.assertNull(PerformanceDatabase.queries.get(query));
+    }
+
+    // the wrapped read is reported once the connection is closed
+    Map<String, Object> row = PerformanceDatabase.queries.get(query).toMap();
+    Assertions.assertEquals(1L, ((Number) row.get("count")).longValue());
+    Assertions.assertEquals(100L, row.get("rows"));
+    Assertions.assertEquals(0L, row.get("errorCount"));
+  }
+}
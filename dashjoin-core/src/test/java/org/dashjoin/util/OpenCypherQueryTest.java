@@ -175,6 +175,34 @@ public class OpenCypherQueryTest {
     Assertions.assertEquals("[{emp.NAME=joe}]", "" + res);
   }
 
+  @Test
+  public void testMultiHop() throws Exception {
+    // results are returned depth first as if every record was traversed on its own
+    List<Map<String, Object>> res = run(
+        "MATCH (p:`dj/junit/EMP`)-[e:WORKSON]->(project)<-[w:`dj/junit/EMP/WORKSON`]-(colleague) RETURN p.NAME, colleague.NAME");
+    Assertions.assertEquals(
+        "[{p.NAME=mike, colleague.NAME=mike}, {p.NAME=mike, colleague.NAME=joe}, {p.NAME=joe, colleague.NAME=mike}, {p.NAME=joe, colleague.NAME=joe}]",
+        "" + res);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testPathPerResult() throws Exception {
+    // every result has its own path
+    List<Map<String, Object>> res =
+        run("MATCH path=(prj:`dj/junit/PRJ`)<-[wo]-(emp) RETURN path, emp.NAME");
+    Assertions.assertEquals(2, res.size());
+    for (Map<String, Object> r : res) {
+      List<Map<String, Object>> steps =
+          (List<Map<String, Object>>) ((Map<String, Object>) r.get("path")).get("steps");
+      Assertions.assertEquals(1, steps.size());
+      Assertions.assertEquals("{_dj_edge=dj/junit/EMP/WORKSON, _dj_outbound=false}",
+          "" + steps.get(0).get("edge"));
+      Assertions.assertEquals(r.get("emp.NAME"),
+          ((Map<String, Object>) steps.get(0).get("end")).get("NAME"));
+    }
+  }
+
   @Test
   public void testPathInCheckType() throws Exception {
     List<Map<String, Object>> res = run(
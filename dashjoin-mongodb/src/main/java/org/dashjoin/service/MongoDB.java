@@ -2,6 +2,10 @@ package org.dashjoin.service;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -22,6 +26,7 @@ import org.dashjoin.model.JsonSchema;
 import org.dashjoin.model.Property;
 import org.dashjoin.model.QueryMeta;
 import org.dashjoin.model.Table;
+import org.dashjoin.service.Data.Page;
 import org.dashjoin.service.Metadata.Column;
 import org.dashjoin.service.Metadata.Key;
 import org.dashjoin.service.Metadata.MdTable;
@@ -37,6 +42,7 @@ import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 import de.bwaldvogel.mongo.MongoServer;
@@ -152,8 +158,17 @@ public class MongoDB extends AbstractDatabase {
   }
 
   List<Document> doc(Table t, Map<String, Object> search, Integer offset, Integer limit) {
-    List<Bson> filters = filters(t, search);
     List<Document> res = new ArrayList<>();
+    MongoCursor<Document> iter = find(t, search, offset, limit).iterator();
+
+    while (iter.hasNext())
+      res.add(iter.next());
+    return res;
+  }
+
+  FindIterable<Document> find(Table t, Map<String, Object> search, Integer offset,
+      Integer limit) {
+    List<Bson> filters = filters(t, search);
     FindIterable<Document> i =
         filters.isEmpty() ? collection(t.name).find() : collection(t.name).find(and(filters));
 
@@ -161,27 +176,71 @@ public class MongoDB extends AbstractDatabase {
       i = i.skip(offset);
     if (limit != null)
       i = i.limit(limit);
-
-    MongoCursor<Document> iter = i.iterator();
-
-    while (iter.hasNext())
-      res.add(iter.next());
-    return res;
+    return i;
   }
 
   List<Bson> filters(Table t, Map<String, Object> search) {
     List<Bson> filters = new ArrayList<>();
     if (search != null)
       for (Entry<String, Object> e : search.entrySet()) {
-        filters.add(eq(e.getKey(),
-            "_id".equals(e.getKey()) && e.getValue() instanceof String
-                && ((String) e.getValue()).startsWith("_")
-                    ? new ObjectId(((String) e.getValue()).substring(1))
-                    : e.getValue()));
+        filters.add(eq(e.getKey(), value(e.getKey(), e.getValue())));
       }
     return filters;
   }
 
+  /**
+   * object IDs are passed as strings prefixed with _
+   */
+  Object value(String key, Object value) {
+    return "_id".equals(key) && value instanceof String && ((String) value).startsWith("_")
+        ? new ObjectId(((String) value).substring(1))
+        : value;
+  }
+
+  /**
+   * filter selecting the documents following the given values of the sort and key columns. Null
+   * and missing values are sorted first, so they follow in descending order
+   */
+  Bson keyset(List<String> columns, List<Object> after, boolean descending) {
+    int last = columns.size() - 1;
+    Bson res = descending ? lt(columns.get(last), value(columns.get(last), after.get(last)))
+        : gt(columns.get(last), value(columns.get(last), after.get(last)));
+    for (int i = last - 1; i >= 0; i--) {
+      Object v = value(columns.get(i), after.get(i));
+      res = or(descending ? lt(columns.get(i), v) : gt(columns.get(i), v),
+          and(eq(columns.get(i), v), res));
+    }
+    if (descending && !"_id".equals(columns.get(0)))
+      res = or(res, eq(columns.get(0), null));
+    return res;
+  }
+
+  @Override
+  public Page page(Table s, String after, Integer limit, String sort, boolean descending,
+      Map<String, Object> arguments) throws Exception {
+    List<String> columns = Keyset.columns(s, sort);
+    if (columns == null)
+      return super.page(s, after, limit, sort, descending, arguments);
+
+    Keyset keyset = Keyset.parse(after);
+    List<Bson> filters = filters(s, arguments);
+    if (keyset.after != null)
+      filters.add(keyset(columns, keyset.after, descending));
+    FindIterable<Document> i =
+        filters.isEmpty() ? collection(s.name).find() : collection(s.name).find(and(filters));
+    i = i.sort(descending ? Sorts.descending(columns) : Sorts.ascending(columns));
+    if (keyset.after == null && keyset.offset > 0)
+      i = i.skip(keyset.offset);
+    if (limit != null)
+      i = i.limit(limit);
+
+    List<Map<String, Object>> rows = new ArrayList<>();
+    MongoCursor<Document> iter = i.iterator();
+    while (iter.hasNext())
+      rows.add(map(iter.next()));
+    return Page.of(rows, keyset.next(columns, rows, limit));
+  }
+
   Document document(Map<String, Object> object, boolean set) {
     Document doc = new Document();
     for (Entry<String, Object> e : object.entrySet())
@@ -216,20 +275,27 @@ public class MongoDB extends AbstractDatabase {
   public List<Map<String, Object>> query(QueryMeta info, Map<String, Object> arguments)
       throws Exception {
 
+    List<Map<String, Object>> res = new ArrayList<>();
+    streamQuery(info, arguments, res::add);
+    return res;
+  }
+
+  @Override
+  public void streamQuery(QueryMeta info, Map<String, Object> arguments, RowConsumer consumer)
+      throws Exception {
     MongoDBQuery q =
         new MongoDBQuery("" + Template.replace(info.query, Template.quoteStrings(arguments)));
 
-    List<Map<String, Object>> res = new ArrayList<>();
-
-    MongoCursor<Document> i = collection(q.collection).aggregate(q.array()).iterator();
-    while (i.hasNext()) {
-      Document d = i.next();
-      Map<String, Object> m = new LinkedHashMap<>();
-      for (Entry<String, Object> e : d.entrySet())
-        m.put(e.getKey(), e.getValue());
-      res.add(m);
+    try (MongoCursor<Document> i =
+        collection(q.collection).aggregate(q.array()).batchSize(FETCH_SIZE).iterator()) {
+      while (i.hasNext()) {
+        Document d = i.next();
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (Entry<String, Object> e : d.entrySet())
+          m.put(e.getKey(), e.getValue());
+        consumer.accept(m);
+      }
     }
-    return res;
   }
 
   @Override
@@ -245,25 +311,72 @@ public class MongoDB extends AbstractDatabase {
     return d.get(0);
   }
 
+  /**
+   * reads the keys using a single $in filter
+   */
+  @Override
+  public List<Map<String, Object>> readMany(Table s, List<Map<String, Object>> searches)
+      throws Exception {
+    String pk = singleKey(s, searches);
+    if (pk == null)
+      return super.readMany(s, searches);
+
+    List<Object> keys = new ArrayList<>();
+    for (Map<String, Object> search : searches)
+      keys.add(value(pk, search.get(pk)));
+    Map<String, Map<String, Object>> rows = new HashMap<>();
+    for (Document d : collection(s.name).find(in(pk, keys))) {
+      Map<String, Object> row = map(d);
+      rows.put(matchKey(s, pk, row.get(pk)), row);
+    }
+    List<Map<String, Object>> res = new ArrayList<>();
+    for (Map<String, Object> search : searches) {
+      res.add(rows.get(matchKey(s, pk, search.get(pk))));
+    }
+    return res;
+  }
+
+  /**
+   * reads the values using a single $in filter
+   */
+  @Override
+  public List<Map<String, Object>> allIn(Table s, String column, List<Object> values)
+      throws Exception {
+    List<Object> keys = new ArrayList<>();
+    for (Object value : values)
+      keys.add(value(column, value));
+    List<Map<String, Object>> res = new ArrayList<>();
+    for (Document d : collection(s.name).find(in(column, keys)))
+      res.add(map(d));
+    return res;
+  }
+
   List<Map<String, Object>> readInternal(Table s, Integer offset, Integer limit,
       Map<String, Object> search) throws Exception {
     List<Map<String, Object>> list = new ArrayList<>();
     for (Document d : doc(s, search, offset, limit)) {
       if (limit != null && list.size() == limit)
         break;
-      Map<String, Object> res = new LinkedHashMap<>();
-      for (Entry<String, Object> e : d.entrySet()) {
-        String prop = e.getKey();
-        if (e.getValue() instanceof ObjectId)
-          res.put(prop, "_" + ((ObjectId) e.getValue()).toString());
-        else
-          res.put(prop, e.getValue());
-      }
-      list.add(res);
+      list.add(map(d));
     }
     return list;
   }
 
+  /**
+   * convert the document to a map, object IDs are written as strings prefixed with _
+   */
+  Map<String, Object> map(Document d) {
+    Map<String, Object> res = new LinkedHashMap<>();
+    for (Entry<String, Object> e : d.entrySet()) {
+      String prop = e.getKey();
+      if (e.getValue() instanceof ObjectId)
+        res.put(prop, "_" + ((ObjectId) e.getValue()).toString());
+      else
+        res.put(prop, e.getValue());
+    }
+    return res;
+  }
+
   @Override
   public boolean update(Table schema, Map<String, Object> search, Map<String, Object> object)
       throws Exception {
@@ -296,6 +409,16 @@ public class MongoDB extends AbstractDatabase {
     return readInternal(s, offset, limit, arguments);
   }
 
+  @Override
+  public void streamAll(Table s, Integer offset, Integer limit, String sort, boolean descending,
+      Map<String, Object> arguments, RowConsumer consumer) throws Exception {
+    try (MongoCursor<Document> iter =
+        find(s, arguments, offset, limit).batchSize(FETCH_SIZE).iterator()) {
+      while (iter.hasNext())
+        consumer.accept(map(iter.next()));
+    }
+  }
+
   @Override
   public Map<String, Property> queryMeta(QueryMeta info, Map<String, Object> arguments)
       throws Exception {
@@ -201,16 +201,30 @@ public class RDF4J extends AbstractDatabase {
 
   List<Map<String, Object>> queryInternal(QueryMeta info, Map<String, Object> arguments,
       boolean wrapResource) throws Exception {
+    List<Map<String, Object>> res = new ArrayList<>();
+    queryInternal(info, arguments, wrapResource, res::add);
+    return res;
+  }
+
+  @Override
+  public void streamQuery(QueryMeta info, Map<String, Object> arguments, RowConsumer consumer)
+      throws Exception {
+    queryInternal(info, arguments, false, consumer);
+  }
+
+  /**
+   * evaluates the query and passes the rows to the consumer while iterating the result
+   */
+  void queryInternal(QueryMeta info, Map<String, Object> arguments, boolean wrapResource,
+      RowConsumer consumer) throws Exception {
     String query = "" + Template.replace(info.query, Template.quoteStrings(arguments));
     try (RepositoryConnection con = getConnection()) {
       Query q = new Query(query);
-      List<Map<String, Object>> res = new ArrayList<>();
       TupleQuery tq = con.prepareTupleQuery(query);
       try (TupleQueryResult i = tq.evaluate()) {
         while (i.hasNext()) {
           BindingSet x = i.next();
           Map<String, Object> row = new LinkedHashMap<>();
-          res.add(row);
           for (Variable p : q.projection) {
             Value v = x.getBinding(p.name).getValue();
 
@@ -225,9 +239,9 @@ public class RDF4J extends AbstractDatabase {
             else
               row.put(p.name, object(v));
           }
+          consumer.accept(row);
         }
       }
-      return res;
     }
   }
 
@@ -281,6 +295,38 @@ public class RDF4J extends AbstractDatabase {
     }
   }
 
+  /**
+   * reads the subjects using a single query with a values block
+   */
+  @Override
+  public List<Map<String, Object>> readMany(Table s, List<Map<String, Object>> searches)
+      throws Exception {
+    StringBuilder values = new StringBuilder();
+    for (Map<String, Object> search : searches)
+      values.append(" <" + iri(search.get("ID")) + ">");
+    Map<String, Map<String, Object>> rows = new HashMap<>();
+    try (RepositoryConnection con = getConnection()) {
+      TupleQuery tq = con.prepareTupleQuery(
+          "select ?s ?p ?o where { values ?s {" + values + " } ?s ?p ?o }");
+      try (TupleQueryResult i = tq.evaluate()) {
+        while (i.hasNext()) {
+          BindingSet x = i.next();
+          Map<String, Object> row = rows.computeIfAbsent(
+              string((Resource) x.getBinding("s").getValue()), k -> new HashMap<>());
+          add(s, row, (IRI) x.getBinding("p").getValue(), x.getBinding("o").getValue(), true);
+        }
+      }
+    }
+    List<Map<String, Object>> res = new ArrayList<>();
+    for (Map<String, Object> search : searches) {
+      Map<String, Object> row = rows.get(string(iri(search.get("ID"))));
+      if (row != null)
+        row.put("ID", search.get("ID"));
+      res.add(row);
+    }
+    return res;
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public boolean update(Table schema, Map<String, Object> search, Map<String, Object> object)